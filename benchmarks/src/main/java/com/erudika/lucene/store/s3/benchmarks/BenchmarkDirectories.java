@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3.benchmarks;
+
+import com.adobe.testing.s3mock.S3MockApplication;
+import com.erudika.lucene.store.s3.S3Directory;
+import com.erudika.lucene.store.s3.S3HttpClient;
+import com.erudika.lucene.store.s3.S3NetworkSimulator;
+import com.github.davidmoten.aws.lw.client.Client;
+import com.github.davidmoten.aws.lw.client.Credentials;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+
+/**
+ * Creates the directories under test and the documents indexed by the benchmarks.
+ * S3 directories are backed by an S3Mock instance running in the benchmark JVM, the same stand-in used by the tests.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class BenchmarkDirectories {
+
+	/**
+	 * The S3 directory.
+	 */
+	public static final String S3 = "s3";
+
+	/**
+	 * The S3 directory behind a simulated network link with 20ms latency, up to 10ms jitter and 80MB/s per request.
+	 */
+	public static final String S3_WAN = "s3-wan";
+
+	/**
+	 * A memory-mapped local directory.
+	 */
+	public static final String MMAP = "mmap";
+
+	/**
+	 * A local directory which reads with positional file channel reads.
+	 */
+	public static final String NIOFS = "fs";
+
+	/**
+	 * Bucket used by the benchmarks.
+	 */
+	public static final String BUCKET = "lucene-s3directory-benchmarks";
+
+	private static final String[] WORDS = {
+		"lucene", "search", "index", "segment", "merge", "query", "phrase", "term", "bucket", "object",
+		"latency", "cache", "block", "range", "upload", "commit", "reader", "writer", "field", "token",
+		"alpha", "beta", "gamma", "delta", "epsilon", "zeta", "eta", "theta", "iota", "kappa"
+	};
+
+	private static S3MockApplication s3Mock;
+	private static Client s3;
+	private static Client s3Wan;
+
+	private BenchmarkDirectories() {
+	}
+
+	/**
+	 * Opens an empty directory of the given type.
+	 *
+	 * @param type one of {@link #S3}, {@link #S3_WAN}, {@link #MMAP} or {@link #NIOFS}
+	 * @param name a name which is unique to the calling benchmark
+	 * @return a directory
+	 * @throws IOException if the directory could not be created
+	 */
+	public static Directory open(String type, String name) throws IOException {
+		switch (type) {
+			case S3:
+			case S3_WAN:
+				final S3Directory dir = new S3Directory(S3.equals(type) ? s3() : s3Wan(), BUCKET, name + "/");
+				dir.create();
+				return dir;
+			case MMAP:
+				return new MMapDirectory(Files.createTempDirectory("bench-" + name));
+			case NIOFS:
+				return new NIOFSDirectory(Files.createTempDirectory("bench-" + name));
+			default:
+				throw new IllegalArgumentException("Unknown directory type " + type);
+		}
+	}
+
+	/**
+	 * Closes a directory and deletes its files.
+	 *
+	 * @param dir a directory returned by {@link #open(String, String)}
+	 * @throws IOException if the files could not be deleted
+	 */
+	public static void destroy(Directory dir) throws IOException {
+		if (dir instanceof S3Directory s3Directory) {
+			s3Directory.emptyBucket();
+			s3Directory.close();
+		} else if (dir instanceof org.apache.lucene.store.FSDirectory fsDirectory) {
+			final Path path = fsDirectory.getDirectory();
+			fsDirectory.close();
+			try (Stream<Path> files = Files.walk(path)) {
+				for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+					Files.deleteIfExists(p);
+				}
+			}
+		} else {
+			dir.close();
+		}
+	}
+
+	/**
+	 * Stops the S3 stand-in, if it was started.
+	 */
+	public static synchronized void shutdown() {
+		if (s3Mock != null) {
+			s3Mock.stop();
+			s3Mock = null;
+			s3 = null;
+			s3Wan = null;
+		}
+	}
+
+	private static synchronized Client s3() {
+		if (s3 == null) {
+			startS3Mock();
+			s3 = Client.s3()
+					.region("us-east-1")
+					.credentials(Credentials.of("foo", "bar"))
+					.baseUrlFactory((serviceName, region) -> "http://localhost:9090/")
+					.build();
+		}
+		return s3;
+	}
+
+	private static synchronized Client s3Wan() {
+		if (s3Wan == null) {
+			startS3Mock();
+			final S3NetworkSimulator network = new S3NetworkSimulator(new S3HttpClient(), new Random(42));
+			network.setLatency(Duration.ofMillis(20));
+			network.setJitter(Duration.ofMillis(10));
+			network.setBandwidth(80L * 1024 * 1024);
+			s3Wan = Client.s3()
+					.region("us-east-1")
+					.credentials(Credentials.of("foo", "bar"))
+					.baseUrlFactory((serviceName, region) -> "http://localhost:9090/")
+					.httpClient(network)
+					.build();
+		}
+		return s3Wan;
+	}
+
+	private static void startS3Mock() {
+		if (s3Mock == null) {
+			s3Mock = S3MockApplication.start(Map.of(S3MockApplication.PROP_SILENT, "true"));
+		}
+	}
+
+	/**
+	 * Creates a document with an id, a stored title and a body of random words.
+	 *
+	 * @param random source of randomness, seeded for repeatable runs
+	 * @param id document id
+	 * @return a document
+	 */
+	public static Document document(Random random, int id) {
+		final StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			body.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+		}
+		final Document doc = new Document();
+		doc.add(new StringField("id", String.valueOf(id), Field.Store.YES));
+		doc.add(new TextField("title", WORDS[id % WORDS.length] + " " + id, Field.Store.YES));
+		doc.add(new TextField("body", body.toString(), Field.Store.NO));
+		return doc;
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Write path benchmarks - indexing throughput and commit latency. Each invocation starts from a fresh directory
+ * which holds one small commit, so the numbers include the cost of creating new files.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexingBenchmark {
+
+	/**
+	 * The directory under test.
+	 */
+	@Param({BenchmarkDirectories.S3, BenchmarkDirectories.MMAP, BenchmarkDirectories.NIOFS})
+	public String directory;
+
+	/**
+	 * Number of documents indexed per invocation.
+	 */
+	@Param({"10000"})
+	public int docs;
+
+	private Directory dir;
+	private IndexWriter writer;
+
+	/**
+	 * Opens a fresh directory and writer, and makes an initial commit.
+	 *
+	 * @throws IOException on error
+	 */
+	@Setup(Level.Invocation)
+	public void setUp() throws IOException {
+		dir = BenchmarkDirectories.open(directory, "indexing-" + UUID.randomUUID());
+		writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()));
+		final Random random = new Random(7);
+		for (int i = 0; i < 100; i++) {
+			writer.addDocument(BenchmarkDirectories.document(random, i));
+		}
+		writer.commit();
+	}
+
+	/**
+	 * Closes the writer and deletes the directory.
+	 *
+	 * @throws IOException on error
+	 */
+	@TearDown(Level.Invocation)
+	public void tearDown() throws IOException {
+		writer.close();
+		BenchmarkDirectories.destroy(dir);
+	}
+
+	/**
+	 * Stops the S3 stand-in.
+	 */
+	@TearDown(Level.Trial)
+	public void shutdown() {
+		BenchmarkDirectories.shutdown();
+	}
+
+	/**
+	 * Indexes and commits a batch of documents.
+	 *
+	 * @return the number of documents in the index
+	 * @throws IOException on error
+	 */
+	@Benchmark
+	public int indexAndCommit() throws IOException {
+		final Random random = new Random(42);
+		for (int i = 0; i < docs; i++) {
+			writer.addDocument(BenchmarkDirectories.document(random, i));
+		}
+		writer.commit();
+		return writer.getDocStats().numDocs;
+	}
+
+	/**
+	 * Commits a small batch of documents on top of an existing commit, which is the latency paid by
+	 * near-real-time indexing with frequent commits.
+	 *
+	 * @return the sequence number of the commit
+	 * @throws IOException on error
+	 */
+	@Benchmark
+	public long commitLatency() throws IOException {
+		final Random random = new Random(42);
+		for (int i = 0; i < 100; i++) {
+			writer.addDocument(BenchmarkDirectories.document(random, i));
+		}
+		return writer.commit();
+	}
+}
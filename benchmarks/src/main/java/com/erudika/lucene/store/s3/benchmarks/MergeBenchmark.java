@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time to merge an index of ten segments down to one and commit it. Merges read every
+ * segment sequentially and write a new one, so this stresses read-ahead and multipart uploads.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MergeBenchmark {
+
+	private static final int SEGMENTS = 10;
+
+	/**
+	 * The directory under test.
+	 */
+	@Param({BenchmarkDirectories.S3, BenchmarkDirectories.MMAP, BenchmarkDirectories.NIOFS})
+	public String directory;
+
+	/**
+	 * Number of documents in the index.
+	 */
+	@Param({"50000"})
+	public int docs;
+
+	private Directory dir;
+	private IndexWriter writer;
+
+	/**
+	 * Builds an unmerged index in a fresh directory.
+	 *
+	 * @throws IOException on error
+	 */
+	@Setup(Level.Invocation)
+	public void setUp() throws IOException {
+		dir = BenchmarkDirectories.open(directory, "merge-" + UUID.randomUUID());
+		try (IndexWriter unmerged = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer())
+				.setMergePolicy(NoMergePolicy.INSTANCE))) {
+			final Random random = new Random(42);
+			for (int i = 0; i < docs; i++) {
+				unmerged.addDocument(BenchmarkDirectories.document(random, i));
+				if ((i + 1) % (docs / SEGMENTS) == 0) {
+					unmerged.commit();
+				}
+			}
+		}
+		writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()));
+	}
+
+	/**
+	 * Closes the writer and deletes the directory.
+	 *
+	 * @throws IOException on error
+	 */
+	@TearDown(Level.Invocation)
+	public void tearDown() throws IOException {
+		writer.close();
+		BenchmarkDirectories.destroy(dir);
+	}
+
+	/**
+	 * Stops the S3 stand-in.
+	 */
+	@TearDown(Level.Trial)
+	public void shutdown() {
+		BenchmarkDirectories.shutdown();
+	}
+
+	/**
+	 * Merges the index down to one segment.
+	 *
+	 * @return the sequence number of the commit
+	 * @throws IOException on error
+	 */
+	@Benchmark
+	public long forceMerge() throws IOException {
+		writer.forceMerge(1);
+		return writer.commit();
+	}
+}
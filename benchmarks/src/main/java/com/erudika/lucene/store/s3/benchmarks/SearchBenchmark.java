@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Read path benchmarks - opening a reader, term and phrase queries, and stored field retrieval.
+ * The index is built once per trial, queries run against a reader which stays open, so they measure
+ * the steady state with a warm block cache.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SearchBenchmark {
+
+	/**
+	 * The directory under test.
+	 */
+	@Param({BenchmarkDirectories.S3, BenchmarkDirectories.MMAP, BenchmarkDirectories.NIOFS})
+	public String directory;
+
+	/**
+	 * Number of documents in the index.
+	 */
+	@Param({"100000"})
+	public int docs;
+
+	private Directory dir;
+	private DirectoryReader reader;
+	private IndexSearcher searcher;
+	private TermQuery termQuery;
+	private PhraseQuery phraseQuery;
+	private int[] docIds;
+
+	/**
+	 * Builds the index and opens a reader.
+	 *
+	 * @throws IOException on error
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = BenchmarkDirectories.open(directory, "search-" + UUID.randomUUID());
+		try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+			final Random random = new Random(42);
+			for (int i = 0; i < docs; i++) {
+				writer.addDocument(BenchmarkDirectories.document(random, i));
+			}
+			writer.forceMerge(1);
+		}
+		reader = DirectoryReader.open(dir);
+		searcher = new IndexSearcher(reader);
+		termQuery = new TermQuery(new Term("body", "segment"));
+		phraseQuery = new PhraseQuery(1, "body", "lucene", "search");
+		final Random random = new Random(7);
+		docIds = new int[100];
+		for (int i = 0; i < docIds.length; i++) {
+			docIds[i] = random.nextInt(reader.maxDoc());
+		}
+	}
+
+	/**
+	 * Closes the reader, deletes the index and stops the S3 stand-in.
+	 *
+	 * @throws IOException on error
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		reader.close();
+		BenchmarkDirectories.destroy(dir);
+		BenchmarkDirectories.shutdown();
+	}
+
+	/**
+	 * Opens and closes a reader on the latest commit.
+	 *
+	 * @return the number of documents
+	 * @throws IOException on error
+	 */
+	@Benchmark
+	public int openReader() throws IOException {
+		try (DirectoryReader r = DirectoryReader.open(dir)) {
+			return r.numDocs();
+		}
+	}
+
+	/**
+	 * Runs a single term query.
+	 *
+	 * @return the top hits
+	 * @throws IOException on error
+	 */
+	@Benchmark
+	public TopDocs termQuery() throws IOException {
+		return searcher.search(termQuery, 10);
+	}
+
+	/**
+	 * Runs a sloppy phrase query, which also reads positions.
+	 *
+	 * @return the top hits
+	 * @throws IOException on error
+	 */
+	@Benchmark
+	public TopDocs phraseQuery() throws IOException {
+		return searcher.search(phraseQuery, 10);
+	}
+
+	/**
+	 * Retrieves the stored fields of the top hits of a term query and of random documents.
+	 *
+	 * @return the number of stored field values read
+	 * @throws IOException on error
+	 */
+	@Benchmark
+	public int storedFields() throws IOException {
+		final StoredFields fields = reader.storedFields();
+		int read = 0;
+		for (ScoreDoc hit : searcher.search(termQuery, 10).scoreDocs) {
+			read += fields.document(hit.doc).getFields().size();
+		}
+		for (int docId : docIds) {
+			final Document doc = fields.document(docId);
+			read += doc.getFields().size();
+		}
+		return read;
+	}
+}
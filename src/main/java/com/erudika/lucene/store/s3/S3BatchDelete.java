@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import com.github.davidmoten.aws.lw.client.HttpMethod;
+import com.github.davidmoten.aws.lw.client.xml.XmlElement;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * Deletes objects with multi-object delete requests, up to {@link S3Directory#DELETE_BATCH_SIZE} keys per request.
+ * If there are more objects than fit in one request, the requests are sent in parallel on the directory's executor
+ * and by the calling thread.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class S3BatchDelete {
+
+	private S3BatchDelete() {
+	}
+
+	/**
+	 * An object key with an optional version ID.
+	 */
+	record ObjectVersion(String key, String versionId) {
+	}
+
+	/**
+	 * Deletes objects from the bucket of a directory.
+	 *
+	 * @param directory the directory
+	 * @param objects full object keys, with optional version IDs
+	 * @return the keys which could not be deleted
+	 * @throws IOException if a delete request failed
+	 */
+	static Set<String> delete(final S3Directory directory, final List<ObjectVersion> objects) throws IOException {
+		if (objects.size() <= S3Directory.DELETE_BATCH_SIZE) {
+			return deleteBatch(directory, objects);
+		}
+		final List<CompletableFuture<Set<String>>> batches = new ArrayList<>();
+		for (int i = 0; i < objects.size(); i += S3Directory.DELETE_BATCH_SIZE) {
+			batches.add(new CompletableFuture<>());
+		}
+		final AtomicInteger next = new AtomicInteger();
+		// the calling thread sends batches too, so it only waits for batches which are being sent by the executor,
+		// never for tasks queued behind it, e.g. when it runs on the executor itself
+		final Runnable sender = () -> {
+			for (int i = next.getAndIncrement(); i < batches.size(); i = next.getAndIncrement()) {
+				final int from = i * S3Directory.DELETE_BATCH_SIZE;
+				final List<ObjectVersion> batch = objects.subList(from, Math.min(objects.size(), from + S3Directory.DELETE_BATCH_SIZE));
+				try {
+					batches.get(i).complete(deleteBatch(directory, batch));
+				} catch (IOException | RuntimeException e) {
+					batches.get(i).completeExceptionally(e);
+				}
+			}
+		};
+		try {
+			for (int i = 1; i < batches.size(); i++) {
+				directory.getExecutor().execute(sender);
+			}
+		} catch (@SuppressWarnings("unused") RejectedExecutionException e) {
+			// the remaining batches are sent by the calling thread
+		}
+		sender.run();
+		final Set<String> failed = new LinkedHashSet<>();
+		IOException error = null;
+		for (CompletableFuture<Set<String>> batch : batches) {
+			try {
+				failed.addAll(batch.get());
+			} catch (InterruptedException e) {
+				throw new ThreadInterruptedException(e);
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+				error = cause instanceof IOException ioe ? ioe : new S3Directory.S3StoreException("Failed to delete objects", cause);
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+		return failed;
+	}
+
+	private static Set<String> deleteBatch(final S3Directory directory, final List<ObjectVersion> objects) throws IOException {
+		final StringBuilder xml = new StringBuilder("<Delete xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+		xml.append("<Quiet>true</Quiet>");
+		for (ObjectVersion object : objects) {
+			xml.append("<Object><Key>").append(S3Directory.escapeXml(object.key())).append("</Key>");
+			if (object.versionId() != null) {
+				xml.append("<VersionId>").append(S3Directory.escapeXml(object.versionId())).append("</VersionId>");
+			}
+			xml.append("</Object>");
+		}
+		xml.append("</Delete>");
+		final byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+		final Set<String> failed = new LinkedHashSet<>();
+		try (S3RequestTimer timer = directory.time(S3Operation.DELETE, null, null)) {
+			XmlElement res = directory.getS3().path(directory.getBucket())
+					.query("delete")
+					.header("Content-MD5", S3Directory.md5AsBase64(body))
+					.method(HttpMethod.POST)
+					.requestBody(body)
+					.responseAsXml();
+			timer.success();
+			for (XmlElement error : res.childrenWithName("Error")) {
+				failed.add(error.content("Key"));
+			}
+		} catch (Exception e) {
+			throw new S3Directory.S3StoreException("Failed to delete " + objects.size() + " objects", e);
+		}
+		return failed;
+	}
+}
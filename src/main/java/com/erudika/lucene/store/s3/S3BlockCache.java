@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * A read-through cache of fixed-size file blocks used by {@link S3Directory}.
+ * Each file is split into blocks of {@link #getBlockSize()} bytes (the last block may be shorter)
+ * and each block is identified by a file key and its block index.
+ * Implementations must be thread-safe.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public interface S3BlockCache extends Closeable {
+
+	/**
+	 * Returns the size of a cache block.
+	 *
+	 * @return block size in bytes
+	 */
+	int getBlockSize();
+
+	/**
+	 * Copies <code>dst.remaining()</code> bytes of a cached block into the destination buffer.
+	 *
+	 * @param key the file key
+	 * @param block the block index
+	 * @param offset the offset within the block to start copying from
+	 * @param dst the destination buffer
+	 * @return <code>true</code> if the block was found and copied, <code>false</code> on a cache miss
+	 */
+	boolean read(String key, long block, int offset, ByteBuffer dst);
+
+	/**
+	 * Stores a block in the cache. The bytes between the position and the limit of the buffer are stored,
+	 * the buffer itself is not modified.
+	 *
+	 * @param key the file key
+	 * @param block the block index
+	 * @param data the contents of the block
+	 */
+	void put(String key, long block, ByteBuffer data);
+
+	/**
+	 * Stores a block in the cache, unless the blocks of the file were invalidated after the given generation, i.e.
+	 * the block may have been read from a previous version of the file. The default implementation ignores
+	 * the generation.
+	 *
+	 * @param key the file key
+	 * @param block the block index
+	 * @param data the contents of the block
+	 * @param generation the generation of the file when the block was requested, see {@link #generation(String)}
+	 */
+	default void put(String key, long block, ByteBuffer data, long generation) {
+		put(key, block, data);
+	}
+
+	/**
+	 * Returns the generation of the cached blocks of a file, which changes whenever they are invalidated or found
+	 * to be stale. A block loader reads it before sending its request. The default implementation returns 0.
+	 *
+	 * @param key the file key
+	 * @return the current generation
+	 */
+	default long generation(String key) {
+		return 0L;
+	}
+
+	/**
+	 * Checks if a block is cached.
+	 *
+	 * @param key the file key
+	 * @param block the block index
+	 * @return <code>true</code> if the block is in the cache
+	 */
+	boolean contains(String key, long block);
+
+	/**
+	 * Removes all cached blocks of a file.
+	 *
+	 * @param key the file key
+	 */
+	void invalidate(String key);
+
+	/**
+	 * Returns a buffer of {@link #getBlockSize()} bytes into which the given block is loaded before it is put
+	 * in the cache. The buffer must be handed over with {@link #putBorrowed(String, long, ByteBuffer, long)},
+	 * or given back with {@link #returnBuffer(String, long, ByteBuffer)} if the block could not be loaded.
+	 * Caches which keep blocks in memory can lend out recycled block buffers of the part the block will be stored
+	 * in, so that loading a block allocates nothing. The default implementation allocates a new heap buffer.
+	 *
+	 * @param key the file key
+	 * @param block the block index
+	 * @return an empty buffer
+	 */
+	default ByteBuffer borrowBuffer(String key, long block) {
+		return ByteBuffer.allocate(getBlockSize());
+	}
+
+	/**
+	 * Gives back a buffer returned by {@link #borrowBuffer(String, long)} without storing it.
+	 * The caller must not use it afterwards. The default implementation does nothing.
+	 *
+	 * @param key the file key
+	 * @param block the block index
+	 * @param buffer the buffer
+	 */
+	default void returnBuffer(String key, long block, ByteBuffer buffer) {
+	}
+
+	/**
+	 * Stores a block loaded into a buffer returned by {@link #borrowBuffer(String, long)} and takes the buffer
+	 * back. The cache may keep the buffer itself as the block instead of copying it, so the caller must not use
+	 * it afterwards. The default implementation stores a copy with {@link #put(String, long, ByteBuffer, long)}
+	 * and then calls {@link #returnBuffer(String, long, ByteBuffer)}.
+	 *
+	 * @param key the file key
+	 * @param block the block index
+	 * @param buffer the borrowed buffer holding the contents of the block
+	 * @param generation the generation of the file when the block was requested, see {@link #generation(String)}
+	 */
+	default void putBorrowed(String key, long block, ByteBuffer buffer, long generation) {
+		try {
+			put(key, block, buffer, generation);
+		} finally {
+			returnBuffer(key, block, buffer);
+		}
+	}
+
+	/**
+	 * Makes sure that the cached blocks of a file belong to the given version of the object, e.g. its ETag,
+	 * and removes them if they belong to another one. Called when a file is opened for reading. A cache which
+	 * outlives the directory, e.g. one which is persisted on disk, must implement it, because a file may have been
+	 * rewritten under the same name in the meantime. The default implementation does nothing.
+	 *
+	 * @param key the file key
+	 * @param version the current version of the object
+	 */
+	default void validate(String key, String version) {
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * Loads file blocks from S3 into the block cache of a directory, either synchronously or in the background.
+ * All running fetches are tracked by file and block, so that concurrent reads of the same block share
+ * a single request. Blocks are read into buffers lent out by the cache, so a miss doesn't allocate memory.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class S3BlockFetcher {
+
+	private final ConcurrentHashMap<BlockKey, CompletableFuture<Void>> inflight = new ConcurrentHashMap<>();
+	private final AtomicInteger background = new AtomicInteger();
+	private final S3Directory directory;
+
+	S3BlockFetcher(final S3Directory directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Reads part of a block which is not in the cache into the destination buffer. Concurrent fetches of the same
+	 * block are coalesced - the first reader sends the request in its own thread and the others, as well as reads
+	 * of a block which is being prefetched, wait for the running request and read the block from the cache.
+	 * If the shared request fails, or the block is evicted before it can be read, the reader loads it on its own.
+	 *
+	 * @param offset the offset within the block to start copying from
+	 * @param dst the destination buffer
+	 */
+	void fetch(final S3BlockCache cache, final String name, final long block, final IOContext context,
+			final int offset, final ByteBuffer dst) throws IOException {
+		final String key = directory.getCacheKey(name);
+		final BlockKey blockKey = new BlockKey(key, block);
+		final CompletableFuture<Void> future = new CompletableFuture<>();
+		final CompletableFuture<Void> pending = inflight.putIfAbsent(blockKey, future);
+		if (pending == null) {
+			loadShared(cache, name, key, block, context, blockKey, future, offset, dst);
+			return;
+		}
+		if (await(pending) && cache.read(key, block, offset, dst)) {
+			return;
+		}
+		load(cache, name, key, block, context, true, offset, dst);
+	}
+
+	private static boolean await(final CompletableFuture<Void> pending) {
+		try {
+			pending.get();
+			return true;
+		} catch (InterruptedException e) {
+			throw new ThreadInterruptedException(e);
+		} catch (@SuppressWarnings("unused") ExecutionException e) {
+			return false;
+		}
+	}
+
+	private void loadShared(final S3BlockCache cache, final String name, final String key, final long block,
+			final IOContext context, final BlockKey blockKey, final CompletableFuture<Void> future,
+			final int offset, final ByteBuffer dst) throws IOException {
+		try {
+			// the block may have been cached by a request which finished just before this one was registered
+			if (!cache.read(key, block, offset, dst)) {
+				load(cache, name, key, block, context, true, offset, dst);
+			}
+			future.complete(null);
+		} catch (IOException | RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			inflight.remove(blockKey, future);
+		}
+	}
+
+	/**
+	 * Starts fetching a block in the background, unless it is already cached or being fetched.
+	 * The request is skipped if too many prefetches are already running.
+	 */
+	void prefetch(final S3BlockCache cache, final String name, final long block, final IOContext context) {
+		final String key = directory.getCacheKey(name);
+		if (cache.contains(key, block) || background.get() >= directory.getMaxPrefetchRequests()) {
+			return;
+		}
+		schedule(cache, name, key, block, context);
+	}
+
+	/**
+	 * Starts fetching a block in the background, regardless of the number of requests already running.
+	 *
+	 * @return the running request, or a completed future if the block is cached
+	 */
+	CompletableFuture<Void> fetchAsync(final S3BlockCache cache, final String name, final long block,
+			final IOContext context) {
+		final String key = directory.getCacheKey(name);
+		if (cache.contains(key, block)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		final CompletableFuture<Void> future = schedule(cache, name, key, block, context);
+		return future == null ? pending(name, block) : future;
+	}
+
+	/**
+	 * Returns the running request for a block, or a completed future if the block isn't being fetched.
+	 */
+	CompletableFuture<Void> pending(final String name, final long block) {
+		final CompletableFuture<Void> pending = inflight.get(new BlockKey(directory.getCacheKey(name), block));
+		return pending == null ? CompletableFuture.completedFuture(null) : pending;
+	}
+
+	/**
+	 * Checks if a block can be read without sending a new request, i.e. it is cached or being fetched.
+	 */
+	boolean isAvailable(final S3BlockCache cache, final String key, final long block) {
+		return cache.contains(key, block) || inflight.containsKey(new BlockKey(key, block));
+	}
+
+	/**
+	 * Submits a fetch to the executor, unless the block is already being fetched.
+	 *
+	 * @return the new request, or <code>null</code> if another request for the block is running
+	 */
+	private CompletableFuture<Void> schedule(final S3BlockCache cache, final String name, final String key,
+			final long block, final IOContext context) {
+		final BlockKey blockKey = new BlockKey(key, block);
+		final CompletableFuture<Void> future = new CompletableFuture<>();
+		if (inflight.putIfAbsent(blockKey, future) != null) {
+			return null;
+		}
+		background.incrementAndGet();
+		try {
+			directory.getExecutor().execute(() -> {
+				try {
+					load(cache, name, key, block, context, false, 0, null);
+					future.complete(null);
+				} catch (Throwable t) {
+					future.completeExceptionally(t);
+				} finally {
+					inflight.remove(blockKey, future);
+					background.decrementAndGet();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inflight.remove(blockKey, future);
+			background.decrementAndGet();
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Reads a block into a buffer borrowed from the cache, copies the requested part into the destination buffer,
+	 * if there is one, and hands the buffer over to the cache. Only reads which a reader waits for may be hedged,
+	 * background reads run on the executor, which a hedged read needs for its own requests.
+	 */
+	private void load(final S3BlockCache cache, final String name, final String key, final long block,
+			final IOContext context, final boolean foreground, final int offset, final ByteBuffer dst)
+			throws IOException {
+		// a block read from an object which is replaced in the meantime is not cached
+		final long generation = cache.generation(key);
+		final ByteBuffer data = cache.borrowBuffer(key, block);
+		boolean loaded = false;
+		try {
+			data.limit(blockLength(cache, name, block));
+			if (foreground) {
+				directory.readRange(name, block * cache.getBlockSize(), data, context);
+			} else {
+				directory.readRangeOnce(name, block * cache.getBlockSize(), data, context);
+			}
+			data.flip();
+			// the cache owns the buffer once the block is stored, so the requested part is copied first
+			if (dst != null) {
+				dst.put(data.slice(offset, dst.remaining()));
+			}
+			loaded = true;
+		} finally {
+			if (!loaded) {
+				cache.returnBuffer(key, block, data);
+			}
+		}
+		cache.putBorrowed(key, block, data, generation);
+	}
+
+	private int blockLength(final S3BlockCache cache, final String name, final long block) throws IOException {
+		final long len = Math.min(cache.getBlockSize(), directory.fileLength(name) - block * cache.getBlockSize());
+		if (len <= 0) {
+			throw new EOFException("read past EOF: " + name + ", block " + block);
+		}
+		return (int) len;
+	}
+
+	private record BlockKey(String key, long block) {
+	}
+}
@@ -20,6 +20,7 @@ package com.erudika.lucene.store.s3;
 import com.github.davidmoten.aws.lw.client.Client;
 import com.github.davidmoten.aws.lw.client.Client.Builder;
 import com.github.davidmoten.aws.lw.client.Credentials;
+import com.github.davidmoten.aws.lw.client.HttpClient;
 import com.github.davidmoten.aws.lw.client.HttpMethod;
 import com.github.davidmoten.aws.lw.client.Request;
 import com.github.davidmoten.aws.lw.client.Response;
@@ -29,33 +30,38 @@ import com.github.davidmoten.aws.lw.client.xml.builder.Xml;
 import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
-import java.util.zip.CRC32;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 import org.apache.lucene.index.IndexFileNames;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.store.AlreadyClosedException;
-import org.apache.lucene.store.BufferedIndexInput;
-import org.apache.lucene.store.ByteBuffersDataOutput;
-import org.apache.lucene.store.ByteBuffersIndexOutput;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
@@ -63,6 +69,7 @@ import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.store.Lock;
 import org.apache.lucene.store.LockFactory;
 import org.apache.lucene.store.LockObtainFailedException;
+import org.apache.lucene.util.ThreadInterruptedException;
 
 /**
  * A S3 based implementation of a Lucene <code>Directory</code> allowing the storage of a Lucene index within S3.
@@ -73,7 +80,78 @@ import org.apache.lucene.store.LockObtainFailedException;
  * Based on JdbcDirectory by Shay Banon (kimchy)
  */
 public class S3Directory extends Directory {
-	private final ConcurrentHashMap<String, Long> fileSizes = new ConcurrentHashMap<>();
+
+	/**
+	 * Default number of threads used for background S3 requests.
+	 */
+	public static final int DEFAULT_IO_THREADS = 16;
+
+	/**
+	 * Default maximum number of running block prefetches.
+	 */
+	public static final int DEFAULT_MAX_PREFETCH_REQUESTS = 64;
+
+	/**
+	 * Default size of a read-ahead request for sequential reads - 8 MB.
+	 */
+	public static final int DEFAULT_READ_AHEAD_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * Default number of read-ahead requests per input.
+	 */
+	public static final int DEFAULT_READ_AHEAD_REQUESTS = 2;
+
+	/**
+	 * Default maximum number of bytes held by all read-ahead windows of a directory - 64 MB.
+	 */
+	public static final int DEFAULT_MAX_READ_AHEAD_BYTES = 64 * 1024 * 1024;
+
+	/**
+	 * Minimum part size of a multipart upload allowed by S3 - 5 MB.
+	 */
+	public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+	/**
+	 * Default part size of a multipart upload - 8 MB.
+	 */
+	public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * Default number of parts of a single file uploaded at the same time.
+	 */
+	public static final int DEFAULT_UPLOAD_CONCURRENCY = 4;
+
+	/**
+	 * Default maximum number of bytes of all parts of a directory being uploaded at the same time - 256 MB.
+	 */
+	public static final int DEFAULT_MAX_PART_BUFFER_BYTES = 256 * 1024 * 1024;
+
+	/**
+	 * Default part size of a multipart server-side copy - 64 MB. Smaller objects are copied with a single request.
+	 */
+	public static final int DEFAULT_COPY_PART_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * Default number of parts of a single object copied at the same time.
+	 */
+	public static final int DEFAULT_COPY_CONCURRENCY = 8;
+
+	/**
+	 * Default maximum number of files being uploaded in the background.
+	 */
+	public static final int DEFAULT_MAX_PENDING_UPLOADS = 32;
+
+	/**
+	 * Maximum number of keys in a multi-object delete request.
+	 */
+	public static final int DELETE_BATCH_SIZE = 1000;
+
+	/**
+	 * Name of the object which maps renamed files to their physical keys, when virtual renames are enabled.
+	 */
+	public static final String MANIFEST_NAME = "s3directory.manifest";
+
+	private final ConcurrentHashMap<String, S3FileInfo> files = new ConcurrentHashMap<>();
 
 	private String bucket;
 
@@ -81,8 +159,79 @@ public class S3Directory extends Directory {
 
 	private Client s3;
 
+	private HttpClient httpClient;
+
 	private LockFactory lockFactory;
 
+	private S3BlockCache blockCache;
+
+	private final S3BlockFetcher blockFetcher = new S3BlockFetcher(this);
+
+	private final S3WarmUp warmUp = new S3WarmUp(this);
+
+	private boolean warmUpOnOpen = false;
+
+	private volatile S3HedgingPolicy hedgingPolicy;
+
+	private volatile S3FetchSizePolicy fetchSizePolicy = new S3FetchSizePolicy();
+
+	private int maxPrefetchRequests = DEFAULT_MAX_PREFETCH_REQUESTS;
+
+	private int readAheadSize = DEFAULT_READ_AHEAD_SIZE;
+
+	private int readAheadRequests = DEFAULT_READ_AHEAD_REQUESTS;
+
+	private int maxReadAheadBytes = DEFAULT_MAX_READ_AHEAD_BYTES;
+
+	private volatile S3ReadAheadBuffers readAheadBuffers = new S3ReadAheadBuffers(DEFAULT_MAX_READ_AHEAD_BYTES);
+
+	private int partSize = DEFAULT_PART_SIZE;
+
+	private int uploadConcurrency = DEFAULT_UPLOAD_CONCURRENCY;
+
+	private volatile S3PartBuffers partBuffers = new S3PartBuffers(DEFAULT_MAX_PART_BUFFER_BYTES);
+
+	private int copyPartSize = DEFAULT_COPY_PART_SIZE;
+
+	private int copyConcurrency = DEFAULT_COPY_CONCURRENCY;
+
+	private Path spillDirectory;
+
+	private boolean asyncUploads = false;
+
+	private final ConcurrentHashMap<String, CompletableFuture<Void>> pendingUploads = new ConcurrentHashMap<>();
+
+	/**
+	 * Counts the files written or renamed by this directory, see {@link S3FileInfo#sequence()}.
+	 */
+	private final AtomicLong localWrites = new AtomicLong();
+
+	private Semaphore pendingUploadPermits = new Semaphore(DEFAULT_MAX_PENDING_UPLOADS);
+
+	private final S3PendingDeletes pendingDeletes = new S3PendingDeletes(this);
+
+	private final List<S3DirectoryListener> listeners = new CopyOnWriteArrayList<>();
+
+	private ExecutorService executor;
+
+	private boolean ownsExecutor;
+
+	private S3DirectoryPool.Tenant tenant;
+
+	private int ioThreads = DEFAULT_IO_THREADS;
+
+	private boolean virtualThreads = false;
+
+	private boolean localManifest = false;
+
+	private long manifestRefreshMillis = 0L;
+
+	private volatile long manifestLoadedAt = -1L;
+
+	private LongSupplier manifestClock = System::currentTimeMillis;
+
+	private S3NameMapping nameMapping;
+
 	private boolean closed = false;
 
 	/**
@@ -126,6 +275,33 @@ public class S3Directory extends Directory {
 				(LockFactory) S3LockFactory.INSTANCE);
 	}
 
+	/**
+	 * Creates a new S3 directory which sends requests with the given HTTP transport, e.g. {@link S3HttpClient}.
+	 *
+	 * @param bucketName The bucket name
+	 * @param pathName The S3 path (path prefix) within the bucket
+	 * @param s3Region The AWS region
+	 * @param s3AccessKey The AWS access key ID
+	 * @param s3Secret The AWS secret key
+	 * @param httpClient The HTTP transport used by the S3 client
+	 */
+	public S3Directory(
+			final String bucketName,
+			final String pathName,
+			String s3Region,
+			String s3AccessKey,
+			String s3Secret,
+			HttpClient httpClient) {
+		this.httpClient = httpClient;
+		initialize(
+				bucketName,
+				pathName,
+				s3Region,
+				s3AccessKey,
+				s3Secret,
+				(LockFactory) S3LockFactory.INSTANCE);
+	}
+
 	/**
 	 * Creates a new S3 directory.
 	 *
@@ -170,13 +346,15 @@ public class S3Directory extends Directory {
 		if (!s3AccessKey.isBlank() && !s3SecretKey.isBlank()) {
 			Builder b = Client.s3();
 			if (!s3Region.isBlank()) {
-				this.s3 = b.region(s3Region).credentials(Credentials.of(s3AccessKey, s3SecretKey)).build();
+				var creds = b.region(s3Region).credentials(Credentials.of(s3AccessKey, s3SecretKey));
+				this.s3 = (httpClient == null ? creds : creds.httpClient(httpClient)).build();
 			} else {
-				this.s3
-						= b.regionFromEnvironment().credentials(Credentials.of(s3AccessKey, s3SecretKey)).build();
+				var creds = b.regionFromEnvironment().credentials(Credentials.of(s3AccessKey, s3SecretKey));
+				this.s3 = (httpClient == null ? creds : creds.httpClient(httpClient)).build();
 			}
 		} else {
-			this.s3 = Client.s3().defaultClient().build();
+			var creds = Client.s3().defaultClient();
+			this.s3 = (httpClient == null ? creds : creds.httpClient(httpClient)).build();
 		}
 		this.bucket = bucket.toLowerCase(Locale.ENGLISH);
 		this.path = path;
@@ -189,7 +367,11 @@ public class S3Directory extends Directory {
 	 * @return <code>true</code> if the S3 bucket exists, <code>false</code> otherwise
 	 */
 	public boolean bucketExists() {
-		return s3.path(bucket).method(HttpMethod.HEAD).response().exists();
+		try (S3RequestTimer timer = time(S3Operation.HEAD, null, null)) {
+			final boolean exists = s3.path(bucket).method(HttpMethod.HEAD).response().exists();
+			timer.success();
+			return exists;
+		}
 	}
 
 	/**
@@ -201,11 +383,17 @@ public class S3Directory extends Directory {
 			emptyBucket();
 			if (fileExists(IndexWriter.WRITE_LOCK_NAME)) {
 				lockFactory.obtainLock(this, bucket).close();
-				s3.path(bucket, getPath() + IndexWriter.WRITE_LOCK_NAME)
-						.method(HttpMethod.DELETE)
-						.execute();
+				try (S3RequestTimer timer = time(S3Operation.DELETE, IndexWriter.WRITE_LOCK_NAME, null)) {
+					s3.path(bucket, getPath() + IndexWriter.WRITE_LOCK_NAME)
+							.method(HttpMethod.DELETE)
+							.execute();
+					timer.success();
+				}
+			}
+			try (S3RequestTimer timer = time(S3Operation.DELETE, null, null)) {
+				s3.path(bucket).method(HttpMethod.DELETE).execute();
+				timer.success();
 			}
-			s3.path(bucket).method(HttpMethod.DELETE).execute();
 		}
 	}
 
@@ -220,28 +408,36 @@ public class S3Directory extends Directory {
 							.e("LocationConstraint")
 							.content(s3.region().get())
 							.toString();
-			s3.path(bucket)
-					.region(s3.region().get())
-					.method(HttpMethod.PUT)
-					.requestBody(xml)
-					.header("x-amz-bucket-object-lock-enabled", "true")
-					.execute();
+			try (S3RequestTimer timer = time(S3Operation.PUT, null, null)) {
+				s3.path(bucket)
+						.region(s3.region().get())
+						.method(HttpMethod.PUT)
+						.requestBody(xml)
+						.header("x-amz-bucket-object-lock-enabled", "true")
+						.execute();
+				timer.success();
+			}
 			while (!bucketExists()) {
 				// do nothing
 				System.currentTimeMillis();
 			}
 		}
 		// initialize the write.lock file immediately after bucket creation
-		s3.path(bucket, getPath() + IndexWriter.WRITE_LOCK_NAME)
-				.method(HttpMethod.PUT)
-				.requestBody("")
-				.execute();
+		try (S3RequestTimer timer = time(S3Operation.PUT, IndexWriter.WRITE_LOCK_NAME, null)) {
+			s3.path(bucket, getPath() + IndexWriter.WRITE_LOCK_NAME)
+					.method(HttpMethod.PUT)
+					.requestBody("")
+					.execute();
+			timer.success();
+		}
 	}
 
 	/**
 	 * Empties a bucket on S3.
 	 */
 	public void emptyBucket() {
+		// files deleted again after the listing started may have new objects which were not listed
+		final long listedGeneration = pendingDeletes.generation();
 		final LinkedHashMap<String, Set<String>> versions = new LinkedHashMap<>();
 		Optional<String> keyMarker = Optional.empty();
 		Optional<String> versionIdMarker = Optional.empty();
@@ -253,7 +449,11 @@ public class S3Directory extends Directory {
 			keyMarker.ifPresent(c -> req.query("key-marker", c));
 			versionIdMarker.ifPresent(c -> req.query("version-id-marker", c));
 
-			XmlElement res = req.responseAsXml();
+			final XmlElement res;
+			try (S3RequestTimer timer = time(S3Operation.LIST, null, null)) {
+				res = req.responseAsXml();
+				timer.success();
+			}
 
 			for (XmlElement s3Object : res.childrenWithName("Version")) {
 				String key = s3Object.content("Key");
@@ -276,14 +476,37 @@ public class S3Directory extends Directory {
 			}
 		} while (keyMarker.isPresent());
 
+		final List<S3BatchDelete.ObjectVersion> objects = new ArrayList<>();
 		for (String key : versions.keySet()) {
 			for (String ver : versions.get(key)) {
-				s3.path(bucket, getPath() + key)
-						.query("versionId", ver)
-						.method(HttpMethod.DELETE)
-						.execute();
+				objects.add(new S3BatchDelete.ObjectVersion(key, ver));
+			}
+		}
+		Set<String> failed;
+		try {
+			failed = S3BatchDelete.delete(this, objects);
+		} catch (@SuppressWarnings("unused") IOException e) {
+			failed = versions.keySet();
+		}
+		// keys which could not be deleted are left in the bucket, and files which were pending deletion stay pending
+		final Set<String> notDeleted = failed;
+		pendingDeletes.removeDeleted(notDeleted, listedGeneration);
+		for (String key : versions.keySet()) {
+			if (notDeleted.contains(key)) {
+				continue;
+			}
+			String name = key.startsWith(getPath()) ? key.substring(getPath().length()) : key;
+			files.remove(name);
+			if (blockCache != null) {
+				blockCache.invalidate(bucket + "/" + key);
+			}
+		}
+		if (nameMapping != null) {
+			try {
+				nameMapping.load();
+			} catch (@SuppressWarnings("unused") IOException e) {
+				// the manifest was deleted along with the files
 			}
-			fileSizes.remove(key);
 		}
 	}
 
@@ -293,21 +516,34 @@ public class S3Directory extends Directory {
 	 * @param name the name of the index file
 	 */
 	private void forceDeleteFile(final String name) {
-		try {
-			s3.path(bucket, getPath() + name).method(HttpMethod.DELETE).execute();
+		try (S3RequestTimer timer = time(S3Operation.DELETE, name, null)) {
+			s3.path(bucket, getKey(name)).method(HttpMethod.DELETE).execute();
+			timer.success();
 		} catch (@SuppressWarnings("unused") Exception e) {
 		}
 	}
 
 	/**
-	 * Checks if a file exists on S3.
+	 * Checks if a file exists on S3. With the local manifest enabled, the check doesn't send any requests.
 	 *
 	 * @param name the name of the index file
 	 * @return true if file exists
 	 */
 	public boolean fileExists(final String name) {
-		try {
-			return s3.path(bucket, getPath() + name).method(HttpMethod.HEAD).exists();
+		if (pendingUploads.containsKey(name)) {
+			return true;
+		}
+		if (pendingDeletes.contains(name) || isHidden(name)) {
+			return false;
+		}
+		if (localManifest) {
+			loadManifest();
+			return getFiles().containsKey(name);
+		}
+		try (S3RequestTimer timer = time(S3Operation.HEAD, name, null)) {
+			final boolean exists = s3.path(bucket, getKey(name)).method(HttpMethod.HEAD).exists();
+			timer.success();
+			return exists;
 		} catch (@SuppressWarnings("unused") Exception e) {
 			return false;
 		}
@@ -320,31 +556,157 @@ public class S3Directory extends Directory {
 	 * @return timestamp in milliseconds
 	 */
 	public long fileModified(final String name) {
+		final S3FileInfo info = getFileInfo(name);
+		return info == null ? 0L : info.lastModified();
+	}
+
+	/**
+	 * Returns the ETag of a file, as reported by the last listing or HEAD request.
+	 *
+	 * @param name index file name
+	 * @return the ETag or <code>null</code> if the file doesn't exist or was just written by this directory
+	 */
+	public String fileETag(final String name) {
+		final S3FileInfo info = getFileInfo(name);
+		return info == null ? null : info.eTag();
+	}
+
+	/**
+	 * Returns the cached metadata of a file, sending a HEAD request on a cache miss.
+	 *
+	 * @return the metadata or <code>null</code> if the file doesn't exist
+	 */
+	private S3FileInfo getFileInfo(final String name) {
+		if (isHidden(name)) {
+			return null;
+		}
 		try {
-			Response res = s3.path(bucket, getPath() + name).method(HttpMethod.HEAD).response();
-			return LocalDateTime.parse(
-					res.headers().getOrDefault("Last-Modified", List.of("")).stream()
-							.findFirst()
-							.orElse(""))
-					.toInstant(ZoneOffset.UTC)
-					.toEpochMilli();
+			return getFiles().computeIfAbsent(name, n -> {
+				try (S3RequestTimer timer = time(S3Operation.HEAD, n, null)) {
+					Response res = s3.path(bucket, getKey(n)).method(HttpMethod.HEAD).response();
+					timer.success();
+					return res.statusCode() / 100 == 2 ? S3FileInfo.fromHeaders(res.headers()) : null;
+				}
+			});
 		} catch (@SuppressWarnings("unused") Exception e) {
-			return 0L;
+			return null;
 		}
 	}
 
-	private void renameFile(final String from, final String to) throws FileNotFoundException {
-		s3.path(bucket, getPath() + to)
-				.header("x-amz-copy-source", "/" + bucket + "/" + getPath() + from)
-				.method(HttpMethod.PUT)
-				.execute();
-		getFileSizes().put(to, getFileSizes().remove(from));
+	private void renameFile(final String from, final String to) throws IOException {
+		S3MultipartUpload.copy(this, bucket, getKey(from), fileLength(from), to);
+		final S3FileInfo info = getFiles().get(from);
 		deleteFile(from);
+		getFiles().remove(from);
+		if (info != null) {
+			getFiles().put(to, info.withSequence(localWrites.incrementAndGet()));
+		}
+		invalidateCache(to);
+	}
+
+	/**
+	 * Copies a file from another directory. Files of another {@link S3Directory} in the same bucket, or using
+	 * the same client, are copied server-side, without transferring their contents through this JVM.
+	 */
+	@Override
+	public void copyFrom(final Directory from, final String src, final String dest, final IOContext context)
+			throws IOException {
+		if (!(from instanceof S3Directory source) || (source.getS3() != s3 && !source.getBucket().equals(bucket))) {
+			super.copyFrom(from, src, dest, context);
+			return;
+		}
+		source.awaitUpload(src);
+		final S3FileInfo info = source.pendingDeletes.contains(src) ? null : source.getFileInfo(src);
+		if (info == null) {
+			throw new FileNotFoundException("File " + src + " not found.");
+		}
+		if (!pendingDeletes.cancel(dest) && fileExists(dest)) {
+			throw new FileAlreadyExistsException("File " + dest + " already exists.");
+		}
+		if (nameMapping != null) {
+			nameMapping.assign(dest);
+		}
+		invalidateCache(dest);
+		S3MultipartUpload.copy(this, source.getBucket(), source.getKey(src), info.length(), dest);
+		setFileLength(dest, info.length());
 	}
 
+	/**
+	 * Renames a file by pointing its new name at the same physical object, without copying it.
+	 * The mapping is persisted before this method returns.
+	 */
+	private void renameVirtual(final String from, final String to) throws IOException {
+		if (isHidden(from) || (!getFiles().containsKey(from) && !fileExists(from))) {
+			throw new FileNotFoundException("File " + from + " not found.");
+		}
+		if (getFiles().containsKey(to)) {
+			deleteFile(to);
+		}
+		nameMapping.rename(from, to);
+		final S3FileInfo info = getFiles().remove(from);
+		if (info != null) {
+			getFiles().put(to, info.withSequence(localWrites.incrementAndGet()));
+		}
+		nameMapping.persist();
+	}
+
+	/**
+	 * Lists all files in this directory. The size, ETag and modification time of each listed file are cached,
+	 * so that opening a reader doesn't send a HEAD request for every file. Cached files which are no longer
+	 * in the bucket are forgotten. With the local manifest enabled, the files are listed from memory.
+	 *
+	 * @return names of all files
+	 */
 	@Override
 	public String[] listAll() {
-		final LinkedList<String> names = new LinkedList<>();
+		final Collection<String> names;
+		if (localManifest) {
+			loadManifest();
+			names = getFiles().keySet();
+		} else {
+			names = listFiles().keySet();
+		}
+		final LinkedHashSet<String> all = new LinkedHashSet<>(names);
+		all.addAll(pendingUploads.keySet());
+		return all.stream()
+				.filter(k -> !k.equals(IndexWriter.WRITE_LOCK_NAME) && !k.endsWith(S3LeaseLockFactory.LEASE_SUFFIX))
+				.filter(k -> !pendingDeletes.contains(k))
+				.toArray(String[]::new);
+	}
+
+	/**
+	 * Loads the local manifest from a listing, on first use and whenever the refresh interval has passed.
+	 */
+	private void loadManifest() {
+		final long loadedAt = manifestLoadedAt;
+		if (loadedAt < 0 || (manifestRefreshMillis > 0 && manifestClock.getAsLong() - loadedAt >= manifestRefreshMillis)) {
+			synchronized (files) {
+				if (loadedAt == manifestLoadedAt) {
+					final long now = manifestClock.getAsLong();
+					listFiles();
+					manifestLoadedAt = now;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lists the files in the bucket and updates the cached file metadata.
+	 * Files written by this directory after the listing started are kept, even if they were not listed.
+	 *
+	 * @return listed files, by name
+	 */
+	private Map<String, S3FileInfo> listFiles() {
+		// compared with local sequence numbers, because the modification times of listed files come from S3's clock
+		final long startedAt = localWrites.get();
+		if (nameMapping != null) {
+			try {
+				nameMapping.refresh();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		Map<String, S3FileInfo> listed = new LinkedHashMap<>();
 		Optional<String> continuationToken = Optional.empty();
 		Optional<String> prefix = Optional.ofNullable(getPath().isBlank() ? null : getPath());
 		do {
@@ -353,86 +715,247 @@ public class S3Directory extends Directory {
 			prefix.ifPresent(p -> req.query("prefix", p));
 			continuationToken.ifPresent(c -> req.query("continuation-token", c));
 
-			XmlElement res = req.responseAsXml();
+			final XmlElement res;
+			try (S3RequestTimer timer = time(S3Operation.LIST, null, null)) {
+				res = req.responseAsXml();
+				timer.success();
+			}
 
 			for (XmlElement s3Object : res.childrenWithName("Contents")) {
-				names.add(s3Object.content("Key"));
-			}
-			if (res.hasChildren() && !res.childrenWithName("NextContinuationToken").isEmpty()) {
-				continuationToken = Optional.ofNullable(res.child("NextContinuationToken").content());
+				final String name = s3Object.content("Key").substring(prefix.map(String::length).orElse(0));
+				if (!name.equals(MANIFEST_NAME)) {
+					listed.put(name, S3FileInfo.fromListing(s3Object.content("Size"), s3Object.content("ETag"),
+							s3Object.content("LastModified")));
+				}
 			}
+			continuationToken = "true".equals(res.content("IsTruncated"))
+					? Optional.of(res.content("NextContinuationToken")) : Optional.empty();
 		} while (continuationToken.isPresent());
-		return names.stream()
-				.filter(k -> !k.equals(IndexWriter.WRITE_LOCK_NAME))
-				.toArray(String[]::new);
+		if (nameMapping != null) {
+			listed = nameMapping.toLogical(listed);
+		}
+		final Map<String, S3FileInfo> found = listed;
+		getFiles().putAll(found);
+		getFiles().entrySet().removeIf(e -> !found.containsKey(e.getKey()) && !pendingUploads.containsKey(e.getKey())
+				&& (localManifest || !isStaticFile(e.getKey())) && e.getValue().sequence() <= startedAt);
+		return found;
 	}
 
+	/**
+	 * Marks a file for deletion. Deletions are sent in batches with multi-object delete requests,
+	 * when {@link #DELETE_BATCH_SIZE} files are pending, on {@link #sync(Collection)} and on {@link #close()}.
+	 * Until then, the file is reported by {@link #getPendingDeletions()} and is no longer visible in this directory.
+	 */
 	@Override
-	public void deleteFile(final String name) throws FileNotFoundException {
-		if (!fileExists(name)) {
-			throw new FileNotFoundException();
+	public void deleteFile(final String name) throws IOException {
+		try {
+			awaitUpload(name);
+		} catch (@SuppressWarnings("unused") IOException e) {
+			// the file is being deleted anyway
+		}
+		if (pendingDeletes.contains(name) || isHidden(name) || (!getFiles().containsKey(name) && !fileExists(name))) {
+			throw new FileNotFoundException("File " + name + " not found.");
 		}
-		forceDeleteFile(name);
-		if (!isStaticFile(name)) {
-			getFileSizes().remove(name);
+		invalidateCache(name);
+		warmUp.onDelete(name);
+		final String physical = nameMapping == null ? name : nameMapping.remove(name);
+		final int pending = pendingDeletes.add(physical, name);
+		if (localManifest || !isStaticFile(name)) {
+			getFiles().remove(name);
 		}
+		if (pending >= DELETE_BATCH_SIZE) {
+			deletePendingFiles();
+		}
+	}
+
+	/**
+	 * Deletes all files which are pending deletion. Files which could not be deleted stay pending.
+	 * The mapping of renamed files is written first, see {@link #syncMetaData()}, so that renamed files
+	 * stay reachable before their old physical objects are deleted.
+	 *
+	 * @throws IOException if the mapping could not be written or a delete request failed
+	 */
+	public void deletePendingFiles() throws IOException {
+		syncMetaData();
+		pendingDeletes.deleteAll();
+	}
+
+	/**
+	 * Returns <code>true</code> if the name is only the physical key of a renamed file.
+	 */
+	private boolean isHidden(final String name) {
+		return nameMapping != null && nameMapping.isHidden(name);
 	}
 
 	@Override
 	public long fileLength(final String name) {
-		try {
-			return getFileSizes()
-					.computeIfAbsent(
-							name,
-							n
-							-> Long.valueOf(
-									s3.path(bucket, getPath() + name)
-											.method(HttpMethod.HEAD)
-											.response()
-											.firstHeader("Content-Length")
-											.orElse("0")));
-		} catch (@SuppressWarnings("unused") Exception e) {
-			return 0L;
-		}
+		final S3FileInfo info = getFileInfo(name);
+		return info == null ? 0L : info.length();
 	}
 
 	IndexOutput createOutput(final String name) throws IOException {
+		if (nameMapping != null) {
+			nameMapping.assign(name);
+		}
+		invalidateCache(name);
 		IndexOutput indexOutput;
 		try {
-			indexOutput
-					= new ByteBuffersIndexOutput(
-							new ByteBuffersDataOutput(),
-							getClass().getSimpleName()
-							+ "IndexOutput{bucket="
-							+ bucket
-							+ ", path="
-							+ path
-							+ ", name="
-							+ name
-							+ "}",
-							name,
-							new CRC32(),
-							localOutput -> {
-								byte[] bytes = localOutput.toArrayCopy();
-								getFileSizes().put(name, Integer.valueOf(bytes.length).longValue());
-								s3.path(bucket, getPath() + name)
-										.method(HttpMethod.PUT)
-										.requestBody(bytes)
-										.execute();
-							});
+			if (spillDirectory == null) {
+				indexOutput = new S3IndexOutput(this, name);
+			} else {
+				indexOutput = S3SpillingIndexOutput.create(this, name);
+			}
 		} catch (final Exception e) {
 			throw new S3StoreException(
-					"Failed to create indexOutput instance [" + ByteBuffersIndexOutput.class + "]", e);
+					"Failed to create indexOutput instance [" + S3IndexOutput.class + "]", e);
 		}
 		return indexOutput;
 	}
 
+	/**
+	 * Returns the resource description of an output.
+	 */
+	String getResourceDescription(final String name) {
+		return getClass().getSimpleName()
+				+ "IndexOutput{bucket="
+				+ bucket
+				+ ", path="
+				+ path
+				+ ", name="
+				+ name
+				+ "}";
+	}
+
+	/**
+	 * Uploads a whole file with a single PUT request.
+	 *
+	 * @param name the name of the index file
+	 * @param bytes file contents
+	 */
+	void putObject(final String name, final byte[] bytes) {
+		try (S3RequestTimer timer = time(S3Operation.PUT, name, null)) {
+			s3.path(bucket, getKey(name))
+					.method(HttpMethod.PUT)
+					.requestBody(bytes)
+					.execute();
+			timer.bytes(bytes.length).success();
+		}
+	}
+
+	/**
+	 * Finishes the upload of a file which was written by an output. The upload runs in the calling thread,
+	 * or in the background if asynchronous uploads are enabled, in which case {@link #sync(Collection)}
+	 * waits for it to finish and reports its failure. The task runs on the executor, so it must not wait
+	 * for other tasks of the executor.
+	 *
+	 * @param name the name of the index file
+	 * @param length the length of the file
+	 * @param task the remaining upload work
+	 * @throws IOException if the upload failed or could not be started
+	 */
+	void upload(final String name, final long length, final IOTask task) throws IOException {
+		setFileLength(name, length);
+		if (!asyncUploads) {
+			try {
+				task.run();
+			} catch (IOException | RuntimeException e) {
+				getFiles().remove(name);
+				throw e;
+			}
+			return;
+		}
+		uploadInBackground(name, () -> CompletableFuture.runAsync(() -> {
+			try {
+				task.run();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, getExecutor()));
+	}
+
+	/**
+	 * Completes a multipart upload of a file which was written by an output, once all of its parts are uploaded.
+	 * With asynchronous uploads, no thread waits for the parts - the completion request is sent by the executor
+	 * after the last part finishes, so that upload tasks can't occupy all threads of the executor while their
+	 * parts are queued behind them.
+	 *
+	 * @param name the name of the index file
+	 * @param length the length of the file
+	 * @param upload an upload whose parts have all been started
+	 * @throws IOException if the upload failed or could not be completed
+	 */
+	void upload(final String name, final long length, final S3MultipartUpload upload) throws IOException {
+		setFileLength(name, length);
+		if (!asyncUploads) {
+			try {
+				upload.complete();
+			} catch (IOException | RuntimeException e) {
+				getFiles().remove(name);
+				throw e;
+			}
+			return;
+		}
+		uploadInBackground(name, upload::completeAsync);
+	}
+
+	private void uploadInBackground(final String name, final Supplier<CompletableFuture<Void>> start) throws IOException {
+		try {
+			pendingUploadPermits.acquire();
+		} catch (InterruptedException e) {
+			throw new ThreadInterruptedException(e);
+		}
+		final CompletableFuture<Void> future;
+		try {
+			future = start.get();
+		} catch (RejectedExecutionException e) {
+			pendingUploadPermits.release();
+			getFiles().remove(name);
+			throw new S3StoreException("Failed to upload " + name, e);
+		}
+		pendingUploads.put(name, future);
+		future.whenComplete((r, t) -> {
+			if (t == null) {
+				pendingUploads.remove(name, future);
+			}
+			pendingUploadPermits.release();
+		});
+	}
+
+	/**
+	 * Waits for the background upload of a file, if there is one.
+	 *
+	 * @param name the name of the index file
+	 * @throws IOException if the upload failed
+	 */
+	void awaitUpload(final String name) throws IOException {
+		final CompletableFuture<Void> future = pendingUploads.get(name);
+		if (future == null) {
+			return;
+		}
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			throw new ThreadInterruptedException(e);
+		} catch (ExecutionException e) {
+			pendingUploads.remove(name, future);
+			getFiles().remove(name);
+			throw new S3StoreException("Failed to upload " + name, e.getCause());
+		}
+	}
+
+	/**
+	 * Records the length of a file which was written by this directory.
+	 */
+	void setFileLength(final String name, final long length) {
+		getFiles().put(name, S3FileInfo.written(length, localWrites.incrementAndGet()));
+	}
+
 	@Override
 	public IndexOutput createOutput(final String name, final IOContext context) throws IOException {
 		if (closed) {
 			throw new AlreadyClosedException("Already closed.");
 		}
-		if (fileExists(name)) {
+		if (!pendingDeletes.cancel(name) && fileExists(name)) {
 			throw new FileAlreadyExistsException("File " + name + " already exists.");
 		}
 		if (isStaticFile(name)) {
@@ -451,77 +974,126 @@ public class S3Directory extends Directory {
 
 	@Override
 	public IndexInput openInput(final String name, final IOContext context) throws IOException {
-		IndexInput indexInput;
-		try {
-			indexInput
-					= new BufferedIndexInput(name) {
-				private long totalLength = -1;
-				private long position = 0;
-
-				@Override
-				protected void readInternal(ByteBuffer bb) throws IOException {
-					ResponseInputStream res = s3.path(bucket, getPath() + name).responseInputStream();
-					if (totalLength == -1) {
-						totalLength = Long.parseLong(res.header("Content-Length").orElse("0"));
-					}
-					final long curPos = getFilePointer();
-					if (curPos + bb.remaining() > totalLength) {
-						throw new EOFException("read past EOF: " + this);
-					}
-					if (curPos != position) {
-						position = curPos;
-					}
-					res.skip(position);
-					res.read(bb.array(), bb.arrayOffset(), bb.capacity());
-					// position += bb.capacity();
-					bb.position(bb.position() + bb.remaining());
-				}
-
-				@Override
-				protected void seekInternal(final long pos) throws IOException {
-					if (pos < 0) {
-						throw new IllegalArgumentException("Seek position cannot be negative");
-					}
-					if (pos > length()) {
-						throw new EOFException("Seek position is past EOF");
-					}
-					position = pos;
-				}
-
-				@Override
-				public void close() {
-				}
-
-				@Override
-				public synchronized long length() {
-					if (totalLength == -1) {
-						try {
-							totalLength = fileLength(name);
-						} catch (@SuppressWarnings("unused") Exception e) {
-							// do nothing here for now, much better for performance
-						}
-					}
-					return totalLength;
-				}
-			};
+		awaitUpload(name);
+		if (pendingDeletes.contains(name) || isHidden(name)) {
+			throw new FileNotFoundException("File " + name + " not found.");
+		}
+		if (blockCache != null) {
+			validateCache(name, getFileInfo(name));
+		}
+		if (warmUpOnOpen && blockCache != null && S3WarmUp.isCommit(name)) {
+			warmUp.onOpen(blockCache, name);
+		}
+		IndexInput indexInput;
+		try {
+			indexInput = new S3IndexInput(this, name, context);
 		} catch (final Exception e) {
 			throw new S3StoreException(
-					"Failed to create indexInput [" + BufferedIndexInput.class + "]", e);
+					"Failed to create indexInput [" + S3IndexInput.class + "]", e);
 		}
 		return indexInput;
 	}
 
+	/**
+	 * Reads <code>bb.remaining()</code> bytes of a file for a reader which is waiting for them. If a hedging policy
+	 * is set, a slow request may be sent twice, see {@link S3HedgingPolicy}. Tasks of the executor which read through
+	 * an input run with {@link S3HedgingPolicy#runInBackground}, so that their reads are sent once.
+	 *
+	 * @param name the name of the index file
+	 * @param start offset of the first byte to read
+	 * @param bb the destination buffer
+	 * @param context the context in which the file was opened, or <code>null</code>
+	 * @throws IOException if the range could not be read
+	 */
+	void readRange(final String name, final long start, final ByteBuffer bb, final IOContext context) throws IOException {
+		final S3HedgingPolicy hedging = hedgingPolicy;
+		if (hedging != null && bb.hasRemaining() && hedging.appliesTo(bb.remaining(), context)) {
+			hedging.read(this, name, start, bb, context);
+		} else {
+			readRangeOnce(name, start, bb, context);
+		}
+	}
+
+	/**
+	 * Reads <code>bb.remaining()</code> bytes of a file, starting at the given offset, using a ranged GET request.
+	 * Only the requested bytes are transferred over the wire.
+	 *
+	 * @param name the name of the index file
+	 * @param start offset of the first byte to read
+	 * @param bb the destination buffer
+	 * @param context the context in which the file was opened, or <code>null</code>
+	 * @throws IOException if the range could not be read
+	 */
+	void readRangeOnce(final String name, final long start, final ByteBuffer bb, final IOContext context) throws IOException {
+		final int len = bb.remaining();
+		if (len == 0) {
+			return;
+		}
+		try (S3RequestTimer timer = time(S3Operation.RANGED_GET, name, context);
+				ResponseInputStream res = s3.path(bucket, getKey(name))
+						.header("Range", "bytes=" + start + "-" + (start + len - 1))
+						.responseInputStream()) {
+			S3RequestAbort.register(res);
+			final int status = res.statusCode();
+			if (status == 404) {
+				throw new FileNotFoundException("File " + name + " not found.");
+			}
+			if (status != 206 && status != 200) {
+				throw new S3StoreException("Failed to read " + name + " at " + start + ", HTTP status " + status);
+			}
+			if (status == 200) {
+				// the range header was ignored and the whole object is being returned
+				res.skipNBytes(start);
+			}
+			final int read;
+			if (bb.hasArray()) {
+				read = res.readNBytes(bb.array(), bb.arrayOffset() + bb.position(), len);
+				bb.position(bb.position() + read);
+			} else {
+				final byte[] bytes = res.readNBytes(len);
+				read = bytes.length;
+				bb.put(bytes);
+			}
+			timer.bytes(read);
+			if (read < len) {
+				throw new EOFException("read past EOF: " + name);
+			}
+			timer.success();
+		}
+	}
+
+	/**
+	 * Waits for the background uploads of the given files, if any, and checks that they exist.
+	 * This is the durability point for files written with asynchronous uploads.
+	 */
 	@Override
 	public void sync(final Collection<String> names) throws IOException {
 		for (final String name : names) {
-			if (!getFileSizes().containsKey(name)) {
+			awaitUpload(name);
+			if (!getFiles().containsKey(name)) {
 				throw new S3StoreException("Failed to sync, file " + name + " not found");
 			}
 		}
+		// a commit fails if the mapping of renamed files can't be written, but not if a deletion fails
+		syncMetaData();
+		try {
+			deletePendingFiles();
+		} catch (@SuppressWarnings("unused") IOException e) {
+			// deletions are retried later, they must not fail a commit
+		}
 	}
 
 	@Override
-	public void rename(final String from, final String to) throws FileNotFoundException {
+	public void rename(final String from, final String to) throws IOException {
+		awaitUpload(from);
+		if (pendingDeletes.contains(from)) {
+			throw new FileNotFoundException("File " + from + " not found.");
+		}
+		if (nameMapping != null) {
+			renameVirtual(from, to);
+			return;
+		}
+		pendingDeletes.cancel(to);
 		renameFile(from, to);
 	}
 
@@ -533,10 +1105,31 @@ public class S3Directory extends Directory {
 	@Override
 	public synchronized void close() {
 		this.closed = true;
+		for (String name : pendingUploads.keySet()) {
+			try {
+				awaitUpload(name);
+			} catch (@SuppressWarnings("unused") IOException e) {
+				// failures are reported by sync()
+			}
+		}
+		try {
+			deletePendingFiles();
+		} catch (@SuppressWarnings("unused") IOException e) {
+			// files which could not be deleted are left behind
+		}
+		if (executor != null && ownsExecutor) {
+			executor.shutdown();
+		}
 	}
 
+	/**
+	 * Writes the mapping of renamed files, if virtual renames are enabled.
+	 */
 	@Override
 	public void syncMetaData() throws IOException {
+		if (nameMapping != null) {
+			nameMapping.persist();
+		}
 	}
 
 	private final Function<String, String> tempFileName
@@ -598,6 +1191,32 @@ public class S3Directory extends Directory {
 		return data == null ? null : Base64.getEncoder().encode(data);
 	}
 
+	/**
+	 * Returns the first value of a response header, ignoring the case of the header name.
+	 *
+	 * @param headers response headers
+	 * @param name header name
+	 * @return the header value, if present
+	 */
+	static Optional<String> header(final Map<String, List<String>> headers, final String name) {
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+				return Optional.ofNullable(header.getValue().get(0));
+			}
+		}
+		return Optional.empty();
+	}
+
+	/**
+	 * Escapes the characters which are not allowed in XML text content.
+	 *
+	 * @param text some text
+	 * @return escaped text
+	 */
+	static String escapeXml(final String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
 	/**
 	 * The S3 bucket name.
 	 *
@@ -628,13 +1247,624 @@ public class S3Directory extends Directory {
 		return s3;
 	}
 
-	private ConcurrentHashMap<String, Long> getFileSizes() {
-		return fileSizes;
+	/**
+	 * Returns the block cache used for reads.
+	 *
+	 * @return the block cache or <code>null</code> if reads are not cached
+	 */
+	public S3BlockCache getBlockCache() {
+		return blockCache;
+	}
+
+	/**
+	 * Sets a block cache for reads. When set, index inputs fetch whole blocks from S3 and serve
+	 * repeated reads from the cache. A cache may be shared between directories, so it is not closed
+	 * when this directory is closed.
+	 *
+	 * @param blockCache a block cache or <code>null</code> to disable caching
+	 */
+	public void setBlockCache(S3BlockCache blockCache) {
+		this.blockCache = blockCache;
+	}
+
+	/**
+	 * Returns the maximum number of block prefetches running at the same time.
+	 *
+	 * @return max number of prefetch requests
+	 */
+	public int getMaxPrefetchRequests() {
+		return maxPrefetchRequests;
+	}
+
+	/**
+	 * Sets the maximum number of block prefetches running at the same time.
+	 * Prefetch hints received while this many requests are running are ignored.
+	 *
+	 * @param maxPrefetchRequests max number of prefetch requests
+	 */
+	public void setMaxPrefetchRequests(int maxPrefetchRequests) {
+		this.maxPrefetchRequests = maxPrefetchRequests;
+	}
+
+	/**
+	 * Returns the policy which sizes the buffers of index inputs.
+	 *
+	 * @return the policy or <code>null</code> if all inputs use the Lucene default buffer size
+	 */
+	public S3FetchSizePolicy getFetchSizePolicy() {
+		return fetchSizePolicy;
+	}
+
+	/**
+	 * Sets the policy which sizes the buffers of index inputs, by {@link IOContext} and file extension.
+	 * Without a block cache, the buffer size is also the size of each ranged GET of a random access input.
+	 * A policy may be shared by several directories, so that they adapt to the same access patterns.
+	 *
+	 * @param fetchSizePolicy a policy or <code>null</code> to use the Lucene default buffer size for all inputs
+	 */
+	public void setFetchSizePolicy(S3FetchSizePolicy fetchSizePolicy) {
+		this.fetchSizePolicy = fetchSizePolicy;
+	}
+
+	/**
+	 * Sets the lock factory, e.g. {@link S3LeaseLockFactory} instead of the default {@link S3LockFactory}.
+	 *
+	 * @param lockFactory a lock factory
+	 */
+	public void setLockFactory(LockFactory lockFactory) {
+		this.lockFactory = lockFactory;
+	}
+
+	/**
+	 * Returns the hedging policy for reads.
+	 *
+	 * @return the policy or <code>null</code> if reads are not hedged
+	 */
+	public S3HedgingPolicy getHedgingPolicy() {
+		return hedgingPolicy;
+	}
+
+	/**
+	 * Sets a hedging policy for the reads which a searching thread waits for, i.e. block cache misses and
+	 * reads without a block cache. Prefetches, warm-ups and read-ahead are never hedged. The first request of a hedged
+	 * read is sent by the reading thread, only the second one runs on the executor, so a fixed thread pool which is
+	 * busy with background requests delays hedges - consider {@link #setVirtualThreads(boolean)}.
+	 *
+	 * @param hedgingPolicy a policy or <code>null</code> to disable hedging
+	 */
+	public void setHedgingPolicy(S3HedgingPolicy hedgingPolicy) {
+		this.hedgingPolicy = hedgingPolicy;
+	}
+
+	/**
+	 * Returns <code>true</code> if commits are warmed up automatically when they are opened.
+	 *
+	 * @return true if warm-up on open is enabled
+	 */
+	public boolean isWarmUpOnOpen() {
+		return warmUpOnOpen;
+	}
+
+	/**
+	 * Enables the automatic warm-up of commits. The first time a <code>segments_N</code> file is opened,
+	 * e.g. by <code>DirectoryReader.open()</code>, the blocks which the reader is about to read are fetched
+	 * into the block cache in parallel, see {@link #warmUp()}. Requires a block cache.
+	 *
+	 * @param warmUpOnOpen true to warm up commits when they are opened
+	 */
+	public void setWarmUpOnOpen(boolean warmUpOnOpen) {
+		this.warmUpOnOpen = warmUpOnOpen;
+	}
+
+	/**
+	 * Fetches the blocks which are read when the latest commit is opened into the block cache, and waits for them.
+	 * These are the first and the last block of each file of the commit, which hold the small per-segment
+	 * metadata files as well as the headers and footers of the larger files. All requests are sent in parallel,
+	 * so the time it takes to open a reader afterwards doesn't grow with the number of segments.
+	 * Without a block cache, only the lengths of the files are loaded.
+	 *
+	 * @throws IOException if the commit could not be read or a block could not be fetched
+	 */
+	public void warmUp() throws IOException {
+		final SegmentInfos infos = SegmentInfos.readLatestCommit(this);
+		if (blockCache != null) {
+			warmUp.warmUp(blockCache, infos);
+		}
+	}
+
+	/**
+	 * Returns the size of a read-ahead request.
+	 *
+	 * @return size in bytes
+	 */
+	public int getReadAheadSize() {
+		return readAheadSize;
+	}
+
+	/**
+	 * Sets the size of a read-ahead request. Inputs opened for merges or with {@link IOContext#READONCE},
+	 * as well as inputs which are read sequentially, fetch chunks of this size ahead of the reader.
+	 *
+	 * @param readAheadSize size in bytes, 0 disables read-ahead
+	 */
+	public void setReadAheadSize(int readAheadSize) {
+		this.readAheadSize = readAheadSize;
+	}
+
+	/**
+	 * Returns the number of read-ahead requests per input.
+	 *
+	 * @return number of chunks in flight or buffered
+	 */
+	public int getReadAheadRequests() {
+		return readAheadRequests;
+	}
+
+	/**
+	 * Sets the number of read-ahead requests per input. Each sequential input (and its clones) buffers at most
+	 * <code>readAheadSize * readAheadRequests</code> bytes, within the limit set by {@link #setMaxReadAheadBytes(int)}.
+	 *
+	 * @param readAheadRequests number of chunks in flight or buffered
+	 */
+	public void setReadAheadRequests(int readAheadRequests) {
+		this.readAheadRequests = readAheadRequests;
+	}
+
+	/**
+	 * Returns the maximum number of bytes held by all read-ahead windows of this directory.
+	 *
+	 * @return size in bytes
+	 */
+	public int getMaxReadAheadBytes() {
+		return maxReadAheadBytes;
+	}
+
+	/**
+	 * Sets the maximum number of bytes held by all read-ahead windows of this directory, fetched or in flight.
+	 * Inputs which can't fit another chunk in the budget read directly, with requests of their buffer size.
+	 *
+	 * @param maxReadAheadBytes size in bytes
+	 */
+	public void setMaxReadAheadBytes(int maxReadAheadBytes) {
+		this.maxReadAheadBytes = maxReadAheadBytes;
+		this.readAheadBuffers = new S3ReadAheadBuffers(maxReadAheadBytes);
+	}
+
+	/**
+	 * Shares the read-ahead budget and buffers of a {@link S3DirectoryPool}.
+	 */
+	void setReadAheadBuffers(final S3ReadAheadBuffers buffers) {
+		this.maxReadAheadBytes = buffers.getMaxBytes();
+		this.readAheadBuffers = buffers;
+	}
+
+	S3ReadAheadBuffers getReadAheadBuffers() {
+		return readAheadBuffers;
+	}
+
+	/**
+	 * Returns the part size of multipart uploads.
+	 *
+	 * @return size in bytes
+	 */
+	public int getPartSize() {
+		return partSize;
+	}
+
+	/**
+	 * Sets the part size of multipart uploads. Files up to this size are uploaded with a single PUT request,
+	 * larger files are uploaded in parts of this size while they are being written.
+	 *
+	 * @param partSize size in bytes, at least {@link #MIN_PART_SIZE}
+	 */
+	public void setPartSize(int partSize) {
+		if (partSize < MIN_PART_SIZE) {
+			throw new IllegalArgumentException("Part size must be at least " + MIN_PART_SIZE + " bytes.");
+		}
+		this.partSize = partSize;
+	}
+
+	/**
+	 * Returns the part size of multipart server-side copies.
+	 *
+	 * @return size in bytes
+	 */
+	public int getCopyPartSize() {
+		return copyPartSize;
+	}
+
+	/**
+	 * Sets the part size of multipart server-side copies, used by renames and by {@link #copyFrom}.
+	 * Objects up to this size are copied with a single request.
+	 *
+	 * @param copyPartSize size in bytes, at least {@link #MIN_PART_SIZE}
+	 */
+	public void setCopyPartSize(int copyPartSize) {
+		if (copyPartSize < MIN_PART_SIZE) {
+			throw new IllegalArgumentException("Part size must be at least " + MIN_PART_SIZE + " bytes.");
+		}
+		this.copyPartSize = copyPartSize;
+	}
+
+	/**
+	 * Returns the number of parts of a single object copied at the same time.
+	 *
+	 * @return copy concurrency
+	 */
+	public int getCopyConcurrency() {
+		return copyConcurrency;
+	}
+
+	/**
+	 * Sets the number of parts of a single object copied at the same time.
+	 *
+	 * @param copyConcurrency number of concurrent part copies per object
+	 */
+	public void setCopyConcurrency(int copyConcurrency) {
+		this.copyConcurrency = copyConcurrency;
+	}
+
+	/**
+	 * Returns the number of parts of a single file uploaded at the same time.
+	 *
+	 * @return upload concurrency
+	 */
+	public int getUploadConcurrency() {
+		return uploadConcurrency;
+	}
+
+	/**
+	 * Sets the number of parts of a single file uploaded at the same time. Each output holds at most
+	 * <code>uploadConcurrency + 1</code> part buffers and blocks the writer when all of them are in flight.
+	 *
+	 * @param uploadConcurrency number of concurrent part uploads per file, at least 1
+	 */
+	public void setUploadConcurrency(int uploadConcurrency) {
+		if (uploadConcurrency < 1) {
+			throw new IllegalArgumentException("Upload concurrency must be at least 1.");
+		}
+		this.uploadConcurrency = uploadConcurrency;
+	}
+
+	/**
+	 * Returns the maximum number of bytes of all parts of this directory being uploaded at the same time.
+	 *
+	 * @return size in bytes
+	 */
+	public int getMaxPartBufferBytes() {
+		return partBuffers.getMaxBytes();
+	}
+
+	/**
+	 * Sets the maximum number of bytes of all parts of this directory being uploaded at the same time. Together with
+	 * the part being filled by each open output, this bounds the memory used by multipart uploads. Writers block
+	 * when the budget is exhausted, and the buffers of uploaded parts are reused.
+	 *
+	 * @param maxPartBufferBytes size in bytes, at least {@link #MIN_PART_SIZE}
+	 */
+	public void setMaxPartBufferBytes(int maxPartBufferBytes) {
+		if (maxPartBufferBytes < MIN_PART_SIZE) {
+			throw new IllegalArgumentException("The part buffer budget must be at least " + MIN_PART_SIZE + " bytes.");
+		}
+		this.partBuffers = new S3PartBuffers(maxPartBufferBytes);
+	}
+
+	/**
+	 * Shares the part buffers of a {@link S3DirectoryPool}.
+	 */
+	void setPartBuffers(final S3PartBuffers partBuffers) {
+		this.partBuffers = partBuffers;
+	}
+
+	S3PartBuffers getPartBuffers() {
+		return partBuffers;
+	}
+
+	/**
+	 * Returns the local directory where outputs are written before they are uploaded.
+	 *
+	 * @return a local directory or <code>null</code> if outputs are buffered in memory
+	 */
+	public Path getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	/**
+	 * Sets a local directory where outputs are written before they are uploaded. When set, each output
+	 * writes to a temporary file and uploads it on close, so heap usage doesn't grow with the number of
+	 * concurrent writers. By default outputs are buffered in memory, up to the part size.
+	 *
+	 * @param spillDirectory a local directory or <code>null</code> to buffer outputs in memory
+	 */
+	public void setSpillDirectory(Path spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Returns <code>true</code> if outputs are uploaded in the background.
+	 *
+	 * @return true if uploads are asynchronous
+	 */
+	public boolean isAsyncUploads() {
+		return asyncUploads;
+	}
+
+	/**
+	 * Enables background uploads. When enabled, closing an output hands its upload over to the directory
+	 * executor and returns immediately, and {@link #sync(Collection)} waits for the uploads of the given files
+	 * and reports their failures. At most <code>maxPendingUploads</code> files are uploaded in the background,
+	 * closing another output blocks until one of them finishes.
+	 *
+	 * @param asyncUploads true to upload in the background
+	 * @param maxPendingUploads max number of files being uploaded in the background
+	 */
+	public void setAsyncUploads(boolean asyncUploads, int maxPendingUploads) {
+		this.asyncUploads = asyncUploads;
+		this.pendingUploadPermits = new Semaphore(Math.max(1, maxPendingUploads));
+	}
+
+	/**
+	 * Returns <code>true</code> if existence checks and listings are answered from the local manifest.
+	 *
+	 * @return true if the local manifest is enabled
+	 */
+	public boolean isLocalManifest() {
+		return localManifest;
+	}
+
+	/**
+	 * Enables the local manifest - an in-memory list of the files in this directory, loaded once from a listing
+	 * and kept current as files are created, renamed and deleted. {@link #fileExists(String)} and {@link #listAll()}
+	 * are then answered locally, without any requests. This is only correct when this directory is the single writer
+	 * of its path. Reader-only nodes should set a refresh interval, after which the manifest is listed again,
+	 * to see files written by other nodes.
+	 *
+	 * @param localManifest true to enable the local manifest
+	 * @param refreshMillis how often to reload the manifest, in milliseconds, or 0 to load it only once
+	 */
+	public void setLocalManifest(boolean localManifest, long refreshMillis) {
+		this.localManifest = localManifest;
+		this.manifestRefreshMillis = Math.max(0L, refreshMillis);
+		this.manifestLoadedAt = -1L;
+	}
+
+	/**
+	 * Returns <code>true</code> if renames only update the name mapping, without copying objects.
+	 *
+	 * @return true if virtual renames are enabled
+	 */
+	public boolean isVirtualRename() {
+		return nameMapping != null;
+	}
+
+	/**
+	 * Enables virtual renames. When enabled, a rename points the new name at the existing object, instead of copying
+	 * it and deleting the original, so commit latency doesn't depend on file size. The mapping of renamed files is kept
+	 * in the {@link #MANIFEST_NAME} object, which is written on rename and {@link #sync(Collection)} and read by
+	 * {@link #listAll()}. Every directory instance reading the same path must enable virtual renames too,
+	 * because renamed files are not stored under their own names.
+	 *
+	 * @param virtualRename true to enable virtual renames
+	 * @throws IOException if the existing mapping could not be read
+	 */
+	public void setVirtualRename(boolean virtualRename) throws IOException {
+		if (virtualRename) {
+			final S3NameMapping mapping = new S3NameMapping(this);
+			mapping.load();
+			this.nameMapping = mapping;
+		} else {
+			this.nameMapping = null;
+		}
+	}
+
+	/**
+	 * Sets the executor which runs background S3 requests - prefetches, read-ahead, warm-ups, uploads,
+	 * multipart copies and batched deletes. By default, a fixed pool of {@link #getIoThreads()} daemon threads,
+	 * or a virtual thread per task if {@link #setVirtualThreads(boolean)} is on, is created on first use.
+	 * An executor set here is not shut down when the directory is closed.
+	 *
+	 * @param executor an executor service
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+		shutdownExecutor();
+		this.executor = executor;
+		this.ownsExecutor = false;
+	}
+
+	/**
+	 * Returns the number of threads of the default executor.
+	 *
+	 * @return number of threads
+	 */
+	public int getIoThreads() {
+		return ioThreads;
+	}
+
+	/**
+	 * Sets the number of threads of the default executor, which bounds the number of background requests
+	 * in flight. Has no effect if an executor was set with {@link #setExecutor(ExecutorService)}
+	 * or virtual threads are enabled.
+	 *
+	 * @param ioThreads number of threads
+	 */
+	public synchronized void setIoThreads(int ioThreads) {
+		if (ioThreads < 1) {
+			throw new IllegalArgumentException("ioThreads must be at least 1");
+		}
+		this.ioThreads = ioThreads;
+		shutdownExecutor();
+	}
+
+	/**
+	 * Returns <code>true</code> if the default executor runs each task in a new virtual thread.
+	 *
+	 * @return true if virtual threads are enabled and supported by the JVM
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Runs background S3 requests in virtual threads, one per task, instead of a fixed thread pool.
+	 * Background requests are then bounded only by {@link #getMaxPrefetchRequests()}, the upload and copy
+	 * concurrency and the HTTP transport, so thousands of them can be in flight without sizing a thread pool.
+	 * Requires Java 21 or newer, on older JVMs the fixed thread pool is kept.
+	 * Has no effect if an executor was set with {@link #setExecutor(ExecutorService)}.
+	 *
+	 * @param virtualThreads true to use virtual threads
+	 */
+	public synchronized void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads && S3Executors.isVirtualThreadsSupported();
+		shutdownExecutor();
+	}
+
+	/**
+	 * Shuts down the default executor, so that it is re-created with the current settings on next use.
+	 * Running tasks are allowed to finish.
+	 */
+	private void shutdownExecutor() {
+		if (executor != null && ownsExecutor) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	S3BlockFetcher getBlockFetcher() {
+		return blockFetcher;
+	}
+
+	/**
+	 * Returns the executor which runs background S3 requests, creating it on first use.
+	 */
+	synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = S3Executors.newExecutor(ioThreads, virtualThreads);
+			ownsExecutor = true;
+		}
+		return executor;
+	}
+
+	/**
+	 * Adds a listener which is notified of every S3 request of this directory and every block cache lookup.
+	 *
+	 * @param listener a listener, e.g. {@link S3DirectoryMetrics}
+	 */
+	public void addListener(S3DirectoryListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener.
+	 *
+	 * @param listener a listener
+	 */
+	public void removeListener(S3DirectoryListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Starts timing an S3 request, which is reported to the listeners when the returned timer is closed.
+	 * If the directory belongs to a {@link S3DirectoryPool}, this waits for a request permit of its tenant,
+	 * which is held until the timer is closed.
+	 *
+	 * @param operation the kind of request
+	 * @param name the index file name, or <code>null</code> if the request is not about a single file
+	 * @param context the context in which the file was opened, or <code>null</code>
+	 * @return a timer
+	 */
+	S3RequestTimer time(final S3Operation operation, final String name, final IOContext context) {
+		return S3RequestTimer.start(listeners, operation, name, context, tenant);
+	}
+
+	/**
+	 * Starts timing a request of a lock factory. Lock requests don't count towards the limits of a tenant of
+	 * a {@link S3DirectoryPool}, so that a lease renewal is never queued behind the reads of a busy tenant
+	 * until the lease expires.
+	 *
+	 * @param operation the kind of request
+	 * @param name the name of the lock file
+	 * @return a timer
+	 */
+	S3RequestTimer timeLock(final S3Operation operation, final String name) {
+		return S3RequestTimer.start(listeners, operation, name, null, null);
+	}
+
+	/**
+	 * Puts the requests of this directory under the limits of a tenant of a {@link S3DirectoryPool}.
+	 */
+	void setTenant(final S3DirectoryPool.Tenant tenant) {
+		this.tenant = tenant;
+	}
+
+	/**
+	 * Replaces the clock which decides when the local manifest is reloaded, in milliseconds.
+	 */
+	void setManifestClock(final LongSupplier clock) {
+		this.manifestClock = clock;
+	}
+
+	/**
+	 * Reports a block cache lookup to the listeners.
+	 */
+	void cacheAccessed(final String name, final boolean hit) {
+		for (S3DirectoryListener listener : listeners) {
+			listener.cacheAccessed(name, hit);
+		}
+	}
+
+	/**
+	 * Returns the object key of a file, including the path prefix.
+	 */
+	String getKey(final String name) {
+		return getPath() + (nameMapping == null ? name : nameMapping.resolve(name));
+	}
+
+	/**
+	 * Returns the key which identifies a file of this directory in the block cache.
+	 */
+	String getCacheKey(final String name) {
+		return bucket + "/" + getKey(name);
+	}
+
+	/**
+	 * Drops the cached blocks of a file if they were read from another version of the object, e.g. by a previous
+	 * run, before the file was rewritten. Files written by this directory have no known ETag, their blocks
+	 * were invalidated when they were created.
+	 */
+	void validateCache(final String name, final S3FileInfo info) {
+		if (blockCache != null && info != null && info.eTag() != null) {
+			blockCache.validate(getCacheKey(name), info.eTag());
+		}
+	}
+
+	private void invalidateCache(final String name) {
+		if (blockCache != null) {
+			blockCache.invalidate(getCacheKey(name));
+		}
+	}
+
+	private ConcurrentHashMap<String, S3FileInfo> getFiles() {
+		return files;
+	}
+
+	/**
+	 * Returns the metadata of a file if it is already known, without sending a request.
+	 */
+	S3FileInfo peekFileInfo(final String name) {
+		return getFiles().get(name);
 	}
 
 	@Override
 	public Set<String> getPendingDeletions() {
-		return Collections.emptySet();
+		return pendingDeletes.names();
+	}
+
+	/**
+	 * A unit of work which may fail with an I/O error.
+	 */
+	@FunctionalInterface
+	interface IOTask {
+		void run() throws IOException;
 	}
 
 	/**
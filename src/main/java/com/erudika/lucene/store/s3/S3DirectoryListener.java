@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import org.apache.lucene.store.IOContext;
+
+/**
+ * Receives events about the S3 requests and block cache lookups of a {@link S3Directory}.
+ * Listeners are called synchronously, from the threads which send the requests, so they must be thread-safe
+ * and fast. See {@link S3DirectoryMetrics} for a listener which aggregates the events.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public interface S3DirectoryListener {
+
+	/**
+	 * Called before a request is sent.
+	 *
+	 * @param operation the kind of request
+	 * @param name the index file name, or <code>null</code> if the request is not about a single file
+	 */
+	default void requestStarted(S3Operation operation, String name) {
+	}
+
+	/**
+	 * Called after a request has finished, successfully or not.
+	 *
+	 * @param operation the kind of request
+	 * @param name the index file name, or <code>null</code> if the request is not about a single file
+	 * @param context the context in which the file was opened, or <code>null</code> if unknown
+	 * @param bytes number of bytes of file contents transferred
+	 * @param nanos duration of the request in nanoseconds
+	 * @param success false if the request failed
+	 */
+	default void requestFinished(S3Operation operation, String name, IOContext context, long bytes, long nanos,
+			boolean success) {
+	}
+
+	/**
+	 * Called on each lookup of a block in the block cache.
+	 *
+	 * @param name the index file name
+	 * @param hit true if the block was in the cache
+	 */
+	default void cacheAccessed(String name, boolean hit) {
+	}
+}
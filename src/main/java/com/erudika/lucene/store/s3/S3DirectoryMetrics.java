@@ -0,0 +1,302 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.IOContext;
+
+/**
+ * A listener which counts and times the S3 requests of one or more directories. Requests are broken down
+ * by operation, by file extension and by IOContext, with the number of requests, failures, bytes transferred
+ * and a latency histogram for each. Block cache hits and misses and the number of requests in flight are tracked too.
+ * <p>
+ * Usage:
+ * <pre>
+ * S3DirectoryMetrics metrics = new S3DirectoryMetrics();
+ * directory.addListener(metrics);
+ * ...
+ * long p99 = metrics.getOperation(S3Operation.RANGED_GET).getLatency().getPercentileMicros(99);
+ * </pre>
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class S3DirectoryMetrics implements S3DirectoryListener {
+
+	/**
+	 * The extension reported for files without one and for requests which are not about a single file.
+	 */
+	public static final String NO_EXTENSION = "";
+
+	private final Map<S3Operation, Stats> operations = new EnumMap<>(S3Operation.class);
+	private final Map<IOContext.Context, Stats> contexts = new EnumMap<>(IOContext.Context.class);
+	private final ConcurrentHashMap<String, Stats> extensions = new ConcurrentHashMap<>();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * Creates a new, empty set of metrics.
+	 */
+	public S3DirectoryMetrics() {
+		for (S3Operation op : S3Operation.values()) {
+			operations.put(op, new Stats());
+		}
+		for (IOContext.Context ctx : IOContext.Context.values()) {
+			contexts.put(ctx, new Stats());
+		}
+	}
+
+	@Override
+	public void requestStarted(S3Operation operation, String name) {
+		inFlight.incrementAndGet();
+	}
+
+	@Override
+	public void requestFinished(S3Operation operation, String name, IOContext context, long bytes, long nanos,
+			boolean success) {
+		inFlight.decrementAndGet();
+		operations.get(operation).record(bytes, nanos, success);
+		if (context != null) {
+			contexts.get(context.context()).record(bytes, nanos, success);
+		}
+		extensions.computeIfAbsent(extension(name), k -> new Stats()).record(bytes, nanos, success);
+	}
+
+	@Override
+	public void cacheAccessed(String name, boolean hit) {
+		if (hit) {
+			cacheHits.increment();
+		} else {
+			cacheMisses.increment();
+		}
+	}
+
+	private static String extension(final String name) {
+		if (name == null) {
+			return NO_EXTENSION;
+		}
+		final String ext = IndexFileNames.getExtension(name);
+		return ext == null ? NO_EXTENSION : ext;
+	}
+
+	/**
+	 * Returns the statistics of one kind of request.
+	 *
+	 * @param operation the kind of request
+	 * @return statistics
+	 */
+	public Stats getOperation(S3Operation operation) {
+		return operations.get(operation);
+	}
+
+	/**
+	 * Returns the statistics of requests for files opened in the given context. Requests without
+	 * a known context, such as uploads and listings, are not included.
+	 *
+	 * @param context the context in which files were opened
+	 * @return statistics
+	 */
+	public Stats getContext(IOContext.Context context) {
+		return contexts.get(context);
+	}
+
+	/**
+	 * Returns the statistics of requests by file extension, e.g. "doc", "tim" or "cfs".
+	 * Requests which are not about a single file are reported under {@link #NO_EXTENSION}.
+	 *
+	 * @return an unmodifiable view of statistics by extension
+	 */
+	public Map<String, Stats> getExtensions() {
+		return Collections.unmodifiableMap(extensions);
+	}
+
+	/**
+	 * Returns the number of block cache hits.
+	 *
+	 * @return count
+	 */
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	/**
+	 * Returns the number of block cache misses.
+	 *
+	 * @return count
+	 */
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	/**
+	 * Returns the number of requests which have started and not finished yet.
+	 *
+	 * @return count
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Request statistics - counts, bytes and latency.
+	 */
+	public static final class Stats {
+
+		private final LongAdder count = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+		private final Histogram latency = new Histogram();
+
+		Stats() {
+		}
+
+		void record(final long transferred, final long duration, final boolean success) {
+			count.increment();
+			if (!success) {
+				errors.increment();
+			}
+			bytes.add(transferred);
+			nanos.add(duration);
+			latency.record(duration);
+		}
+
+		/**
+		 * Returns the number of requests.
+		 *
+		 * @return count
+		 */
+		public long getCount() {
+			return count.sum();
+		}
+
+		/**
+		 * Returns the number of failed requests.
+		 *
+		 * @return count
+		 */
+		public long getErrors() {
+			return errors.sum();
+		}
+
+		/**
+		 * Returns the number of bytes transferred.
+		 *
+		 * @return bytes
+		 */
+		public long getBytes() {
+			return bytes.sum();
+		}
+
+		/**
+		 * Returns the total time spent in requests.
+		 *
+		 * @return nanoseconds
+		 */
+		public long getTotalNanos() {
+			return nanos.sum();
+		}
+
+		/**
+		 * Returns the latency histogram.
+		 *
+		 * @return histogram
+		 */
+		public Histogram getLatency() {
+			return latency;
+		}
+	}
+
+	/**
+	 * A latency histogram with exponential buckets. Bucket <code>i</code> counts latencies up to
+	 * <code>2^i</code> microseconds, the last bucket counts everything above.
+	 */
+	public static final class Histogram {
+
+		/**
+		 * Number of buckets, the last one covers latencies above ~35 minutes.
+		 */
+		public static final int BUCKETS = 32;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+		Histogram() {
+		}
+
+		void record(final long nanos) {
+			final long micros = Math.max(1L, nanos / 1000L);
+			final int bucket = 64 - Long.numberOfLeadingZeros(micros - 1);
+			counts.incrementAndGet(Math.min(BUCKETS - 1, bucket));
+		}
+
+		/**
+		 * Returns the upper bound of a bucket.
+		 *
+		 * @param bucket bucket index
+		 * @return microseconds
+		 */
+		public static long getBucketUpperBoundMicros(int bucket) {
+			return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+		}
+
+		/**
+		 * Returns a snapshot of the bucket counts.
+		 *
+		 * @return counts by bucket index
+		 */
+		public long[] getCounts() {
+			final long[] snapshot = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = counts.get(i);
+			}
+			return snapshot;
+		}
+
+		/**
+		 * Returns the upper bound of the bucket which contains the given percentile.
+		 *
+		 * @param percentile a percentile between 0 and 100
+		 * @return microseconds, or 0 if nothing was recorded
+		 */
+		public long getPercentileMicros(double percentile) {
+			final long[] snapshot = getCounts();
+			long total = 0;
+			for (long c : snapshot) {
+				total += c;
+			}
+			if (total == 0) {
+				return 0L;
+			}
+			final long rank = (long) Math.ceil(total * Math.min(100d, Math.max(0d, percentile)) / 100d);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += snapshot[i];
+				if (seen >= Math.max(1L, rank)) {
+					return getBucketUpperBoundMicros(i);
+				}
+			}
+			return getBucketUpperBoundMicros(BUCKETS - 1);
+		}
+	}
+}
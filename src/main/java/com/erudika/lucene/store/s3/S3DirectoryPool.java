@@ -0,0 +1,592 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import com.github.davidmoten.aws.lw.client.Client;
+import java.io.Closeable;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.LockFactory;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * Shares resources between many directories in one JVM, e.g. one small index per tenant. All directories
+ * opened by a pool use the same S3 client (and its HTTP connections), the same block cache, whose capacity is
+ * then a global memory or disk budget, the same read-ahead and part buffer budgets, the same executor for
+ * background requests and the same fetch size, hedging and lock policies. The S3 requests of all directories are
+ * limited globally, by the number of requests in flight and by a rate. Each tenant is also limited to a fraction
+ * of the global concurrency and requests wait for permits in arrival order, so that a busy tenant can't starve
+ * the others. Requests of lock factories are not limited, so that a busy tenant doesn't lose its write lock.
+ * <p>
+ * Usage:
+ * <pre>
+ * S3DirectoryPool pool = new S3DirectoryPool(s3, "my-bucket", 256, 16, 3000);
+ * pool.setBlockCache(new S3MemoryBlockCache(1024L * 1024 * 1024));
+ * Directory dir = pool.open("tenant1", "indices/tenant1/");
+ * </pre>
+ * Closing a directory doesn't close the shared resources. Closing the pool shuts down the executor, unless it
+ * was set with {@link #setExecutor(ExecutorService)}. The block cache is never closed by the pool.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class S3DirectoryPool implements Closeable {
+
+	/**
+	 * Default maximum number of S3 requests in flight, across all directories.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 256;
+
+	/**
+	 * Default maximum number of S3 requests in flight for one tenant.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT_REQUESTS_PER_TENANT = 32;
+
+	private final ConcurrentHashMap<String, Tenant> tenants = new ConcurrentHashMap<>();
+	private final List<S3DirectoryListener> listeners = new CopyOnWriteArrayList<>();
+	private final Client s3;
+	private final String bucket;
+	private final int maxConcurrentRequests;
+	private final int maxConcurrentRequestsPerTenant;
+	private final Semaphore requests;
+	private final RateLimiter rateLimiter;
+	private S3BlockCache blockCache;
+	private int maxReadAheadBytes = S3Directory.DEFAULT_MAX_READ_AHEAD_BYTES;
+	private S3ReadAheadBuffers readAheadBuffers = new S3ReadAheadBuffers(maxReadAheadBytes);
+	private S3PartBuffers partBuffers = new S3PartBuffers(S3Directory.DEFAULT_MAX_PART_BUFFER_BYTES);
+	private ExecutorService executor;
+	private boolean ownsExecutor;
+	private S3FetchSizePolicy fetchSizePolicy = new S3FetchSizePolicy();
+	private S3HedgingPolicy hedgingPolicy;
+	private LockFactory lockFactory;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new pool with the default concurrency limits and no rate limit.
+	 *
+	 * @param s3 An AWS S3 client instance, shared by all directories
+	 * @param bucket S3 bucket name
+	 */
+	public S3DirectoryPool(Client s3, String bucket) {
+		this(s3, bucket, DEFAULT_MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_CONCURRENT_REQUESTS_PER_TENANT, 0d);
+	}
+
+	/**
+	 * Creates a new pool.
+	 *
+	 * @param s3 An AWS S3 client instance, shared by all directories
+	 * @param bucket S3 bucket name
+	 * @param maxConcurrentRequests maximum number of S3 requests in flight, across all directories
+	 * @param maxConcurrentRequestsPerTenant maximum number of S3 requests in flight for one tenant
+	 * @param maxRequestsPerSecond maximum rate of S3 requests across all directories, 0 for no limit
+	 */
+	public S3DirectoryPool(Client s3, String bucket, int maxConcurrentRequests, int maxConcurrentRequestsPerTenant,
+			double maxRequestsPerSecond) {
+		if (maxConcurrentRequests < 1 || maxConcurrentRequestsPerTenant < 1) {
+			throw new IllegalArgumentException("Concurrency limits must be at least 1");
+		}
+		if (maxRequestsPerSecond < 0) {
+			throw new IllegalArgumentException("maxRequestsPerSecond must not be negative");
+		}
+		this.s3 = s3;
+		this.bucket = bucket.toLowerCase(Locale.ENGLISH);
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.maxConcurrentRequestsPerTenant = Math.min(maxConcurrentRequestsPerTenant, maxConcurrentRequests);
+		this.requests = new Semaphore(maxConcurrentRequests, true);
+		this.rateLimiter = maxRequestsPerSecond > 0 ? new RateLimiter(maxRequestsPerSecond) : null;
+	}
+
+	/**
+	 * Opens a directory which uses the shared resources of this pool. Its S3 requests count towards the limits
+	 * of the given tenant. Several directories may belong to the same tenant.
+	 *
+	 * @param tenant the tenant which owns the directory
+	 * @param path The S3 path (path prefix) within the bucket
+	 * @return a new directory
+	 */
+	public synchronized S3Directory open(String tenant, String path) {
+		if (closed) {
+			throw new AlreadyClosedException("this S3DirectoryPool is closed");
+		}
+		final S3Directory directory = new S3Directory(s3, bucket, path);
+		final Tenant tenantLimits = tenants.computeIfAbsent(tenant, t -> new Tenant(this));
+		tenantLimits.executor = getExecutor();
+		directory.setBlockCache(blockCache);
+		directory.setReadAheadBuffers(readAheadBuffers);
+		directory.setPartBuffers(partBuffers);
+		directory.setExecutor(tenantLimits);
+		directory.setFetchSizePolicy(fetchSizePolicy);
+		directory.setHedgingPolicy(hedgingPolicy);
+		if (lockFactory != null) {
+			directory.setLockFactory(lockFactory);
+		}
+		for (S3DirectoryListener listener : listeners) {
+			directory.addListener(listener);
+		}
+		directory.setTenant(tenantLimits);
+		return directory;
+	}
+
+	/**
+	 * Returns the S3 client shared by all directories.
+	 *
+	 * @return the S3 client
+	 */
+	public Client getS3() {
+		return s3;
+	}
+
+	/**
+	 * Returns the bucket name.
+	 *
+	 * @return the bucket name
+	 */
+	public String getBucket() {
+		return bucket;
+	}
+
+	/**
+	 * Returns the maximum number of S3 requests in flight, across all directories.
+	 *
+	 * @return max number of requests
+	 */
+	public int getMaxConcurrentRequests() {
+		return maxConcurrentRequests;
+	}
+
+	/**
+	 * Returns the maximum number of S3 requests in flight for one tenant.
+	 *
+	 * @return max number of requests
+	 */
+	public int getMaxConcurrentRequestsPerTenant() {
+		return maxConcurrentRequestsPerTenant;
+	}
+
+	/**
+	 * Returns the number of S3 requests in flight, across all directories.
+	 *
+	 * @return number of requests
+	 */
+	public int getActiveRequests() {
+		return maxConcurrentRequests - requests.availablePermits();
+	}
+
+	/**
+	 * Returns the number of S3 requests in flight for one tenant.
+	 *
+	 * @param tenant the tenant
+	 * @return number of requests
+	 */
+	public int getActiveRequests(String tenant) {
+		final Tenant t = tenants.get(tenant);
+		return t == null ? 0 : maxConcurrentRequestsPerTenant - t.requests.availablePermits();
+	}
+
+	/**
+	 * Returns the block cache shared by all directories.
+	 *
+	 * @return the block cache or <code>null</code>
+	 */
+	public S3BlockCache getBlockCache() {
+		return blockCache;
+	}
+
+	/**
+	 * Sets the block cache shared by all directories opened after this call. Blocks are keyed by bucket and
+	 * object key, so directories don't see each other's blocks, and the capacity of the cache bounds the memory
+	 * or disk used by all of them.
+	 *
+	 * @param blockCache a block cache, e.g. {@link S3MemoryBlockCache} or {@link S3DiskBlockCache}
+	 */
+	public synchronized void setBlockCache(S3BlockCache blockCache) {
+		this.blockCache = blockCache;
+	}
+
+	/**
+	 * Returns the maximum number of bytes held by the read-ahead windows of all directories.
+	 *
+	 * @return size in bytes
+	 */
+	public synchronized int getMaxReadAheadBytes() {
+		return maxReadAheadBytes;
+	}
+
+	/**
+	 * Sets the maximum number of bytes held by the read-ahead windows of all directories opened after this call.
+	 *
+	 * @param maxReadAheadBytes size in bytes
+	 * @see S3Directory#setMaxReadAheadBytes(int)
+	 */
+	public synchronized void setMaxReadAheadBytes(int maxReadAheadBytes) {
+		this.maxReadAheadBytes = maxReadAheadBytes;
+		this.readAheadBuffers = new S3ReadAheadBuffers(maxReadAheadBytes);
+	}
+
+	/**
+	 * Returns the maximum number of bytes of the parts of all directories being uploaded at the same time.
+	 *
+	 * @return size in bytes
+	 */
+	public synchronized int getMaxPartBufferBytes() {
+		return partBuffers.getMaxBytes();
+	}
+
+	/**
+	 * Sets the maximum number of bytes of the parts of all directories opened after this call being uploaded
+	 * at the same time.
+	 *
+	 * @param maxPartBufferBytes size in bytes, at least {@link S3Directory#MIN_PART_SIZE}
+	 * @see S3Directory#setMaxPartBufferBytes(int)
+	 */
+	public synchronized void setMaxPartBufferBytes(int maxPartBufferBytes) {
+		if (maxPartBufferBytes < S3Directory.MIN_PART_SIZE) {
+			throw new IllegalArgumentException("The part buffer budget must be at least " + S3Directory.MIN_PART_SIZE + " bytes.");
+		}
+		this.partBuffers = new S3PartBuffers(maxPartBufferBytes);
+	}
+
+	/**
+	 * Sets the executor which runs the background S3 requests of all directories opened after this call.
+	 * By default, the pool creates a virtual thread per task on Java 21 or newer, and a fixed pool of
+	 * {@link S3Directory#DEFAULT_IO_THREADS} daemon threads otherwise. An executor set here is not shut down
+	 * when the pool is closed. The tasks of a tenant are queued until it has a request permit, so they never
+	 * block a thread of the executor while other tenants could use it.
+	 *
+	 * @param executor an executor service
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+		if (this.executor != null && ownsExecutor) {
+			this.executor.shutdown();
+		}
+		this.executor = executor;
+		this.ownsExecutor = false;
+	}
+
+	/**
+	 * Returns the executor which runs background S3 requests, creating it on first use.
+	 *
+	 * @return an executor service
+	 */
+	public synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = S3Executors.newExecutor(S3Directory.DEFAULT_IO_THREADS, true);
+			ownsExecutor = true;
+		}
+		return executor;
+	}
+
+	/**
+	 * Sets the fetch size policy of all directories opened after this call.
+	 *
+	 * @param fetchSizePolicy a policy, or <code>null</code> to always use the default buffer size
+	 */
+	public synchronized void setFetchSizePolicy(S3FetchSizePolicy fetchSizePolicy) {
+		this.fetchSizePolicy = fetchSizePolicy;
+	}
+
+	/**
+	 * Sets the hedging policy of all directories opened after this call.
+	 *
+	 * @param hedgingPolicy a policy, or <code>null</code> to disable hedging
+	 */
+	public synchronized void setHedgingPolicy(S3HedgingPolicy hedgingPolicy) {
+		this.hedgingPolicy = hedgingPolicy;
+	}
+
+	/**
+	 * Sets the lock factory of all directories opened after this call.
+	 *
+	 * @param lockFactory a lock factory, or <code>null</code> for the default {@link S3LockFactory}
+	 */
+	public synchronized void setLockFactory(LockFactory lockFactory) {
+		this.lockFactory = lockFactory;
+	}
+
+	/**
+	 * Adds a listener to all directories opened after this call, e.g. one {@link S3DirectoryMetrics}
+	 * for the whole pool.
+	 *
+	 * @param listener a listener
+	 */
+	public void addListener(S3DirectoryListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Shuts down the executor, unless it was set with {@link #setExecutor(ExecutorService)}.
+	 * Directories opened by the pool should be closed first. Background tasks still queued by their tenants fail.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (executor != null && ownsExecutor) {
+			executor.shutdown();
+			executor = null;
+			for (Tenant tenant : tenants.values()) {
+				tenant.failWaiting();
+			}
+		}
+	}
+
+	/**
+	 * The request permits of one tenant, and the executor of its background requests. A request first waits for
+	 * the rate limit, then takes a permit of its tenant and finally a global permit. Both semaphores are fair,
+	 * so waiting requests are served in order and no tenant holds more than its share of the global permits.
+	 * <p>
+	 * Background tasks don't wait for a tenant permit on a thread of the shared executor, where a busy tenant
+	 * could hold all threads. They wait for the rate limit of their first request and then in a queue of the tenant,
+	 * and are handed to the shared executor with a tenant permit, which they hold until they end.
+	 * The requests of a task don't take another tenant permit. Tasks which can't be handed to the shared executor
+	 * because it was shut down fail, see {@link Task#fail()}.
+	 */
+	static final class Tenant extends AbstractExecutorService {
+
+		private static final ThreadLocal<Task> CURRENT = new ThreadLocal<>();
+
+		private final S3DirectoryPool pool;
+		private final Semaphore requests;
+		private final Queue<Task> waiting = new ConcurrentLinkedQueue<>();
+		private volatile ExecutorService executor;
+
+		Tenant(final S3DirectoryPool pool) {
+			this.pool = pool;
+			this.requests = new Semaphore(pool.maxConcurrentRequestsPerTenant, true);
+		}
+
+		/**
+		 * Waits until the tenant may send a request.
+		 *
+		 * @return true if a tenant permit was taken, false if the current task of the tenant holds one
+		 */
+		boolean acquire() {
+			final Task task = CURRENT.get();
+			final boolean dispatched = task != null && task.tenant == this;
+			if (dispatched && task.failed) {
+				throw new AlreadyClosedException("The executor of the directory pool is shut down");
+			}
+			try {
+				if (dispatched && task.rateReserved) {
+					task.rateReserved = false;
+				} else if (pool.rateLimiter != null) {
+					pool.rateLimiter.acquire();
+				}
+				if (!dispatched) {
+					requests.acquire();
+				}
+			} catch (InterruptedException e) {
+				// a permit may have been left for the queued tasks
+				dispatch();
+				throw new ThreadInterruptedException(e);
+			}
+			try {
+				pool.requests.acquire();
+			} catch (InterruptedException e) {
+				if (!dispatched) {
+					releasePermit();
+				}
+				throw new ThreadInterruptedException(e);
+			}
+			return !dispatched;
+		}
+
+		/**
+		 * Releases the permits taken by {@link #acquire()}.
+		 *
+		 * @param tenantPermit the value returned by {@link #acquire()}
+		 */
+		void release(final boolean tenantPermit) {
+			pool.requests.release();
+			if (tenantPermit) {
+				releasePermit();
+			}
+		}
+
+		private void releasePermit() {
+			requests.release();
+			dispatch();
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+			final ExecutorService shared = executor;
+			if (shared.isShutdown()) {
+				throw new RejectedExecutionException("The executor of the directory pool is shut down");
+			}
+			final Task task = new Task(this, command, pool.rateLimiter != null);
+			final long delay = task.rateReserved ? pool.rateLimiter.reserve() : 0L;
+			if (delay > 0) {
+				CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> enqueue(task));
+			} else {
+				enqueue(task);
+			}
+		}
+
+		private void enqueue(final Task task) {
+			waiting.add(task);
+			dispatch();
+		}
+
+		/**
+		 * Hands queued tasks to the shared executor while the tenant has free permits. Requests which wait
+		 * for a permit are served first.
+		 */
+		private void dispatch() {
+			while (!waiting.isEmpty() && !requests.hasQueuedThreads() && requests.tryAcquire()) {
+				final Task task = waiting.poll();
+				if (task == null) {
+					requests.release();
+					continue;
+				}
+				try {
+					executor.execute(task);
+				} catch (@SuppressWarnings("unused") RejectedExecutionException e) {
+					// the pool was closed in the meantime
+					requests.release();
+					task.fail();
+				}
+			}
+		}
+
+		/**
+		 * Fails all queued tasks, once the shared executor has been shut down.
+		 */
+		void failWaiting() {
+			Task task;
+			while ((task = waiting.poll()) != null) {
+				task.fail();
+			}
+		}
+
+		/**
+		 * Does nothing, the shared executor is shut down by the pool.
+		 */
+		@Override
+		public void shutdown() {
+		}
+
+		/**
+		 * Does nothing, the shared executor is shut down by the pool.
+		 *
+		 * @return an empty list
+		 */
+		@Override
+		public List<Runnable> shutdownNow() {
+			return List.of();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return executor.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return executor.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+			return executor.awaitTermination(timeout, unit);
+		}
+	}
+
+	/**
+	 * A background task of a tenant, which holds a tenant permit while it runs.
+	 */
+	private static final class Task implements Runnable {
+
+		private final Tenant tenant;
+		private final Runnable command;
+		private boolean rateReserved;
+		private volatile boolean failed;
+
+		Task(final Tenant tenant, final Runnable command, final boolean rateReserved) {
+			this.tenant = tenant;
+			this.command = command;
+			this.rateReserved = rateReserved;
+		}
+
+		@Override
+		public void run() {
+			Tenant.CURRENT.set(this);
+			try {
+				command.run();
+			} finally {
+				Tenant.CURRENT.remove();
+				if (!failed) {
+					tenant.releasePermit();
+				}
+			}
+		}
+
+		/**
+		 * Runs a task which can't be handed to the shared executor anymore on the common pool, without any permits.
+		 * Each of its requests throws an {@link AlreadyClosedException} instead of being sent, so the task
+		 * completes its futures exceptionally. It never runs on the thread which released a permit.
+		 */
+		void fail() {
+			failed = true;
+			ForkJoinPool.commonPool().execute(this);
+		}
+	}
+
+	/**
+	 * Spaces requests evenly at a fixed rate, allowing bursts of up to one second worth of requests
+	 * after a quiet period.
+	 */
+	private static final class RateLimiter {
+
+		private final long intervalNanos;
+		private final long burstNanos = TimeUnit.SECONDS.toNanos(1);
+		private long next = System.nanoTime();
+
+		RateLimiter(final double requestsPerSecond) {
+			this.intervalNanos = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond));
+		}
+
+		/**
+		 * Reserves the next slot and returns how long to wait for it, in nanoseconds.
+		 */
+		long reserve() {
+			final long now = System.nanoTime();
+			synchronized (this) {
+				final long slot = Math.max(next, now - burstNanos);
+				next = slot + intervalNanos;
+				return slot - now;
+			}
+		}
+
+		void acquire() throws InterruptedException {
+			final long delay = reserve();
+			if (delay > 0) {
+				TimeUnit.NANOSECONDS.sleep(delay);
+			}
+		}
+	}
+}
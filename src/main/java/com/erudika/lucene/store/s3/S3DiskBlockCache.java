@@ -0,0 +1,451 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * A persistent block cache which stores blocks as files in a local directory and serves them
+ * through memory-mapped buffers. After warm-up, reads are served at close to <code>MMapDirectory</code> speed.
+ * The total size of the cache is bounded and the least recently used blocks are evicted first.
+ * Cached blocks survive restarts - they are picked up again when a new cache is created on the same directory.
+ * Along with the blocks of each file, the cache stores the version (ETag) of the object they were read from,
+ * and drops them when the file is opened again and the object has changed, or when their version is unknown.
+ * Blocks are indexed by file, so invalidating a file only visits its own blocks, and each file has a generation
+ * which changes when its blocks are dropped, so that a block read from the previous version is not stored.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class S3DiskBlockCache implements S3BlockCache {
+
+	/**
+	 * Default block size - 4 MB.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+
+	private static final String BLOCK_SUFFIX = ".blk";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String VERSION_SUFFIX = ".ver";
+
+	/**
+	 * Maximum number of direct buffers lent out for loading blocks, further loads use temporary heap buffers.
+	 */
+	private static final int MAX_LOAD_BUFFERS = 8;
+
+	/**
+	 * Maximum number of files without cached blocks whose generation is remembered.
+	 */
+	private static final int MAX_EMPTY_FILES = 10_000;
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<String, FileBlocks> files = new HashMap<>();
+	private long generations;
+	private long forgottenGeneration;
+	private int emptyFiles;
+	private final Map<String, String> versions = new HashMap<>();
+	private final AtomicLong tempCounter = new AtomicLong();
+	private final ArrayDeque<ByteBuffer> loadBuffers = new ArrayDeque<>();
+	private int allocatedLoadBuffers;
+	private final Path directory;
+	private final int blockSize;
+	private final long maxBytes;
+	private long usedBytes;
+
+	/**
+	 * Creates a new disk cache with the default block size.
+	 *
+	 * @param directory a local directory where blocks are stored
+	 * @param maxBytes the maximum size of the cache in bytes
+	 * @throws IOException if the cache directory can't be created or read
+	 */
+	public S3DiskBlockCache(Path directory, long maxBytes) throws IOException {
+		this(directory, DEFAULT_BLOCK_SIZE, maxBytes);
+	}
+
+	/**
+	 * Creates a new disk cache.
+	 *
+	 * @param directory a local directory where blocks are stored
+	 * @param blockSize the size of a block in bytes
+	 * @param maxBytes the maximum size of the cache in bytes
+	 * @throws IOException if the cache directory can't be created or read
+	 */
+	public S3DiskBlockCache(Path directory, int blockSize, long maxBytes) throws IOException {
+		if (blockSize <= 0 || maxBytes <= 0) {
+			throw new IllegalArgumentException("Block size and cache size must be positive.");
+		}
+		this.directory = Files.createDirectories(directory);
+		this.blockSize = blockSize;
+		this.maxBytes = maxBytes;
+		load();
+	}
+
+	/**
+	 * Registers the blocks left over from a previous run, oldest first, so that they are evicted first,
+	 * and the versions of the objects they were read from.
+	 */
+	private void load() throws IOException {
+		List<Path> blocks = new ArrayList<>();
+		try (Stream<Path> files = Files.list(directory)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				String fileName = file.getFileName().toString();
+				if (fileName.endsWith(TEMP_SUFFIX)) {
+					Files.deleteIfExists(file);
+				} else if (fileName.endsWith(BLOCK_SUFFIX)) {
+					blocks.add(file);
+				} else if (fileName.endsWith(VERSION_SUFFIX)) {
+					versions.put(fileName.substring(0, fileName.length() - VERSION_SUFFIX.length()),
+							Files.readString(file, StandardCharsets.UTF_8));
+				}
+			}
+		}
+		blocks.sort(Comparator.comparing(S3DiskBlockCache::lastModified));
+		synchronized (this) {
+			for (Path block : blocks) {
+				String fileName = block.getFileName().toString();
+				int separator = fileName.lastIndexOf('_');
+				if (separator > 0) {
+					add(fileName, fileName.substring(0, separator), Files.size(block));
+				}
+			}
+			evict();
+		}
+	}
+
+	@Override
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	@Override
+	public boolean read(String key, long block, int offset, ByteBuffer dst) {
+		final String fileName = fileName(hash(key), block);
+		final MappedByteBuffer mapped;
+		synchronized (this) {
+			Entry entry = entries.get(fileName);
+			if (entry == null) {
+				return false;
+			}
+			if (entry.mapped == null) {
+				try (FileChannel channel = FileChannel.open(directory.resolve(fileName), StandardOpenOption.READ)) {
+					entry.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				} catch (IOException e) {
+					remove(fileName);
+					return false;
+				}
+			}
+			mapped = entry.mapped;
+		}
+		// evicted mappings stay valid until they are garbage collected, so copying can be done outside the lock
+		if (offset + dst.remaining() > mapped.capacity()) {
+			return false;
+		}
+		dst.put(mapped.slice(offset, dst.remaining()));
+		return true;
+	}
+
+	@Override
+	public void put(String key, long block, ByteBuffer data) {
+		put(key, block, data, generation(key));
+	}
+
+	/**
+	 * Stores a block, unless the blocks of the file were dropped after the given generation. The block is written
+	 * to a temporary file outside the lock, and moved in place under the lock once its generation is checked.
+	 */
+	@Override
+	public void put(String key, long block, ByteBuffer data, long generation) {
+		final String hash = hash(key);
+		final String fileName = fileName(hash, block);
+		final long size = data.remaining();
+		synchronized (this) {
+			if (size > maxBytes || entries.containsKey(fileName) || generation != generationOf(hash)) {
+				return;
+			}
+		}
+		Path temp = directory.resolve(fileName + "." + tempCounter.incrementAndGet() + TEMP_SUFFIX);
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				ByteBuffer bytes = data.duplicate();
+				while (bytes.hasRemaining()) {
+					channel.write(bytes);
+				}
+			}
+			synchronized (this) {
+				if (entries.containsKey(fileName) || generation != generationOf(hash)) {
+					// stored by another request, or read from a version of the file which has been dropped since
+					deleteQuietly(temp);
+					return;
+				}
+				Files.move(temp, directory.resolve(fileName), StandardCopyOption.ATOMIC_MOVE);
+				add(fileName, hash, size);
+				evict();
+			}
+		} catch (IOException e) {
+			deleteQuietly(temp);
+		}
+	}
+
+	@Override
+	public synchronized long generation(String key) {
+		return generationOf(hash(key));
+	}
+
+	@Override
+	public ByteBuffer borrowBuffer(String key, long block) {
+		synchronized (loadBuffers) {
+			if (!loadBuffers.isEmpty()) {
+				return loadBuffers.pop().clear();
+			}
+			if (allocatedLoadBuffers < MAX_LOAD_BUFFERS) {
+				allocatedLoadBuffers++;
+				return ByteBuffer.allocateDirect(blockSize);
+			}
+		}
+		return ByteBuffer.allocate(blockSize);
+	}
+
+	@Override
+	public void returnBuffer(String key, long block, ByteBuffer buffer) {
+		if (buffer.isDirect()) {
+			synchronized (loadBuffers) {
+				loadBuffers.push(buffer);
+			}
+		}
+	}
+
+	@Override
+	public synchronized boolean contains(String key, long block) {
+		return entries.containsKey(fileName(hash(key), block));
+	}
+
+	@Override
+	public synchronized void invalidate(String key) {
+		final String hash = hash(key);
+		removeBlocks(hash);
+		if (versions.remove(hash) != null) {
+			deleteQuietly(directory.resolve(hash + VERSION_SUFFIX));
+		}
+	}
+
+	@Override
+	public synchronized void validate(String key, String version) {
+		final String hash = hash(key);
+		if (version.equals(versions.get(hash))) {
+			return;
+		}
+		// the blocks were read from another version of the object, or from an unknown one
+		removeBlocks(hash);
+		try {
+			Files.writeString(directory.resolve(hash + VERSION_SUFFIX), version, StandardCharsets.UTF_8);
+			versions.put(hash, version);
+		} catch (@SuppressWarnings("unused") IOException e) {
+			// the blocks will be validated again on the next open
+			versions.remove(hash);
+		}
+	}
+
+	/**
+	 * Drops the blocks of a file and starts a new generation, so that blocks being loaded from the previous
+	 * version of the file are not stored.
+	 */
+	private void removeBlocks(String hash) {
+		FileBlocks file = files.get(hash);
+		if (file == null) {
+			file = new FileBlocks(0L);
+			files.put(hash, file);
+			emptyFiles++;
+		} else if (!file.blocks.isEmpty()) {
+			for (String fileName : file.blocks) {
+				Entry entry = entries.remove(fileName);
+				if (entry != null) {
+					usedBytes -= entry.size;
+				}
+				deleteQuietly(directory.resolve(fileName));
+			}
+			file.blocks.clear();
+			emptyFiles++;
+		}
+		file.generation = ++generations;
+		forgetEmptyFiles();
+	}
+
+	private long generationOf(String hash) {
+		FileBlocks file = files.get(hash);
+		return file == null ? forgottenGeneration : file.generation;
+	}
+
+	/**
+	 * Registers a cached block in the index of its file.
+	 */
+	private void add(String fileName, String hash, long size) {
+		Entry previous = entries.put(fileName, new Entry(hash, size));
+		if (previous != null) {
+			usedBytes -= previous.size;
+		}
+		usedBytes += size;
+		FileBlocks file = files.get(hash);
+		if (file == null) {
+			file = new FileBlocks(forgottenGeneration);
+			files.put(hash, file);
+		} else if (file.blocks.isEmpty()) {
+			emptyFiles--;
+		}
+		file.blocks.add(fileName);
+	}
+
+	/**
+	 * Removes a block from the index of its file.
+	 */
+	private void unindex(String fileName, Entry entry) {
+		FileBlocks file = files.get(entry.hash);
+		if (file != null && file.blocks.remove(fileName) && file.blocks.isEmpty()) {
+			emptyFiles++;
+			forgetEmptyFiles();
+		}
+	}
+
+	/**
+	 * Forgets the files without cached blocks once there are too many of them. Their generation falls back
+	 * to a new common one, which no block being loaded for them can have.
+	 */
+	private void forgetEmptyFiles() {
+		if (emptyFiles <= MAX_EMPTY_FILES) {
+			return;
+		}
+		files.values().removeIf(file -> file.blocks.isEmpty());
+		forgottenGeneration = ++generations;
+		emptyFiles = 0;
+	}
+
+	/**
+	 * Releases all memory mappings. Cached blocks are kept on disk and will be reused by the next cache instance.
+	 */
+	@Override
+	public synchronized void close() {
+		for (Entry entry : entries.values()) {
+			entry.mapped = null;
+		}
+	}
+
+	/**
+	 * Returns the total size of all cached blocks.
+	 *
+	 * @return size in bytes
+	 */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	private void evict() {
+		for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); usedBytes > maxBytes && it.hasNext();) {
+			Map.Entry<String, Entry> eldest = it.next();
+			it.remove();
+			usedBytes -= eldest.getValue().size;
+			unindex(eldest.getKey(), eldest.getValue());
+			deleteQuietly(directory.resolve(eldest.getKey()));
+		}
+	}
+
+	private void remove(String fileName) {
+		Entry entry = entries.remove(fileName);
+		if (entry != null) {
+			usedBytes -= entry.size;
+			unindex(fileName, entry);
+		}
+		deleteQuietly(directory.resolve(fileName));
+	}
+
+	private static String fileName(String hash, long block) {
+		return hash + "_" + block + BLOCK_SUFFIX;
+	}
+
+	private static String hash(String key) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(md.digest(key.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			// should never get here
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static long lastModified(Path file) {
+		try {
+			return Files.readAttributes(file, BasicFileAttributes.class).lastModifiedTime().toMillis();
+		} catch (@SuppressWarnings("unused") IOException e) {
+			return 0L;
+		}
+	}
+
+	private static void deleteQuietly(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (@SuppressWarnings("unused") IOException e) {
+		}
+	}
+
+	/**
+	 * A cached block.
+	 */
+	private static final class Entry {
+		private final String hash;
+		private final long size;
+		private MappedByteBuffer mapped;
+
+		Entry(String hash, long size) {
+			this.hash = hash;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * The cached blocks of one file and their generation.
+	 */
+	private static final class FileBlocks {
+		private final Set<String> blocks = new HashSet<>();
+		private long generation;
+
+		FileBlocks(long generation) {
+			this.generation = generation;
+		}
+	}
+}
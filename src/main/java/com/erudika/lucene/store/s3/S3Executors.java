@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors which run background S3 requests.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class S3Executors {
+
+	private S3Executors() {
+	}
+
+	/**
+	 * Returns <code>true</code> if the JVM supports virtual threads, i.e. Java 21 or newer.
+	 */
+	static boolean isVirtualThreadsSupported() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (@SuppressWarnings("unused") NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Creates an executor for background S3 requests, either a virtual thread per task or, if virtual threads
+	 * are off or not supported, a fixed pool of daemon threads.
+	 *
+	 * @param threads number of threads of the fixed pool
+	 * @param virtual true to use virtual threads
+	 * @return an executor
+	 */
+	static ExecutorService newExecutor(final int threads, final boolean virtual) {
+		final ExecutorService virtualExecutor = virtual ? newVirtualThreadExecutor() : null;
+		if (virtualExecutor != null) {
+			return virtualExecutor;
+		}
+		final AtomicInteger counter = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "s3directory-io-" + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Creates an executor which starts a new virtual thread for each task.
+	 *
+	 * @return an executor, or <code>null</code> if the JVM doesn't support virtual threads
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			// Executors.newVirtualThreadPerTaskExecutor() is available since Java 21
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (@SuppressWarnings("unused") ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+}
+
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.BufferedIndexInput;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.ReadAdvice;
+
+/**
+ * Decides how many bytes an index input reads at a time, i.e. the size of its buffer and of each ranged GET
+ * when there's no block cache. Inputs opened for merges, flushes and sequential reads
+ * (e.g. {@link IOContext#READONCE}) get a fixed size per context. Other inputs get a size per file extension,
+ * e.g. small for term dictionary lookups in <code>.tim</code> files and larger for stored field chunks in
+ * <code>.fdt</code> files. The slices of a compound file are sized by the extension of the file they contain.
+ * <p>
+ * If adaptive sizing is on, the size for an extension follows the observed access pattern: it is doubled
+ * when most refills of its inputs continue where the previous one ended, because the reader consumed the whole
+ * buffer, and halved when most refills jump elsewhere and the rest of the buffer was wasted.
+ * Sizes change for inputs opened afterwards.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class S3FetchSizePolicy {
+
+	/**
+	 * Default size for files with an unknown extension - the Lucene default buffer size.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = BufferedIndexInput.BUFFER_SIZE;
+
+	/**
+	 * Default size for inputs opened for merges.
+	 */
+	public static final int DEFAULT_MERGE_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Default size for inputs opened for flushes.
+	 */
+	public static final int DEFAULT_FLUSH_BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * Default size for inputs which are read sequentially, e.g. with {@link IOContext#READONCE}.
+	 */
+	public static final int DEFAULT_SEQUENTIAL_BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * Default lower bound of adaptive sizes, the default buffer size of Lucene inputs - 1 KB. Every refill is a request,
+	 * smaller ones would only add round trips.
+	 */
+	public static final int DEFAULT_MIN_BUFFER_SIZE = BufferedIndexInput.BUFFER_SIZE;
+
+	/**
+	 * Default upper bound of adaptive sizes.
+	 */
+	public static final int DEFAULT_MAX_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Number of refills of an extension after which its size is adapted.
+	 */
+	static final int ADAPT_INTERVAL = 256;
+
+	private final Map<String, Access> extensions = new ConcurrentHashMap<>();
+	private final Access other = new Access(DEFAULT_BUFFER_SIZE);
+	private volatile int mergeBufferSize = DEFAULT_MERGE_BUFFER_SIZE;
+	private volatile int flushBufferSize = DEFAULT_FLUSH_BUFFER_SIZE;
+	private volatile int sequentialBufferSize = DEFAULT_SEQUENTIAL_BUFFER_SIZE;
+	private volatile int minBufferSize = DEFAULT_MIN_BUFFER_SIZE;
+	private volatile int maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+	private volatile boolean adaptive = true;
+
+	/**
+	 * Creates a new policy with default sizes for the files of the default codec.
+	 */
+	public S3FetchSizePolicy() {
+		// terms blocks, postings blocks and doc values are read a few KB at a time
+		setBufferSize("tim", 4 * 1024);
+		setBufferSize("doc", 4 * 1024);
+		setBufferSize("pos", 4 * 1024);
+		setBufferSize("pay", 4 * 1024);
+		setBufferSize("dvd", 4 * 1024);
+		setBufferSize("kdd", 4 * 1024);
+		// stored fields are decompressed a chunk at a time
+		setBufferSize("fdt", 16 * 1024);
+		setBufferSize("tvd", 16 * 1024);
+		// a float vector of a few hundred dimensions, graph neighbors are small random reads
+		setBufferSize("vec", 4 * 1024);
+		setBufferSize("vex", 1024);
+		setBufferSize("veq", 1024);
+	}
+
+	/**
+	 * Returns the current size for inputs of files with the given extension, opened for random access.
+	 *
+	 * @param extension a file extension, e.g. "tim"
+	 * @return size in bytes
+	 */
+	public int getBufferSize(String extension) {
+		final Access access = extensions.get(extension);
+		return (access == null ? other : access).bufferSize;
+	}
+
+	/**
+	 * Sets the size for inputs of files with the given extension, opened for random access.
+	 * If adaptive sizing is on, this is the initial size.
+	 *
+	 * @param extension a file extension, e.g. "tim"
+	 * @param bufferSize size in bytes, at least {@link #DEFAULT_MIN_BUFFER_SIZE}
+	 */
+	public void setBufferSize(String extension, int bufferSize) {
+		checkSize(bufferSize);
+		extensions.computeIfAbsent(extension, e -> new Access(bufferSize)).bufferSize = bufferSize;
+	}
+
+	/**
+	 * Sets the size for inputs of files with an extension which has no size of its own.
+	 *
+	 * @param bufferSize size in bytes, at least {@link #DEFAULT_MIN_BUFFER_SIZE}
+	 */
+	public void setDefaultBufferSize(int bufferSize) {
+		checkSize(bufferSize);
+		other.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Sets the size for inputs opened for merges. Merges read ahead in much larger chunks anyway,
+	 * see {@link S3Directory#setReadAheadSize(int)}, this is how much is copied from those chunks at a time.
+	 *
+	 * @param bufferSize size in bytes, at least {@link #DEFAULT_MIN_BUFFER_SIZE}
+	 */
+	public void setMergeBufferSize(int bufferSize) {
+		checkSize(bufferSize);
+		this.mergeBufferSize = bufferSize;
+	}
+
+	/**
+	 * Sets the size for inputs opened for flushes.
+	 *
+	 * @param bufferSize size in bytes, at least {@link #DEFAULT_MIN_BUFFER_SIZE}
+	 */
+	public void setFlushBufferSize(int bufferSize) {
+		checkSize(bufferSize);
+		this.flushBufferSize = bufferSize;
+	}
+
+	/**
+	 * Sets the size for inputs which are read sequentially, e.g. with {@link IOContext#READONCE}.
+	 *
+	 * @param bufferSize size in bytes, at least {@link #DEFAULT_MIN_BUFFER_SIZE}
+	 */
+	public void setSequentialBufferSize(int bufferSize) {
+		checkSize(bufferSize);
+		this.sequentialBufferSize = bufferSize;
+	}
+
+	/**
+	 * Sets the bounds of adaptive sizes.
+	 *
+	 * @param minBufferSize lower bound in bytes, at least {@link #DEFAULT_MIN_BUFFER_SIZE}
+	 * @param maxBufferSize upper bound in bytes
+	 */
+	public void setBufferSizeBounds(int minBufferSize, int maxBufferSize) {
+		if (minBufferSize < DEFAULT_MIN_BUFFER_SIZE) {
+			throw new IllegalArgumentException("minBufferSize must be at least " + DEFAULT_MIN_BUFFER_SIZE);
+		}
+		if (maxBufferSize < minBufferSize) {
+			throw new IllegalArgumentException("maxBufferSize must not be smaller than minBufferSize");
+		}
+		this.minBufferSize = minBufferSize;
+		this.maxBufferSize = maxBufferSize;
+	}
+
+	/**
+	 * Returns <code>true</code> if sizes adapt to the observed access pattern.
+	 *
+	 * @return true if adaptive sizing is on
+	 */
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * Turns adaptive sizing on or off. It's on by default.
+	 *
+	 * @param adaptive true to adapt sizes to the observed access pattern
+	 */
+	public void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	private static void checkSize(final int bufferSize) {
+		if (bufferSize < DEFAULT_MIN_BUFFER_SIZE) {
+			throw new IllegalArgumentException("bufferSize must be at least " + DEFAULT_MIN_BUFFER_SIZE);
+		}
+	}
+
+	/**
+	 * Returns the access statistics of a file or of a compound file slice, by its extension. Files without
+	 * a registered extension share one set of statistics, an unknown slice keeps the statistics of its file.
+	 */
+	Access access(final String name, final Access parent) {
+		final String ext = IndexFileNames.getExtension(name);
+		final Access access = ext == null ? null : extensions.get(ext);
+		if (access != null) {
+			return access;
+		}
+		return parent == null ? other : parent;
+	}
+
+	/**
+	 * Returns the buffer size of an input.
+	 */
+	int bufferSize(final Access access, final IOContext context) {
+		if (context != null && context.context() == IOContext.Context.MERGE) {
+			return mergeBufferSize;
+		}
+		if (context != null && context.context() == IOContext.Context.FLUSH) {
+			return flushBufferSize;
+		}
+		if (context != null && context.readAdvice() == ReadAdvice.SEQUENTIAL) {
+			return sequentialBufferSize;
+		}
+		return access.bufferSize;
+	}
+
+	/**
+	 * Checks if the refills of an input opened in the given context are recorded - only random access inputs are.
+	 */
+	boolean isRecorded(final IOContext context) {
+		return adaptive && (context == null || (context.context() == IOContext.Context.DEFAULT
+				&& context.readAdvice() != ReadAdvice.SEQUENTIAL));
+	}
+
+	/**
+	 * Refill statistics and the current size of the inputs of one file extension.
+	 */
+	final class Access {
+
+		private final AtomicInteger refills = new AtomicInteger();
+		private final AtomicInteger sequential = new AtomicInteger();
+		private volatile int bufferSize;
+
+		Access(final int bufferSize) {
+			this.bufferSize = bufferSize;
+		}
+
+		/**
+		 * Records a buffer refill.
+		 *
+		 * @param continued true if the refill starts where the previous one ended
+		 */
+		void record(final boolean continued) {
+			if (continued) {
+				sequential.incrementAndGet();
+			}
+			if (refills.incrementAndGet() == ADAPT_INTERVAL) {
+				adapt();
+			}
+		}
+
+		private synchronized void adapt() {
+			final int seq = sequential.getAndSet(0);
+			refills.set(0);
+			int size = bufferSize;
+			if (seq * 2 >= ADAPT_INTERVAL) {
+				size *= 2;
+			} else if (seq * 10 <= ADAPT_INTERVAL) {
+				size /= 2;
+			}
+			// an initial size outside of the bounds is brought within them
+			bufferSize = Math.max(minBufferSize, Math.min(maxBufferSize, size));
+		}
+	}
+}
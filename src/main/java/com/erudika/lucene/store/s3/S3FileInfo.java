@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Metadata of a file stored in S3, as returned by a listing or a HEAD request.
+ *
+ * @param length file length in bytes
+ * @param eTag the entity tag of the object, or <code>null</code> if unknown
+ * @param lastModified last modification time in milliseconds, or 0 if unknown
+ * @param sequence the local sequence number of the last write or rename of the file by this directory,
+ * or 0 if the metadata was read from S3
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+record S3FileInfo(long length, String eTag, long lastModified, long sequence) {
+
+	/**
+	 * Creates the metadata of a file which was just written by this directory.
+	 */
+	static S3FileInfo written(final long length, final long sequence) {
+		return new S3FileInfo(length, null, System.currentTimeMillis(), sequence);
+	}
+
+	/**
+	 * Returns a copy of the metadata with another local sequence number, e.g. for a file which was just renamed.
+	 */
+	S3FileInfo withSequence(final long newSequence) {
+		return new S3FileInfo(length, eTag, lastModified, newSequence);
+	}
+
+	/**
+	 * Parses the <code>Size</code>, <code>ETag</code> and <code>LastModified</code> values of a listing entry.
+	 */
+	static S3FileInfo fromListing(final String size, final String eTag, final String lastModified) {
+		long modified = 0L;
+		try {
+			modified = Instant.parse(lastModified).toEpochMilli();
+		} catch (@SuppressWarnings("unused") Exception e) {
+			// unknown
+		}
+		return new S3FileInfo(Long.parseLong(size), eTag, modified, 0L);
+	}
+
+	/**
+	 * Parses the <code>Content-Length</code>, <code>ETag</code> and <code>Last-Modified</code> headers of a response.
+	 */
+	static S3FileInfo fromHeaders(final Map<String, List<String>> headers) {
+		long modified = 0L;
+		try {
+			modified = ZonedDateTime.parse(S3Directory.header(headers, "Last-Modified").orElse(""),
+					DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (@SuppressWarnings("unused") Exception e) {
+			// unknown
+		}
+		return new S3FileInfo(Long.parseLong(S3Directory.header(headers, "Content-Length").orElse("0")),
+				S3Directory.header(headers, "ETag").orElse(null), modified, 0L);
+	}
+}
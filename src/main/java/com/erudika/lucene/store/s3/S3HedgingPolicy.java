@@ -0,0 +1,428 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * Hedged ranged reads. A read which hasn't completed within a delay, derived from a percentile of the latencies
+ * of the last {@value #WINDOW_SIZE} reads, is sent a second time and the first successful response is used. This cuts the long tail of S3 GET
+ * latency at the cost of a few extra requests. The number of hedged requests is capped by a budget - a fraction
+ * of all reads. Reads for merges and reads larger than {@link #getMaxReadSize()} are never hedged, because
+ * their latency is dominated by transfer time, not by a slow first byte.
+ * <p>
+ * Usage:
+ * <pre>
+ * S3HedgingPolicy hedging = new S3HedgingPolicy();
+ * hedging.setPercentile(95);
+ * hedging.setBudget(0.05);
+ * directory.setHedgingPolicy(hedging);
+ * </pre>
+ * The original request is sent by the reading thread, only the second one runs on the executor of the directory.
+ * The second request is cancelled if the original one finishes before its delay. The first successful request
+ * aborts the other one - its response is closed, and with {@link S3HttpClient} a request which still waits for
+ * its response headers is cancelled too. With other transports, the reader waits for the headers of its own request.
+ * The reading thread is never interrupted. Reads on the threads of the executor, e.g. those of a warm-up, are never
+ * hedged.
+ * <p>
+ * A policy is thread-safe and may be shared by several directories reading from the same endpoint.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class S3HedgingPolicy {
+
+	/**
+	 * Default latency percentile after which a read is hedged.
+	 */
+	public static final double DEFAULT_PERCENTILE = 95d;
+
+	/**
+	 * Default fraction of reads which may be hedged - 5%.
+	 */
+	public static final double DEFAULT_BUDGET = 0.05d;
+
+	/**
+	 * Default delay before a read is hedged, used until enough latencies have been recorded.
+	 */
+	public static final Duration DEFAULT_INITIAL_DELAY = Duration.ofMillis(100);
+
+	/**
+	 * Default lower bound of the hedging delay.
+	 */
+	public static final Duration DEFAULT_MIN_DELAY = Duration.ofMillis(10);
+
+	/**
+	 * Default maximum size of a read which may be hedged - 1 MB.
+	 */
+	public static final int DEFAULT_MAX_READ_SIZE = 1024 * 1024;
+
+	/**
+	 * Number of recorded latencies after which the delay is derived from the percentile.
+	 */
+	static final int MIN_SAMPLES = 100;
+
+	/**
+	 * Number of most recent read latencies from which the delay is derived.
+	 */
+	static final int WINDOW_SIZE = 1024;
+
+	/**
+	 * Number of recorded latencies after which the delay is derived again.
+	 */
+	static final int UPDATE_INTERVAL = 32;
+
+	private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+		final Thread thread = new Thread(r, "s3-hedging-scheduler");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static final ThreadLocal<Boolean> BACKGROUND = new ThreadLocal<>();
+
+	private final long[] window = new long[WINDOW_SIZE];
+	private int windowLength;
+	private int windowNext;
+	private long recorded;
+	private volatile long percentileNanos = -1L;
+	private final LongAdder hedges = new LongAdder();
+	private final LongAdder hedgeWins = new LongAdder();
+	private long reads;
+	private long hedged;
+	private volatile double percentile = DEFAULT_PERCENTILE;
+	private volatile double budget = DEFAULT_BUDGET;
+	private volatile long initialDelayNanos = DEFAULT_INITIAL_DELAY.toNanos();
+	private volatile long minDelayNanos = DEFAULT_MIN_DELAY.toNanos();
+	private volatile int maxReadSize = DEFAULT_MAX_READ_SIZE;
+
+	/**
+	 * Creates a new policy with the default settings.
+	 */
+	public S3HedgingPolicy() {
+	}
+
+	/**
+	 * Returns the latency percentile after which a read is hedged.
+	 *
+	 * @return a percentile between 0 and 100
+	 */
+	public double getPercentile() {
+		return percentile;
+	}
+
+	/**
+	 * Sets the latency percentile after which a read is hedged. With the 95th percentile,
+	 * about 5% of the reads are hedged, if the budget allows.
+	 *
+	 * @param percentile a percentile between 0 and 100
+	 */
+	public void setPercentile(double percentile) {
+		if (percentile <= 0 || percentile > 100) {
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		}
+		this.percentile = percentile;
+		synchronized (this) {
+			if (windowLength >= MIN_SAMPLES) {
+				updateDelay();
+			}
+		}
+	}
+
+	/**
+	 * Returns the fraction of reads which may be hedged.
+	 *
+	 * @return budget
+	 */
+	public double getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Sets the fraction of reads which may be hedged, e.g. 0.05 to add at most 5% more requests.
+	 * Reads which are slow after the budget is used up wait for their only request.
+	 *
+	 * @param budget a fraction between 0 and 1
+	 */
+	public void setBudget(double budget) {
+		if (budget < 0 || budget > 1) {
+			throw new IllegalArgumentException("budget must be between 0 and 1");
+		}
+		this.budget = budget;
+	}
+
+	/**
+	 * Sets the delay before a read is hedged, used until {@value #MIN_SAMPLES} read latencies have been recorded.
+	 *
+	 * @param initialDelay delay
+	 */
+	public void setInitialDelay(Duration initialDelay) {
+		this.initialDelayNanos = initialDelay.toNanos();
+	}
+
+	/**
+	 * Sets the lower bound of the hedging delay, so that reads from a very fast endpoint are not hedged
+	 * after a few microseconds of jitter.
+	 *
+	 * @param minDelay delay
+	 */
+	public void setMinDelay(Duration minDelay) {
+		this.minDelayNanos = minDelay.toNanos();
+	}
+
+	/**
+	 * Returns the maximum size of a read which may be hedged.
+	 *
+	 * @return size in bytes
+	 */
+	public int getMaxReadSize() {
+		return maxReadSize;
+	}
+
+	/**
+	 * Sets the maximum size of a read which may be hedged.
+	 *
+	 * @param maxReadSize size in bytes
+	 */
+	public void setMaxReadSize(int maxReadSize) {
+		this.maxReadSize = maxReadSize;
+	}
+
+	/**
+	 * Returns the current delay after which a read is hedged.
+	 *
+	 * @return delay
+	 */
+	public Duration getDelay() {
+		final long nanos = percentileNanos;
+		return Duration.ofNanos(Math.max(minDelayNanos, nanos < 0 ? initialDelayNanos : nanos));
+	}
+
+	/**
+	 * Records the latency of a read in the window, replacing the oldest one, and derives the delay again
+	 * every {@value #UPDATE_INTERVAL} reads.
+	 */
+	synchronized void record(final long nanos) {
+		window[windowNext] = nanos;
+		windowNext = (windowNext + 1) % WINDOW_SIZE;
+		windowLength = Math.min(WINDOW_SIZE, windowLength + 1);
+		recorded++;
+		if (windowLength >= MIN_SAMPLES && (windowLength == MIN_SAMPLES || recorded % UPDATE_INTERVAL == 0)) {
+			updateDelay();
+		}
+	}
+
+	private void updateDelay() {
+		final long[] sorted = Arrays.copyOf(window, windowLength);
+		Arrays.sort(sorted);
+		final int rank = (int) Math.ceil(percentile / 100d * sorted.length) - 1;
+		percentileNanos = sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+	}
+
+	/**
+	 * Returns the number of hedged requests sent.
+	 *
+	 * @return count
+	 */
+	public long getHedges() {
+		return hedges.sum();
+	}
+
+	/**
+	 * Returns the number of hedged requests which returned before the original request.
+	 *
+	 * @return count
+	 */
+	public long getHedgeWins() {
+		return hedgeWins.sum();
+	}
+
+	boolean appliesTo(final int length, final IOContext context) {
+		return length <= maxReadSize && (context == null || context.context() != IOContext.Context.MERGE)
+				&& BACKGROUND.get() == null;
+	}
+
+	/**
+	 * Runs a background task which reads through index inputs, e.g. on a thread of the executor, without hedging
+	 * its reads. A hedged read on such a thread would wait for a request of the same executor.
+	 */
+	static void runInBackground(final S3Directory.IOTask task) throws IOException {
+		final Boolean outer = BACKGROUND.get();
+		BACKGROUND.set(Boolean.TRUE);
+		try {
+			task.run();
+		} finally {
+			BACKGROUND.set(outer);
+		}
+	}
+
+	/**
+	 * Reads a range in the calling thread, sending a second request from the executor if the first one is slow
+	 * and the budget allows it.
+	 */
+	void read(final S3Directory directory, final String name, final long start, final ByteBuffer bb,
+			final IOContext context) throws IOException {
+		synchronized (this) {
+			reads++;
+		}
+		final Hedge hedge = new Hedge();
+		hedge.schedule(directory, name, start, bb.remaining(), context);
+		final int position = bb.position();
+		final long began = System.nanoTime();
+		Exception failure = null;
+		try {
+			hedge.primary.run(() -> directory.readRangeOnce(name, start, bb, context));
+		} catch (IOException | RuntimeException e) {
+			failure = e;
+		}
+		final ByteBuffer data;
+		if (hedge.finish()) {
+			if (failure == null) {
+				hedge.secondary.abort();
+				record(System.nanoTime() - began);
+				return;
+			}
+			// the read fails only if the hedged request, if any, fails too
+			data = hedge.await(failure);
+		} else {
+			// the original request was abandoned, it would have taken at least this long
+			record(System.nanoTime() - began);
+			data = hedge.won();
+		}
+		bb.position(position);
+		bb.put(data);
+	}
+
+	private synchronized boolean tryAcquire() {
+		if (hedged + 1 > budget * reads) {
+			return false;
+		}
+		hedged++;
+		return true;
+	}
+
+	/**
+	 * The second request of one read. The outcome is decided once, by whichever request finishes first.
+	 */
+	private final class Hedge {
+
+		private static final int RUNNING = 0;
+		private static final int PRIMARY_FINISHED = 1;
+		private static final int HEDGE_WON = 2;
+
+		private final AtomicInteger state = new AtomicInteger(RUNNING);
+		private final S3RequestAbort primary = new S3RequestAbort();
+		private final S3RequestAbort secondary = new S3RequestAbort();
+		private volatile ScheduledFuture<?> scheduled;
+		private volatile CompletableFuture<ByteBuffer> result;
+
+		/**
+		 * Schedules the second request on the executor of the directory, after the hedging delay.
+		 */
+		void schedule(final S3Directory directory, final String name, final long start, final int len,
+				final IOContext context) {
+			scheduled = SCHEDULER.schedule(() -> {
+				try {
+					directory.getExecutor().execute(() -> send(directory, name, start, len, context));
+				} catch (@SuppressWarnings("unused") RejectedExecutionException e) {
+					// the directory is closed, the read isn't hedged
+				}
+			}, getDelay().toNanos(), TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Sends the second request, unless the first one has finished or the budget is used up.
+		 * If it finishes first, the first request is aborted.
+		 */
+		void send(final S3Directory directory, final String name, final long start, final int len,
+				final IOContext context) {
+			if (state.get() != RUNNING || !tryAcquire()) {
+				return;
+			}
+			hedges.increment();
+			final CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+			result = future;
+			try {
+				final ByteBuffer data = ByteBuffer.allocate(len);
+				final long began = System.nanoTime();
+				secondary.run(() -> directory.readRangeOnce(name, start, data, context));
+				record(System.nanoTime() - began);
+				data.flip();
+				// completed before the first request is aborted, so that the reader doesn't wait for it
+				future.complete(data);
+				if (state.compareAndSet(RUNNING, HEDGE_WON)) {
+					hedgeWins.increment();
+					primary.abort();
+				}
+			} catch (IOException | RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		}
+
+		/**
+		 * Called by the reader when its own request ends. Cancels the second request if it hasn't been sent yet.
+		 *
+		 * @return true if the request finished before the hedged one
+		 */
+		boolean finish() {
+			if (!state.compareAndSet(RUNNING, PRIMARY_FINISHED)) {
+				return false;
+			}
+			scheduled.cancel(false);
+			return true;
+		}
+
+		/**
+		 * Returns the data of the winning hedged request.
+		 */
+		ByteBuffer won() {
+			return result.join();
+		}
+
+		/**
+		 * Waits for the hedged request after the first one failed.
+		 */
+		ByteBuffer await(final Exception failure) throws IOException {
+			final CompletableFuture<ByteBuffer> future = result;
+			if (future != null) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					throw new ThreadInterruptedException(e);
+				} catch (@SuppressWarnings("unused") ExecutionException e) {
+					// report the failure of the first request
+				}
+			}
+			if (failure instanceof IOException ioe) {
+				throw ioe;
+			}
+			throw (RuntimeException) failure;
+		}
+	}
+}
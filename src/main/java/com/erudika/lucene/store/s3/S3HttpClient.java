@@ -0,0 +1,318 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import com.github.davidmoten.aws.lw.client.HttpClient;
+import com.github.davidmoten.aws.lw.client.ResponseInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An HTTP transport for the S3 client, backed by the JDK {@link java.net.http.HttpClient}. Unlike the default
+ * transport, which opens a new <code>HttpURLConnection</code> per request, connections are kept alive and reused
+ * from a pool, which saves a TCP and TLS handshake on each of the many small ranged reads done by searches.
+ * HTTP/2 can be enabled for endpoints which support it. The number of requests in flight is bounded, which also bounds
+ * the size of the connection pool - a request holds its permit until its response stream is closed.
+ * <p>
+ * The per-request timeouts of the S3 client are honored: the connect timeout of a request selects a pooled JDK client
+ * with that timeout (connect timeouts are set per client by the JDK), the read timeout bounds the wait for the response
+ * headers, and each read of the response body - a stalled body is closed by a watchdog, failing the read.
+ * A request which waits for its response headers can be aborted by another thread, which hedged reads do
+ * with the request they no longer need.
+ * <p>
+ * Usage:
+ * <pre>
+ * Client s3 = Client.s3().region("eu-west-1").credentials(Credentials.of(key, secret))
+ *		.httpClient(new S3HttpClient()).build();
+ * </pre>
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class S3HttpClient implements HttpClient {
+
+	/**
+	 * Default timeout for establishing a connection - 10 seconds.
+	 */
+	public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+	/**
+	 * Default timeout for receiving the response headers of a request, or the next bytes of its body - 60 seconds.
+	 */
+	public static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+	/**
+	 * Default maximum number of requests in flight.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 64;
+
+	// headers which are set by the JDK client and may not be set by the caller
+	private static final Set<String> RESTRICTED_HEADERS = Set.of("host", "content-length", "connection", "expect", "upgrade");
+
+	private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+		final Thread thread = new Thread(r, "s3-http-watchdog");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Map<Long, java.net.http.HttpClient> clients = new ConcurrentHashMap<>();
+	private final Duration connectTimeout;
+	private final boolean http2;
+	private final Duration requestTimeout;
+	private final Semaphore permits;
+
+	/**
+	 * Creates a new transport with the default timeouts and concurrency, using HTTP/1.1.
+	 */
+	public S3HttpClient() {
+		this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_REQUEST_TIMEOUT, false, DEFAULT_MAX_CONCURRENT_REQUESTS);
+	}
+
+	/**
+	 * Creates a new transport.
+	 *
+	 * @param connectTimeout timeout for establishing a connection
+	 * @param requestTimeout timeout for receiving the response headers of a request, or the next bytes of its body
+	 * @param http2 true to negotiate HTTP/2, falling back to HTTP/1.1 if the endpoint doesn't support it
+	 * @param maxConcurrentRequests maximum number of requests in flight, further requests block
+	 */
+	public S3HttpClient(Duration connectTimeout, Duration requestTimeout, boolean http2, int maxConcurrentRequests) {
+		this.connectTimeout = connectTimeout;
+		this.http2 = http2;
+		this.requestTimeout = requestTimeout;
+		this.permits = new Semaphore(Math.max(1, maxConcurrentRequests));
+	}
+
+	@Override
+	public ResponseInputStream request(URL endpointUrl, String httpMethod, Map<String, String> headers,
+			byte[] requestBody, int connectTimeoutMs, int readTimeoutMs) throws IOException {
+		final HttpRequest.Builder req;
+		try {
+			req = HttpRequest.newBuilder(endpointUrl.toURI());
+		} catch (URISyntaxException e) {
+			throw new IOException("Invalid URL " + endpointUrl, e);
+		}
+		final Duration readTimeout = readTimeoutMs > 0 ? Duration.ofMillis(readTimeoutMs) : requestTimeout;
+		req.timeout(readTimeout);
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			if (!RESTRICTED_HEADERS.contains(header.getKey().toLowerCase(Locale.ENGLISH))) {
+				req.header(header.getKey(), header.getValue());
+			}
+		}
+		req.method(httpMethod, requestBody == null
+				? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(requestBody));
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to send a request");
+		}
+		final AtomicBoolean released = new AtomicBoolean();
+		try {
+			final HttpResponse<InputStream> res = send(client(connectTimeoutMs), req.build());
+			final InputStream body = new TimeoutInputStream(res.body(), readTimeout.toNanos());
+			return new ResponseInputStream(() -> {
+				try {
+					body.close();
+				} finally {
+					if (released.compareAndSet(false, true)) {
+						permits.release();
+					}
+				}
+			}, res.statusCode(), res.headers().map(), body);
+		} catch (InterruptedException e) {
+			permits.release();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while sending a request to " + endpointUrl);
+		} catch (IOException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends a request and waits for its response headers. If the current thread runs an abortable task,
+	 * the request is sent asynchronously, so that it can be cancelled by another thread.
+	 */
+	private static HttpResponse<InputStream> send(final java.net.http.HttpClient client, final HttpRequest request)
+			throws IOException, InterruptedException {
+		if (!S3RequestAbort.isAbortable()) {
+			return client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+		}
+		final CompletableFuture<HttpResponse<InputStream>> pending = client.sendAsync(request,
+				HttpResponse.BodyHandlers.ofInputStream());
+		S3RequestAbort.register(() -> pending.cancel(true));
+		try {
+			return pending.get();
+		} catch (InterruptedException e) {
+			pending.cancel(true);
+			throw e;
+		} catch (CancellationException e) {
+			throw new IOException("Request to " + request.uri() + " aborted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException ioe) {
+				throw ioe;
+			}
+			throw new IOException("Request to " + request.uri() + " failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Returns the JDK client which connects with the given timeout. Clients are created once per timeout,
+	 * and each keeps its own connection pool.
+	 */
+	private java.net.http.HttpClient client(final int connectTimeoutMs) {
+		final Duration timeout = connectTimeoutMs > 0 ? Duration.ofMillis(connectTimeoutMs) : connectTimeout;
+		return clients.computeIfAbsent(timeout.toMillis(), t -> java.net.http.HttpClient.newBuilder()
+				.connectTimeout(timeout)
+				.version(http2 ? java.net.http.HttpClient.Version.HTTP_2 : java.net.http.HttpClient.Version.HTTP_1_1)
+				.followRedirects(java.net.http.HttpClient.Redirect.NEVER)
+				.build());
+	}
+
+	/**
+	 * A response body which is closed by the watchdog if a read makes no progress within the read timeout.
+	 * The JDK client only bounds the wait for the response headers, so without it a stalled body would
+	 * block the reader, and hold its permit, forever.
+	 */
+	private static final class TimeoutInputStream extends FilterInputStream {
+
+		private final long timeoutNanos;
+		private volatile long readStarted = -1;
+		private volatile boolean timedOut;
+		private volatile boolean closed;
+		private ScheduledFuture<?> check;
+
+		TimeoutInputStream(final InputStream in, final long timeoutNanos) {
+			super(in);
+			this.timeoutNanos = timeoutNanos;
+		}
+
+		@Override
+		public int read() throws IOException {
+			start();
+			try {
+				return in.read();
+			} catch (IOException e) {
+				throw timeout(e);
+			} finally {
+				readStarted = -1;
+			}
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			start();
+			try {
+				return in.read(b, off, len);
+			} catch (IOException e) {
+				throw timeout(e);
+			} finally {
+				readStarted = -1;
+			}
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			start();
+			try {
+				return in.skip(n);
+			} catch (IOException e) {
+				throw timeout(e);
+			} finally {
+				readStarted = -1;
+			}
+		}
+
+		private synchronized void start() throws IOException {
+			if (timedOut) {
+				throw timeout(null);
+			}
+			readStarted = System.nanoTime();
+			if (check == null && !closed) {
+				check = WATCHDOG.schedule(this::check, timeoutNanos, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		/**
+		 * Closes the stream if the current read has been blocked for longer than the timeout,
+		 * otherwise checks again when the current read would time out.
+		 */
+		private synchronized void check() {
+			check = null;
+			final long started = readStarted;
+			if (closed || started < 0) {
+				return;
+			}
+			final long remaining = started + timeoutNanos - System.nanoTime();
+			if (remaining > 0) {
+				check = WATCHDOG.schedule(this::check, remaining, TimeUnit.NANOSECONDS);
+				return;
+			}
+			timedOut = true;
+			try {
+				in.close();
+			} catch (@SuppressWarnings("unused") IOException e) {
+				// the reader fails either way
+			}
+		}
+
+		private IOException timeout(final IOException e) {
+			if (!timedOut) {
+				return e;
+			}
+			final SocketTimeoutException ex = new SocketTimeoutException("Read timed out after "
+					+ TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+			if (e != null) {
+				ex.initCause(e);
+			}
+			return ex;
+		}
+
+		@Override
+		public void close() throws IOException {
+			synchronized (this) {
+				closed = true;
+				if (check != null) {
+					check.cancel(false);
+					check = null;
+				}
+			}
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.lucene.store.BufferedIndexInput;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.ReadAdvice;
+
+/**
+ * An index input which reads a file from S3 using ranged GET requests. If the directory has a
+ * {@link S3BlockCache}, whole blocks are fetched and reads are served from the cache.
+ * Clones and slices share the directory and its cache.
+ * <p>
+ * Inputs opened for merges or with sequential read advice (e.g. {@link IOContext#READONCE}) read large chunks
+ * ahead of the reader, bypassing the block cache, unless the blocks being read are already cached. Other inputs
+ * switch to read-ahead once they detect a long run of sequential reads. Clones share the read-ahead window
+ * of the input they were cloned from, slices get their own, which are released when the input they were sliced
+ * from is closed, or when they have been read to the end. The buffer size is chosen by the
+ * {@link S3FetchSizePolicy} of the directory.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class S3IndexInput extends BufferedIndexInput {
+
+	/**
+	 * Number of consecutive sequential buffer refills after which read-ahead is switched on.
+	 */
+	private static final int SEQUENTIAL_READS_THRESHOLD = 64;
+
+	private final S3Directory directory;
+	private final String name;
+	private final long offset;
+	private final boolean sequential;
+	private final IOContext context;
+	private final S3FetchSizePolicy.Access access;
+	private long length;
+	private final AtomicReference<S3ReadAhead> readAhead = new AtomicReference<>();
+	// the windows of this input and all of its slices, which Lucene never closes, released when the input is closed
+	private final Set<S3ReadAhead> windows;
+	private boolean root;
+	private long lastReadEnd = -1;
+	private int sequentialReads;
+	private long lastRefillEnd = -1;
+
+	S3IndexInput(final S3Directory directory, final String name, final IOContext context) {
+		this(name, directory, name, 0L, -1L, context, access(directory, name, null), null);
+	}
+
+	private S3IndexInput(final String resourceDesc, final S3Directory directory, final String name,
+			final long offset, final long length, final IOContext context, final S3FetchSizePolicy.Access access,
+			final Set<S3ReadAhead> windows) {
+		super(resourceDesc, bufferSize(directory, access, context));
+		this.root = windows == null;
+		this.windows = root ? ConcurrentHashMap.newKeySet() : windows;
+		this.directory = directory;
+		this.name = name;
+		this.offset = offset;
+		this.length = length;
+		this.context = context;
+		this.sequential = isSequential(context);
+		final S3FetchSizePolicy policy = directory.getFetchSizePolicy();
+		this.access = policy != null && policy.isRecorded(context) ? access : null;
+	}
+
+	private static S3FetchSizePolicy.Access access(final S3Directory directory, final String name,
+			final S3FetchSizePolicy.Access parent) {
+		final S3FetchSizePolicy policy = directory.getFetchSizePolicy();
+		return policy == null ? null : policy.access(name, parent);
+	}
+
+	private static int bufferSize(final S3Directory directory, final S3FetchSizePolicy.Access access,
+			final IOContext context) {
+		final S3FetchSizePolicy policy = directory.getFetchSizePolicy();
+		return policy == null || access == null ? BUFFER_SIZE : policy.bufferSize(access, context);
+	}
+
+	private static boolean isSequential(final IOContext context) {
+		return context != null && (context.context() == IOContext.Context.MERGE
+				|| context.readAdvice() == ReadAdvice.SEQUENTIAL);
+	}
+
+	@Override
+	protected void readInternal(final ByteBuffer bb) throws IOException {
+		final long curPos = getFilePointer();
+		if (curPos + bb.remaining() > length()) {
+			throw new EOFException("read past EOF: " + this);
+		}
+		if (access != null) {
+			access.record(curPos == lastRefillEnd);
+			lastRefillEnd = curPos + bb.remaining();
+		}
+		final S3ReadAhead window = readAhead(curPos, bb.remaining());
+		final S3BlockCache cache = directory.getBlockCache();
+		if (window != null) {
+			window.read(offset + curPos, bb);
+		} else if (cache == null) {
+			directory.readRange(name, offset + curPos, bb, context);
+		} else {
+			readCached(cache, offset + curPos, bb);
+		}
+	}
+
+	/**
+	 * Returns the read-ahead window, creating it if the input is sequential, or has just become one.
+	 */
+	private S3ReadAhead readAhead(final long pos, final int len) {
+		final S3ReadAhead window = readAhead.get();
+		if (window == null && directory.getReadAheadSize() > 0) {
+			sequentialReads = (pos == lastReadEnd) ? sequentialReads + 1 : 0;
+			lastReadEnd = pos + len;
+			if ((sequential || sequentialReads >= SEQUENTIAL_READS_THRESHOLD) && !isAvailable(offset + pos, len)) {
+				final S3ReadAhead created = new S3ReadAhead(directory, name, offset + length(),
+						directory.getReadAheadSize(), directory.getReadAheadRequests(), context);
+				if (readAhead.compareAndSet(null, created)) {
+					windows.add(created);
+				}
+				return readAhead.get();
+			}
+		}
+		return window;
+	}
+
+	/**
+	 * Checks if a range is in the block cache or being fetched, e.g. by a warm-up, in which case
+	 * it is read from the cache even if the input is sequential.
+	 */
+	private boolean isAvailable(final long start, final int len) {
+		final S3BlockCache cache = directory.getBlockCache();
+		if (cache == null || len <= 0) {
+			return false;
+		}
+		final String key = directory.getCacheKey(name);
+		for (long block = start / cache.getBlockSize(); block <= (start + len - 1) / cache.getBlockSize(); block++) {
+			if (!directory.getBlockFetcher().isAvailable(cache, key, block)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void readCached(final S3BlockCache cache, final long start, final ByteBuffer bb) throws IOException {
+		final String key = directory.getCacheKey(name);
+		final int blockSize = cache.getBlockSize();
+		long pos = start;
+		while (bb.hasRemaining()) {
+			final long block = pos / blockSize;
+			final int blockOffset = (int) (pos % blockSize);
+			final int len = Math.min(bb.remaining(), blockSize - blockOffset);
+			final ByteBuffer dst = bb.slice(bb.position(), len);
+			final boolean hit = cache.read(key, block, blockOffset, dst);
+			directory.cacheAccessed(name, hit);
+			if (!hit) {
+				directory.getBlockFetcher().fetch(cache, name, block, context, blockOffset, dst);
+			}
+			bb.position(bb.position() + len);
+			pos += len;
+		}
+	}
+
+	/**
+	 * Starts fetching the blocks which cover the given range in the background, so that a later read
+	 * finds them in the block cache. This is a no-op if the directory has no block cache.
+	 */
+	@Override
+	public void prefetch(final long prefetchOffset, final long prefetchLength) throws IOException {
+		if (prefetchOffset < 0 || prefetchLength < 0 || prefetchOffset + prefetchLength > length()) {
+			throw new IllegalArgumentException("prefetch() out of bounds: " + this);
+		}
+		final S3BlockCache cache = directory.getBlockCache();
+		if (cache == null || prefetchLength == 0) {
+			return;
+		}
+		final long start = offset + prefetchOffset;
+		final long end = start + prefetchLength - 1;
+		for (long block = start / cache.getBlockSize(); block <= end / cache.getBlockSize(); block++) {
+			directory.getBlockFetcher().prefetch(cache, name, block, context);
+		}
+	}
+
+	@Override
+	protected void seekInternal(final long pos) throws IOException {
+		if (pos < 0) {
+			throw new IllegalArgumentException("Seek position cannot be negative");
+		}
+		if (pos > length()) {
+			throw new EOFException("Seek position is past EOF");
+		}
+	}
+
+	@Override
+	public IndexInput slice(final String sliceDescription, final long sliceOffset, final long sliceLength)
+			throws IOException {
+		if (sliceOffset < 0 || sliceLength < 0 || sliceOffset + sliceLength > length()) {
+			throw new IllegalArgumentException("slice() " + sliceDescription + " out of bounds: " + this);
+		}
+		// the slices of a compound file are named after the file they contain
+		return new S3IndexInput(getFullSliceDescription(sliceDescription), directory, name,
+				offset + sliceOffset, sliceLength, context, access(directory, sliceDescription, access), windows);
+	}
+
+	/**
+	 * Returns the position of this input in the file, which is non-zero for slices, e.g. the files of a compound file.
+	 */
+	long getSliceOffset() {
+		return offset;
+	}
+
+	@Override
+	public S3IndexInput clone() {
+		final S3IndexInput clone = (S3IndexInput) super.clone();
+		// the read-ahead window (and its memory) is shared with this input
+		clone.lastReadEnd = -1;
+		clone.sequentialReads = 0;
+		clone.lastRefillEnd = -1;
+		clone.root = false;
+		return clone;
+	}
+
+	@Override
+	public void close() {
+		final S3ReadAhead window = readAhead.getAndSet(null);
+		if (window != null) {
+			windows.remove(window);
+			window.close();
+		}
+		if (root) {
+			for (S3ReadAhead slice : windows) {
+				slice.close();
+			}
+			windows.clear();
+		}
+	}
+
+	@Override
+	public synchronized long length() {
+		if (length == -1) {
+			try {
+				length = directory.fileLength(name);
+			} catch (@SuppressWarnings("unused") Exception e) {
+				// do nothing here for now, much better for performance
+			}
+		}
+		return length;
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+import org.apache.lucene.store.BufferedChecksum;
+import org.apache.lucene.store.IndexOutput;
+
+/**
+ * An index output which streams a file to S3. Small files are buffered and sent with a single PUT request on close.
+ * Once a file grows past the part size, a multipart upload is started and each part is uploaded as soon as it fills,
+ * so memory usage stays flat regardless of the size of the file.
+ * <p>
+ * Parts are uploaded concurrently on the directory executor. At most <code>uploadConcurrency</code> parts of an output
+ * are in flight, plus the one being filled, and the parts in flight of all outputs of the directory share a budget.
+ * The writer blocks until a part upload ends, and fails if that part failed. Part buffers are reused.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class S3IndexOutput extends IndexOutput {
+
+	private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+	private final BufferedChecksum crc = new BufferedChecksum(new CRC32());
+	private final S3Directory directory;
+	private final int partSize;
+	private final S3PartBuffers partBuffers;
+	private final Semaphore uploadPermits;
+	private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+	private int bufferLength;
+	private long written;
+	private S3MultipartUpload upload;
+	private int partNumber;
+	private boolean closed;
+
+	S3IndexOutput(final S3Directory directory, final String name) {
+		super(directory.getResourceDescription(name), name);
+		this.directory = directory;
+		this.partSize = directory.getPartSize();
+		this.partBuffers = directory.getPartBuffers();
+		this.uploadPermits = new Semaphore(directory.getUploadConcurrency());
+	}
+
+	@Override
+	public void writeByte(final byte b) throws IOException {
+		if (bufferLength == buffer.length) {
+			makeRoom();
+		}
+		buffer[bufferLength++] = b;
+		crc.update(b);
+		written++;
+	}
+
+	@Override
+	public void writeBytes(final byte[] b, final int offset, final int length) throws IOException {
+		crc.update(b, offset, length);
+		written += length;
+		int off = offset;
+		int len = length;
+		while (len > 0) {
+			if (bufferLength == buffer.length) {
+				makeRoom();
+			}
+			final int n = Math.min(len, buffer.length - bufferLength);
+			System.arraycopy(b, off, buffer, bufferLength, n);
+			bufferLength += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Grows the buffer up to the part size, then uploads full parts.
+	 */
+	private void makeRoom() throws IOException {
+		if (buffer.length < partSize) {
+			buffer = Arrays.copyOf(buffer, (int) Math.min(partSize, 2L * buffer.length));
+		} else {
+			uploadPart();
+			buffer = partBuffers.take(partSize);
+		}
+	}
+
+	/**
+	 * Hands the current buffer over to a background part upload, once fewer than <code>uploadConcurrency</code>
+	 * parts are in flight and the part fits in the budget of the directory.
+	 */
+	private void uploadPart() throws IOException {
+		if (upload == null) {
+			upload = S3MultipartUpload.start(directory, getName());
+		}
+		upload.acquire(uploadPermits, partBuffers, buffer.length);
+		final byte[] data = buffer;
+		buffer = null;
+		upload.uploadPartAsync(++partNumber, data, bufferLength, () -> {
+			partBuffers.release(data);
+			uploadPermits.release();
+		});
+		bufferLength = 0;
+	}
+
+	@Override
+	public long getFilePointer() {
+		return written;
+	}
+
+	@Override
+	public long getChecksum() {
+		return crc.getValue();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (upload == null) {
+			final byte[] bytes = Arrays.copyOf(buffer, bufferLength);
+			buffer = null;
+			directory.upload(getName(), written, () -> directory.putObject(getName(), bytes));
+		} else {
+			uploadPart();
+			final S3MultipartUpload multipartUpload = upload;
+			directory.upload(getName(), written, multipartUpload);
+		}
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import com.github.davidmoten.aws.lw.client.HttpMethod;
+import com.github.davidmoten.aws.lw.client.Request;
+import com.github.davidmoten.aws.lw.client.Response;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockFactory;
+import org.apache.lucene.store.LockObtainFailedException;
+import org.apache.lucene.store.NoLockFactory;
+
+/**
+ * A lock factory based on time-bounded leases, stored in S3 objects named <code>{lockName}.lease</code>.
+ * A lease is created with a conditional PUT (<code>If-None-Match: *</code>), so only one writer can create it,
+ * and renewed in the background with <code>If-Match</code> on the ETag of the last write, so a writer whose
+ * lease was taken over notices on its next renewal. An expired lease, i.e. one which wasn't renewed within
+ * the lease duration according to the S3 clock, may be taken over by another writer.
+ * <p>
+ * Unlike {@link S3LockFactory}, {@link Lock#ensureValid()} doesn't send a request - the lock is valid until
+ * the lease duration has passed since the last successful renewal was sent, which is checked locally.
+ * A writer which can't renew its lease, e.g. during a network partition, loses the lock before anyone
+ * else can take it over.
+ * <p>
+ * Requires an S3 endpoint which supports conditional writes.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class S3LeaseLockFactory extends LockFactory {
+
+	/**
+	 * Suffix of the objects which hold the leases. They are not listed as files of the directory.
+	 */
+	public static final String LEASE_SUFFIX = ".lease";
+
+	/**
+	 * Default lease duration - 30 seconds.
+	 */
+	public static final Duration DEFAULT_LEASE_DURATION = Duration.ofSeconds(30);
+
+	/**
+	 * Lease lock factory with the default lease duration.
+	 */
+	public static final S3LeaseLockFactory INSTANCE = new S3LeaseLockFactory(DEFAULT_LEASE_DURATION);
+
+	/**
+	 * Time which must pass after the end of a lease before it may be taken over. S3 timestamps are truncated
+	 * to the second, so the lease may have been written up to a second later than its <code>Last-Modified</code>
+	 * date, and the rest covers the difference between the rates of the local and the S3 clocks.
+	 */
+	static final long EXPIRY_MARGIN_MILLIS = 1500L;
+
+	private static final String OWNER = "owner";
+	private static final String DURATION = "duration";
+
+	private final Duration leaseDuration;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Creates a lock factory. Leases are renewed three times per lease duration.
+	 *
+	 * @param leaseDuration the time after which a lease which wasn't renewed expires, at least 3 seconds
+	 * because S3 timestamps have a one second precision
+	 */
+	public S3LeaseLockFactory(Duration leaseDuration) {
+		if (leaseDuration.compareTo(Duration.ofSeconds(3)) < 0) {
+			throw new IllegalArgumentException("leaseDuration must be at least 3 seconds");
+		}
+		this.leaseDuration = leaseDuration;
+	}
+
+	/**
+	 * Returns the lease duration.
+	 *
+	 * @return duration
+	 */
+	public Duration getLeaseDuration() {
+		return leaseDuration;
+	}
+
+	@Override
+	public Lock obtainLock(Directory dir, String lockName) throws IOException {
+		if (dir instanceof S3Directory s3Directory) {
+			final S3LeaseLock lock = new S3LeaseLock(s3Directory, lockName);
+			lock.obtain();
+			return lock;
+		} else {
+			return NoLockFactory.INSTANCE.obtainLock(dir, lockName);
+		}
+	}
+
+	private synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "s3directory-lease-renewal");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Checks if a lease may be taken over. The holder stops using the lock when the lease duration has passed
+	 * since it sent its last write, which is before the write reached S3, so the lease expires for others
+	 * strictly later than for its holder. A released lease, with a duration of zero, may be taken over at once.
+	 *
+	 * @param durationMillis the duration recorded in the lease
+	 * @param modifiedMillis the <code>Last-Modified</code> date of the lease
+	 * @param nowMillis the <code>Date</code> of the response which returned the lease
+	 * @return true if the lease has expired
+	 */
+	static boolean isExpired(final long durationMillis, final long modifiedMillis, final long nowMillis) {
+		return durationMillis == 0 || nowMillis - modifiedMillis >= durationMillis + EXPIRY_MARGIN_MILLIS;
+	}
+
+	final class S3LeaseLock extends Lock {
+
+		private final S3Directory s3Directory;
+		private final String name;
+		private final String owner = UUID.randomUUID().toString();
+		private String eTag;
+		private volatile long validUntilNanos;
+		private volatile boolean closed;
+		private volatile String lostReason;
+		private ScheduledFuture<?> renewal;
+
+		S3LeaseLock(final S3Directory s3Directory, final String name) {
+			this.s3Directory = s3Directory;
+			this.name = name;
+		}
+
+		void obtain() throws IOException {
+			final long started = System.nanoTime();
+			Response res = put(leaseDuration, "If-None-Match", "*");
+			if (res.statusCode() == 412) {
+				// the lease exists - take it over if it has expired
+				final Response current = send(request(HttpMethod.GET, null));
+				if (current.statusCode() == 404) {
+					throw new LockObtainFailedException("Lock " + this + " was released and re-created concurrently");
+				}
+				checkStatus(current, "read");
+				final String currentETag = S3Directory.header(current.headers(), "ETag").orElse("");
+				if (!isExpired(current)) {
+					throw new LockObtainFailedException("Lock " + this + " is held by " + getOwner(current));
+				}
+				res = put(leaseDuration, "If-Match", currentETag);
+				if (res.statusCode() == 412) {
+					throw new LockObtainFailedException("Lock " + this + " was taken over concurrently");
+				}
+			}
+			checkStatus(res, "create");
+			synchronized (this) {
+				eTag = S3Directory.header(res.headers(), "ETag").orElse(null);
+				validUntilNanos = started + leaseDuration.toNanos();
+				final long period = leaseDuration.toMillis() / 3;
+				renewal = getScheduler().scheduleWithFixedDelay(this::renew, period, period, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/**
+		 * Extends the lease, unless it was taken over. Failed requests are retried on the next run,
+		 * the lock expires locally if none succeeds in time.
+		 */
+		synchronized void renew() {
+			if (closed || lostReason != null) {
+				return;
+			}
+			if (System.nanoTime() - validUntilNanos >= 0) {
+				// ensureValid() has already failed, the lease may belong to someone else by now
+				lost("it expired before it could be renewed");
+				return;
+			}
+			final long started = System.nanoTime();
+			try {
+				final Response res = put(leaseDuration, "If-Match", eTag);
+				if (res.statusCode() == 412 || res.statusCode() == 404) {
+					lost("the lease was taken over");
+				} else if (res.statusCode() / 100 == 2) {
+					eTag = S3Directory.header(res.headers(), "ETag").orElse(eTag);
+					validUntilNanos = started + leaseDuration.toNanos();
+				}
+			} catch (@SuppressWarnings("unused") Exception e) {
+				// try again on the next run
+			}
+		}
+
+		private void lost(final String reason) {
+			lostReason = reason;
+			if (renewal != null) {
+				renewal.cancel(false);
+			}
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (renewal != null) {
+				renewal.cancel(false);
+			}
+			if (lostReason == null && System.nanoTime() - validUntilNanos < 0) {
+				// expire the lease, unless someone else holds it by now
+				final Response res = put(Duration.ZERO, "If-Match", eTag);
+				if (res.statusCode() / 100 != 2 && res.statusCode() != 412) {
+					throw new S3Directory.S3StoreException("Failed to release " + this + ", HTTP status " + res.statusCode());
+				}
+			}
+		}
+
+		@Override
+		public void ensureValid() throws IOException {
+			if (closed) {
+				throw new AlreadyClosedException("Lock instance already released: " + this);
+			}
+			if (lostReason != null) {
+				throw new AlreadyClosedException("Lock " + this + " was lost, " + lostReason);
+			}
+			if (System.nanoTime() - validUntilNanos >= 0) {
+				throw new AlreadyClosedException("Lock " + this + " was lost, it expired before it could be renewed");
+			}
+		}
+
+		private Response put(final Duration duration, final String condition, final String value) throws IOException {
+			final Properties props = new Properties();
+			props.setProperty(OWNER, owner);
+			props.setProperty(DURATION, String.valueOf(duration.toMillis()));
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			props.store(out, null);
+			return send(request(HttpMethod.PUT, out.toByteArray()).header(condition, value));
+		}
+
+		private Response send(final Request req) throws IOException {
+			try (S3RequestTimer timer = s3Directory.timeLock(S3Operation.LEASE, name + LEASE_SUFFIX)) {
+				final Response res = req.response();
+				if (res.statusCode() / 100 == 2) {
+					timer.success();
+				}
+				return res;
+			} catch (RuntimeException e) {
+				throw new S3Directory.S3StoreException("Request for lease " + this + " failed", e);
+			}
+		}
+
+		private Request request(final HttpMethod method, final byte[] body) {
+			final Request req = s3Directory.getS3()
+					.path(s3Directory.getBucket(), s3Directory.getPath() + name + LEASE_SUFFIX)
+					.method(method);
+			return body == null ? req : req.requestBody(body);
+		}
+
+		private void checkStatus(final Response res, final String action) throws IOException {
+			if (res.statusCode() / 100 != 2) {
+				throw new LockObtainFailedException("Failed to " + action + " lease " + this + ", HTTP status " + res.statusCode());
+			}
+		}
+
+		/**
+		 * Checks if a lease has expired, comparing its last modification time with the time of the response,
+		 * both from the S3 clock, so that clock skew between writers doesn't matter.
+		 * See {@link S3LeaseLockFactory#isExpired(long, long, long)}.
+		 */
+		private boolean isExpired(final Response res) throws IOException {
+			final Properties props = new Properties();
+			props.load(new ByteArrayInputStream(res.content()));
+			final long duration = Long.parseLong(props.getProperty(DURATION, "0"));
+			final long modified = parseDate(S3Directory.header(res.headers(), "Last-Modified").orElse(null));
+			final long now = parseDate(S3Directory.header(res.headers(), "Date").orElse(null));
+			return isExpired(duration, modified, now);
+		}
+
+		private String getOwner(final Response res) throws IOException {
+			final Properties props = new Properties();
+			props.load(new ByteArrayInputStream(res.content()));
+			return props.getProperty(OWNER, "unknown");
+		}
+
+		private long parseDate(final String date) throws IOException {
+			if (date == null) {
+				throw new LockObtainFailedException("Lease " + this + " has no timestamp");
+			}
+			return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		}
+
+		@Override
+		public String toString() {
+			return "S3LeaseLock[" + s3Directory.getBucket() + "/" + s3Directory.getPath() + name + "]";
+		}
+	}
+}
@@ -97,14 +97,17 @@ public final class S3LockFactory extends LockFactory {
 		}
 
 		private boolean isLegalHoldOn() {
-			XmlElement res
-					= s3Directory
-							.getS3()
-							.path(s3Directory.getBucket(), s3Directory.getPath() + name)
-							.query("legal-hold")
-							.method(HttpMethod.GET)
-							.responseAsXml();
-			return res != null && res.hasChildren() && res.child("Status").content().equals("ON");
+			try (S3RequestTimer timer = s3Directory.timeLock(S3Operation.LEGAL_HOLD, name)) {
+				XmlElement res
+						= s3Directory
+								.getS3()
+								.path(s3Directory.getBucket(), s3Directory.getPath() + name)
+								.query("legal-hold")
+								.method(HttpMethod.GET)
+								.responseAsXml();
+				timer.success();
+				return res != null && res.hasChildren() && res.child("Status").content().equals("ON");
+			}
 		}
 
 		private void putObjectLegalHold(String status) throws NoSuchAlgorithmException {
@@ -114,7 +117,7 @@ public final class S3LockFactory extends LockFactory {
 							.e("Status")
 							.content(status)
 							.toString();
-			try {
+			try (S3RequestTimer timer = s3Directory.timeLock(S3Operation.LEGAL_HOLD, name)) {
 				s3Directory
 						.getS3()
 						.path(s3Directory.getBucket(), s3Directory.getPath() + name)
@@ -123,6 +126,7 @@ public final class S3LockFactory extends LockFactory {
 						.method(HttpMethod.PUT)
 						.requestBody(body)
 						.execute();
+				timer.success();
 			} catch (@SuppressWarnings("unused") Exception e) {
 				initializeLockFile();
 			}
@@ -131,12 +135,15 @@ public final class S3LockFactory extends LockFactory {
 		private void initializeLockFile() {
 			if (!s3Directory.fileExists(name)) {
 				// initialize the write.lock file immediately after bucket creation
-				s3Directory
-						.getS3()
-						.path(s3Directory.getBucket(), s3Directory.getPath() + IndexWriter.WRITE_LOCK_NAME)
-						.method(HttpMethod.PUT)
-						.requestBody("")
-						.execute();
+				try (S3RequestTimer timer = s3Directory.timeLock(S3Operation.PUT, IndexWriter.WRITE_LOCK_NAME)) {
+					s3Directory
+							.getS3()
+							.path(s3Directory.getBucket(), s3Directory.getPath() + IndexWriter.WRITE_LOCK_NAME)
+							.method(HttpMethod.PUT)
+							.requestBody("")
+							.execute();
+					timer.success();
+				}
 			}
 		}
 
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+/**
+ * An in-process block cache which keeps blocks in direct (off-heap) memory.
+ * The cache is bounded by a global byte budget and the least recently used blocks are evicted first.
+ * Block buffers are allocated on demand, up to the budget, and are then recycled on eviction,
+ * so a warm cache does not allocate memory and adds no garbage collection pressure. Blocks are loaded from S3
+ * straight into recycled buffers of the segment they are stored in, lent out by {@link #borrowBuffer(String, long)}.
+ * <p>
+ * A single instance is meant to be shared by all inputs of one or more directories. Large caches are split
+ * into segments, each with its own lock and an equal share of the budget, so that concurrent readers
+ * don't all wait for one lock. Blocks are indexed by file, so invalidating a file only visits its own blocks.
+ * Invalidating a file also starts a new generation of it, and blocks loaded from the previous generation
+ * are not stored, see {@link #generation(String)}.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class S3MemoryBlockCache implements S3BlockCache {
+
+	/**
+	 * Default block size - 1 MB.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+	/**
+	 * Maximum number of segments.
+	 */
+	static final int MAX_SEGMENTS = 16;
+
+	/**
+	 * Minimum number of blocks in a segment, so that eviction within a segment stays close to a global LRU.
+	 */
+	static final int MIN_SEGMENT_BLOCKS = 64;
+
+	/**
+	 * Maximum number of files whose generation is remembered. Beyond that, all generations are forgotten and
+	 * blocks requested before are not stored.
+	 */
+	static final int MAX_GENERATIONS = 4096;
+
+	private final Segment[] segments;
+	private final int blockSize;
+	private final Map<String, Long> generations = new HashMap<>();
+	private long generationClock;
+	private long generationFloor;
+
+	/**
+	 * Creates a new memory cache with the default block size.
+	 *
+	 * @param maxBytes the maximum amount of direct memory used by the cache
+	 */
+	public S3MemoryBlockCache(long maxBytes) {
+		this(DEFAULT_BLOCK_SIZE, maxBytes);
+	}
+
+	/**
+	 * Creates a new memory cache.
+	 *
+	 * @param blockSize the size of a block in bytes
+	 * @param maxBytes the maximum amount of direct memory used by the cache
+	 */
+	public S3MemoryBlockCache(int blockSize, long maxBytes) {
+		if (blockSize <= 0 || maxBytes < blockSize) {
+			throw new IllegalArgumentException("Cache size must be at least one block.");
+		}
+		this.blockSize = blockSize;
+		final long maxBlocks = maxBytes / blockSize;
+		final int count = (int) Math.max(1, Math.min(MAX_SEGMENTS, maxBlocks / MIN_SEGMENT_BLOCKS));
+		this.segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment(blockSize, maxBlocks / count + (i < maxBlocks % count ? 1 : 0));
+		}
+	}
+
+	@Override
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	@Override
+	public boolean read(String key, long block, int offset, ByteBuffer dst) {
+		return segment(key, block).read(new BlockKey(key, block), offset, dst);
+	}
+
+	@Override
+	public void put(String key, long block, ByteBuffer data) {
+		if (data.remaining() <= blockSize) {
+			segment(key, block).put(new BlockKey(key, block), data, () -> true);
+		}
+	}
+
+	@Override
+	public void put(String key, long block, ByteBuffer data, long generation) {
+		if (data.remaining() <= blockSize) {
+			segment(key, block).put(new BlockKey(key, block), data, () -> generation(key) == generation);
+		}
+	}
+
+	@Override
+	public long generation(String key) {
+		synchronized (generations) {
+			return generations.getOrDefault(key, generationFloor);
+		}
+	}
+
+	@Override
+	public boolean contains(String key, long block) {
+		return segment(key, block).contains(new BlockKey(key, block));
+	}
+
+	/**
+	 * Removes the blocks of a file and starts a new generation of it, so that blocks being loaded from
+	 * the previous version of the file are not stored.
+	 */
+	@Override
+	public void invalidate(String key) {
+		synchronized (generations) {
+			final long generation = ++generationClock;
+			if (generations.size() >= MAX_GENERATIONS) {
+				generations.clear();
+				generationFloor = generation;
+			} else {
+				generations.put(key, generation);
+			}
+		}
+		// a segment which stores a block before it is visited checked the generation first, so the block is removed
+		for (Segment segment : segments) {
+			segment.invalidate(key);
+		}
+	}
+
+	/**
+	 * Lends out a free or evicted block buffer of the segment the block will be stored in, so that loading a block
+	 * into a full cache evicts the least recently used block of that segment only. If all block buffers of the
+	 * segment are lent out, a temporary heap buffer is returned instead.
+	 *
+	 * @param key the file key
+	 * @param block the block index
+	 * @return an empty buffer
+	 */
+	@Override
+	public ByteBuffer borrowBuffer(String key, long block) {
+		return borrowBuffer(segment(key, block));
+	}
+
+	@Override
+	public void returnBuffer(String key, long block, ByteBuffer buffer) {
+		returnBuffer(segment(key, block), buffer);
+	}
+
+	/**
+	 * Stores the borrowed buffer itself as the block, without copying it, unless the file was invalidated after
+	 * the given generation, in which case the buffer is taken back. Blocks loaded into temporary heap buffers
+	 * are not cached.
+	 */
+	@Override
+	public void putBorrowed(String key, long block, ByteBuffer buffer, long generation) {
+		final Segment segment = segment(key, block);
+		if (buffer.isDirect()) {
+			segment.adopt(new BlockKey(key, block), buffer, () -> generation(key) == generation);
+		}
+	}
+
+	private ByteBuffer borrowBuffer(Segment segment) {
+		final ByteBuffer buffer = segment.borrowBuffer();
+		return buffer == null ? ByteBuffer.allocate(blockSize) : buffer.clear();
+	}
+
+	private void returnBuffer(Segment segment, ByteBuffer buffer) {
+		// temporary buffers are on the heap and are left to the garbage collector
+		if (buffer.isDirect()) {
+			segment.returnBuffer(buffer);
+		}
+	}
+
+	/**
+	 * Drops all cached blocks and releases the direct memory held by the cache. Blocks put and buffers returned
+	 * afterwards are dropped too.
+	 */
+	@Override
+	public void close() {
+		for (Segment segment : segments) {
+			segment.close();
+		}
+	}
+
+	/**
+	 * Returns the total size of all cached blocks.
+	 *
+	 * @return size in bytes
+	 */
+	public long getUsedBytes() {
+		long used = 0;
+		for (Segment segment : segments) {
+			used += segment.getUsedBytes();
+		}
+		return used;
+	}
+
+	private Segment segment(String key, long block) {
+		return segments[Math.floorMod(31 * key.hashCode() + Long.hashCode(block), segments.length)];
+	}
+
+	/**
+	 * A part of the cache with its own lock, LRU order and share of the budget.
+	 */
+	private static final class Segment {
+
+		private final LinkedHashMap<BlockKey, Block> blocks = new LinkedHashMap<>(16, 0.75f, true);
+		private final Map<String, Set<Long>> blocksByKey = new HashMap<>();
+		private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+		private final int blockSize;
+		private final long maxBlocks;
+		private long allocatedBlocks;
+		private long usedBytes;
+		private boolean closed;
+
+		Segment(int blockSize, long maxBlocks) {
+			this.blockSize = blockSize;
+			this.maxBlocks = maxBlocks;
+		}
+
+		synchronized boolean read(BlockKey blockKey, int offset, ByteBuffer dst) {
+			Block cached = blocks.get(blockKey);
+			if (cached == null || offset + dst.remaining() > cached.length) {
+				return false;
+			}
+			// the buffer may be recycled as soon as the lock is released, so the copy must happen here
+			dst.put(cached.buffer.slice(offset, dst.remaining()));
+			return true;
+		}
+
+		/**
+		 * Stores a copy of a block. The generation is checked under the lock of the segment, so a block which is
+		 * stored before the file is invalidated is removed by the invalidation.
+		 */
+		synchronized void put(BlockKey blockKey, ByteBuffer data, BooleanSupplier current) {
+			if (closed || blocks.containsKey(blockKey) || !current.getAsBoolean()) {
+				return;
+			}
+			ByteBuffer buffer = acquireBuffer();
+			if (buffer == null) {
+				// all block buffers of the segment are lent out
+				return;
+			}
+			buffer.clear();
+			buffer.put(data.duplicate());
+			blocks.put(blockKey, new Block(buffer, data.remaining()));
+			blocksByKey.computeIfAbsent(blockKey.key(), k -> new HashSet<>()).add(blockKey.block());
+			usedBytes += data.remaining();
+		}
+
+		/**
+		 * Stores a block in a buffer lent out by this segment, or takes the buffer back if the block is
+		 * already cached or was loaded from a previous generation of the file.
+		 */
+		synchronized void adopt(BlockKey blockKey, ByteBuffer buffer, BooleanSupplier current) {
+			if (closed || buffer.capacity() != blockSize) {
+				// buffers lent out before the cache was closed are dropped
+				return;
+			}
+			if (blocks.containsKey(blockKey) || !current.getAsBoolean()) {
+				freeBuffers.push(buffer);
+				return;
+			}
+			blocks.put(blockKey, new Block(buffer, buffer.remaining()));
+			blocksByKey.computeIfAbsent(blockKey.key(), k -> new HashSet<>()).add(blockKey.block());
+			usedBytes += buffer.remaining();
+		}
+
+		synchronized boolean contains(BlockKey blockKey) {
+			return blocks.containsKey(blockKey);
+		}
+
+		synchronized void invalidate(String key) {
+			Set<Long> cached = blocksByKey.remove(key);
+			if (cached == null) {
+				return;
+			}
+			for (Long block : cached) {
+				Block removed = blocks.remove(new BlockKey(key, block));
+				if (removed != null) {
+					usedBytes -= removed.length;
+					freeBuffers.push(removed.buffer);
+				}
+			}
+		}
+
+		synchronized ByteBuffer borrowBuffer() {
+			return closed ? null : acquireBuffer();
+		}
+
+		synchronized void returnBuffer(ByteBuffer buffer) {
+			// buffers lent out before the cache was closed are dropped
+			if (!closed && buffer.capacity() == blockSize) {
+				freeBuffers.push(buffer);
+			}
+		}
+
+		synchronized void close() {
+			closed = true;
+			blocks.clear();
+			blocksByKey.clear();
+			freeBuffers.clear();
+			allocatedBlocks = 0;
+			usedBytes = 0;
+		}
+
+		synchronized long getUsedBytes() {
+			return usedBytes;
+		}
+
+		/**
+		 * Returns a free buffer, a new one if the budget allows it, or the buffer of the least recently used block.
+		 *
+		 * @return a buffer, or <code>null</code> if there are no blocks to evict
+		 */
+		private ByteBuffer acquireBuffer() {
+			if (!freeBuffers.isEmpty()) {
+				return freeBuffers.pop();
+			}
+			if (allocatedBlocks < maxBlocks) {
+				allocatedBlocks++;
+				return ByteBuffer.allocateDirect(blockSize);
+			}
+			Iterator<Map.Entry<BlockKey, Block>> eldest = blocks.entrySet().iterator();
+			if (!eldest.hasNext()) {
+				return null;
+			}
+			Map.Entry<BlockKey, Block> evicted = eldest.next();
+			eldest.remove();
+			Set<Long> cached = blocksByKey.get(evicted.getKey().key());
+			if (cached != null && cached.remove(evicted.getKey().block()) && cached.isEmpty()) {
+				blocksByKey.remove(evicted.getKey().key());
+			}
+			usedBytes -= evicted.getValue().length;
+			return evicted.getValue().buffer;
+		}
+	}
+
+	private record BlockKey(String key, long block) {
+	}
+
+	private record Block(ByteBuffer buffer, int length) {
+	}
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import com.github.davidmoten.aws.lw.client.HttpMethod;
+import com.github.davidmoten.aws.lw.client.Response;
+import com.github.davidmoten.aws.lw.client.xml.XmlElement;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * An S3 multipart upload of a single object. Parts may be uploaded in any order and from any thread,
+ * the upload is completed with all parts sorted by part number.
+ * Background part uploads are started by a single writer thread, which also completes or aborts the upload,
+ * either by waiting for the parts or by chaining the completion after them with {@link #completeAsync()}.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class S3MultipartUpload {
+
+	private final ConcurrentSkipListMap<Integer, String> etags = new ConcurrentSkipListMap<>();
+	private final List<CompletableFuture<Void>> parts = new ArrayList<>();
+	private final S3Directory directory;
+	private final String name;
+	private final String key;
+	private final String uploadId;
+
+	private S3MultipartUpload(final S3Directory directory, final String name, final String key, final String uploadId) {
+		this.directory = directory;
+		this.name = name;
+		this.key = key;
+		this.uploadId = uploadId;
+	}
+
+	/**
+	 * Initiates a new multipart upload.
+	 *
+	 * @param directory the directory
+	 * @param name the name of the index file
+	 * @return an upload
+	 * @throws IOException if the upload could not be created
+	 */
+	static S3MultipartUpload start(final S3Directory directory, final String name) throws IOException {
+		final String key = directory.getKey(name);
+		try (S3RequestTimer timer = directory.time(S3Operation.MULTIPART, name, null)) {
+			XmlElement res = directory.getS3()
+					.path(directory.getBucket(), key)
+					.query("uploads")
+					.method(HttpMethod.POST)
+					.responseAsXml();
+			timer.success();
+			return new S3MultipartUpload(directory, name, key, res.content("UploadId"));
+		} catch (Exception e) {
+			throw new S3Directory.S3StoreException("Failed to start multipart upload of " + key, e);
+		}
+	}
+
+	/**
+	 * Copies an object to a file of the directory, server-side. Objects larger than the copy part size
+	 * are copied with a multipart upload, in parts which are copied concurrently.
+	 *
+	 * @param directory the target directory
+	 * @param sourceBucket the bucket of the source object
+	 * @param sourceKey the key of the source object, including the path prefix
+	 * @param length the length of the source object
+	 * @param name the name of the target file
+	 * @throws IOException if the copy failed
+	 */
+	static void copy(final S3Directory directory, final String sourceBucket, final String sourceKey, final long length,
+			final String name) throws IOException {
+		final int partSize = directory.getCopyPartSize();
+		if (length <= partSize) {
+			try (S3RequestTimer timer = directory.time(S3Operation.COPY, name, null)) {
+				final Response res;
+				try {
+					res = directory.getS3().path(directory.getBucket(), directory.getKey(name))
+							.header("x-amz-copy-source", "/" + sourceBucket + "/" + sourceKey)
+							.method(HttpMethod.PUT)
+							.response();
+				} catch (Exception e) {
+					throw new S3Directory.S3StoreException("Failed to copy " + sourceKey + " to " + name, e);
+				}
+				// S3 may report an error in the body of a 200 response
+				if (res.statusCode() / 100 != 2 || new String(res.content(), StandardCharsets.UTF_8).contains("<Error>")) {
+					throw new S3Directory.S3StoreException("Failed to copy " + sourceKey + " to " + name
+							+ ", HTTP status " + res.statusCode());
+				}
+				timer.bytes(length).success();
+			}
+			return;
+		}
+		final S3MultipartUpload upload = start(directory, name);
+		final Semaphore permits = new Semaphore(Math.max(1, directory.getCopyConcurrency()));
+		int partNumber = 0;
+		try {
+			for (long start = 0; start < length; start += partSize) {
+				upload.acquire(permits);
+				upload.copyPartAsync(++partNumber, sourceBucket, sourceKey, start,
+						Math.min(length, start + partSize) - 1, permits::release);
+			}
+		} catch (IOException e) {
+			upload.abort();
+			throw e;
+		}
+		upload.complete();
+	}
+
+	/**
+	 * Uploads one part.
+	 *
+	 * @param partNumber part number, starting from 1
+	 * @param data a buffer holding the part
+	 * @param length number of bytes to upload from the start of the buffer
+	 * @throws IOException if the upload failed
+	 */
+	void uploadPart(final int partNumber, final byte[] data, final int length) throws IOException {
+		final byte[] body = (length == data.length) ? data : Arrays.copyOf(data, length);
+		try (S3RequestTimer timer = directory.time(S3Operation.PUT, name, null)) {
+			final Response res;
+			try {
+				res = directory.getS3()
+						.path(directory.getBucket(), key)
+						.query("partNumber", String.valueOf(partNumber))
+						.query("uploadId", uploadId)
+						.method(HttpMethod.PUT)
+						.requestBody(body)
+						.response();
+			} catch (Exception e) {
+				throw new S3Directory.S3StoreException("Failed to upload part " + partNumber + " of " + key, e);
+			}
+			if (res.statusCode() / 100 != 2) {
+				throw new S3Directory.S3StoreException("Failed to upload part " + partNumber + " of " + key
+						+ ", HTTP status " + res.statusCode());
+			}
+			etags.put(partNumber, S3Directory.header(res.headers(), "ETag").orElseThrow(()
+					-> new S3Directory.S3StoreException("Missing ETag for part " + partNumber + " of " + key)));
+			timer.bytes(length).success();
+		}
+	}
+
+	/**
+	 * Uploads one part in the background, on the directory executor.
+	 *
+	 * @param partNumber part number, starting from 1
+	 * @param data a buffer holding the part, which must not be modified until the upload ends
+	 * @param length number of bytes to upload from the start of the buffer
+	 * @param whenDone a callback which runs when the upload ends, successfully or not
+	 * @throws IOException if a previous part upload failed or the upload could not be started
+	 */
+	void uploadPartAsync(final int partNumber, final byte[] data, final int length, final Runnable whenDone)
+			throws IOException {
+		runAsync(partNumber, () -> uploadPart(partNumber, data, length), whenDone);
+	}
+
+	/**
+	 * Copies a range of an existing object into one part, server-side, with an UploadPartCopy request.
+	 *
+	 * @param partNumber part number, starting from 1
+	 * @param sourceBucket the bucket of the source object
+	 * @param sourceKey the key of the source object, including the path prefix
+	 * @param start offset of the first byte to copy
+	 * @param end offset of the last byte to copy (inclusive)
+	 * @throws IOException if the copy failed
+	 */
+	void copyPart(final int partNumber, final String sourceBucket, final String sourceKey, final long start, final long end)
+			throws IOException {
+		try (S3RequestTimer timer = directory.time(S3Operation.COPY, name, null)) {
+			final Response res;
+			try {
+				res = directory.getS3()
+						.path(directory.getBucket(), key)
+						.query("partNumber", String.valueOf(partNumber))
+						.query("uploadId", uploadId)
+						.header("x-amz-copy-source", "/" + sourceBucket + "/" + sourceKey)
+						.header("x-amz-copy-source-range", "bytes=" + start + "-" + end)
+						.method(HttpMethod.PUT)
+						.response();
+			} catch (Exception e) {
+				throw new S3Directory.S3StoreException("Failed to copy part " + partNumber + " of " + key, e);
+			}
+			final String body = new String(res.content(), StandardCharsets.UTF_8);
+			// S3 may report an error in the body of a 200 response
+			if (res.statusCode() / 100 != 2 || body.contains("<Error>")) {
+				throw new S3Directory.S3StoreException("Failed to copy part " + partNumber + " of " + key
+						+ ", HTTP status " + res.statusCode());
+			}
+			etags.put(partNumber, XmlElement.parse(body).content("ETag"));
+			timer.bytes(end - start + 1).success();
+		}
+	}
+
+	/**
+	 * Copies a range of an existing object into one part in the background, on the directory executor.
+	 *
+	 * @param partNumber part number, starting from 1
+	 * @param sourceBucket the bucket of the source object
+	 * @param sourceKey the key of the source object, including the path prefix
+	 * @param start offset of the first byte to copy
+	 * @param end offset of the last byte to copy (inclusive)
+	 * @param whenDone a callback which runs when the copy ends, successfully or not
+	 * @throws IOException if a previous part failed or the copy could not be started
+	 */
+	void copyPartAsync(final int partNumber, final String sourceBucket, final String sourceKey, final long start,
+			final long end, final Runnable whenDone) throws IOException {
+		runAsync(partNumber, () -> copyPart(partNumber, sourceBucket, sourceKey, start, end), whenDone);
+	}
+
+	/**
+	 * Blocks until one of the permits which bound the number of parts in flight is available,
+	 * failing if a part has failed in the meantime. Parts release their permit when they end, successfully or not,
+	 * so a failure wakes the caller.
+	 *
+	 * @param permits permits released by the <code>whenDone</code> callbacks of parts
+	 * @throws IOException if a part failed
+	 */
+	void acquire(final Semaphore permits) throws IOException {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			abort();
+			throw new ThreadInterruptedException(e);
+		}
+		try {
+			throwIfFailed();
+		} catch (IOException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Blocks until a permit of the upload is available, then until the part fits in the budget of the part buffers.
+	 *
+	 * @param permits permits released by the <code>whenDone</code> callbacks of parts
+	 * @param partBuffers the part buffers, released by the <code>whenDone</code> callbacks of parts
+	 * @param size the size of the buffer of the part
+	 * @throws IOException if a part failed
+	 */
+	void acquire(final Semaphore permits, final S3PartBuffers partBuffers, final int size) throws IOException {
+		acquire(permits);
+		try {
+			partBuffers.acquire(size);
+		} catch (ThreadInterruptedException e) {
+			permits.release();
+			abort();
+			throw e;
+		}
+	}
+
+	private void runAsync(final int partNumber, final S3Directory.IOTask task, final Runnable whenDone) throws IOException {
+		throwIfFailed();
+		try {
+			final CompletableFuture<Void> part = CompletableFuture.runAsync(() -> {
+				try {
+					task.run();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, directory.getExecutor());
+			parts.add(part);
+			// the callback runs once the part is marked as failed, so that a woken writer sees the failure
+			part.whenComplete((v, t) -> whenDone.run());
+		} catch (RejectedExecutionException e) {
+			whenDone.run();
+			abort();
+			throw new S3Directory.S3StoreException("Failed to upload part " + partNumber + " of " + key, e);
+		}
+	}
+
+	/**
+	 * Fails fast if one of the background part uploads has already failed.
+	 *
+	 * @throws IOException the failure of the part upload
+	 */
+	void throwIfFailed() throws IOException {
+		for (CompletableFuture<Void> part : parts) {
+			if (part.isCompletedExceptionally()) {
+				awaitParts();
+			}
+		}
+	}
+
+	private void awaitParts() throws IOException {
+		try {
+			CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new)).get();
+		} catch (InterruptedException e) {
+			abort();
+			throw new ThreadInterruptedException(e);
+		} catch (ExecutionException e) {
+			abort();
+			if (e.getCause() instanceof UncheckedIOException ex) {
+				throw ex.getCause();
+			}
+			throw new S3Directory.S3StoreException("Failed to upload " + key, e.getCause());
+		}
+	}
+
+	/**
+	 * Waits for all background part uploads and completes the upload, making the object visible.
+	 * The upload is aborted if any part failed.
+	 *
+	 * @throws IOException if the upload could not be completed
+	 */
+	void complete() throws IOException {
+		awaitParts();
+		StringBuilder xml = new StringBuilder("<CompleteMultipartUpload xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+		for (Map.Entry<Integer, String> part : etags.entrySet()) {
+			xml.append("<Part><PartNumber>").append(part.getKey()).append("</PartNumber><ETag>")
+					.append(S3Directory.escapeXml(part.getValue())).append("</ETag></Part>");
+		}
+		xml.append("</CompleteMultipartUpload>");
+		final Response res;
+		try (S3RequestTimer timer = directory.time(S3Operation.MULTIPART, name, null)) {
+			res = directory.getS3()
+					.path(directory.getBucket(), key)
+					.query("uploadId", uploadId)
+					.method(HttpMethod.POST)
+					.requestBody(xml.toString())
+					.response();
+			// S3 may report an error in the body of a 200 response
+			if (res.statusCode() / 100 == 2 && !new String(res.content(), StandardCharsets.UTF_8).contains("<Error>")) {
+				timer.success();
+				return;
+			}
+		} catch (Exception e) {
+			abort();
+			throw new S3Directory.S3StoreException("Failed to complete multipart upload of " + key, e);
+		}
+		abort();
+		throw new S3Directory.S3StoreException("Failed to complete multipart upload of " + key
+				+ ", HTTP status " + res.statusCode());
+	}
+
+	/**
+	 * Completes the upload on the directory executor once all background part uploads have finished.
+	 * No thread is blocked while the parts are being uploaded.
+	 *
+	 * @return a future which completes when the object is visible, or fails if the upload was aborted
+	 */
+	CompletableFuture<Void> completeAsync() {
+		return CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new)).handleAsync((r, t) -> {
+			try {
+				// all parts are done, so this doesn't wait
+				complete();
+				return null;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, directory.getExecutor());
+	}
+
+	/**
+	 * Aborts the upload and discards all uploaded parts.
+	 */
+	void abort() {
+		for (CompletableFuture<Void> part : parts) {
+			part.cancel(false);
+		}
+		try (S3RequestTimer timer = directory.time(S3Operation.MULTIPART, name, null)) {
+			directory.getS3()
+					.path(directory.getBucket(), key)
+					.query("uploadId", uploadId)
+					.method(HttpMethod.DELETE)
+					.execute();
+			timer.success();
+		} catch (@SuppressWarnings("unused") Exception e) {
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import com.github.davidmoten.aws.lw.client.HttpMethod;
+import com.github.davidmoten.aws.lw.client.Response;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Maps logical file names to the physical object keys which hold their contents, so that a rename only updates
+ * the mapping instead of copying the object. Files which were never renamed are stored under their own name and
+ * are not in the mapping. The mapping is persisted as a {@link Properties} object in the directory, named
+ * {@link S3Directory#MANIFEST_NAME}, and every node reading the directory must load it to resolve names.
+ * <p>
+ * A physical key which is the target of a mapping is hidden, i.e. its own name doesn't exist, until the mapping
+ * is removed by deleting the logical file.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class S3NameMapping {
+
+	private final Map<String, String> names = new HashMap<>();
+	private final S3Directory directory;
+	private boolean dirty;
+
+	S3NameMapping(final S3Directory directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the physical name of a file, without the path prefix.
+	 */
+	synchronized String resolve(final String name) {
+		return names.getOrDefault(name, name);
+	}
+
+	/**
+	 * Returns <code>true</code> if the name is only a physical key of another file, and doesn't exist by itself.
+	 */
+	synchronized boolean isHidden(final String name) {
+		return !names.containsKey(name) && names.containsValue(name);
+	}
+
+	/**
+	 * Assigns a physical name to a new file. The file is stored under its own name, unless that name is taken
+	 * by a renamed file, in which case a unique name is generated.
+	 *
+	 * @return the physical name
+	 */
+	synchronized String assign(final String name) {
+		if (names.containsValue(name)) {
+			final String physical = name + "." + UUID.randomUUID();
+			names.put(name, physical);
+			dirty = true;
+			return physical;
+		}
+		if (names.remove(name) != null) {
+			dirty = true;
+		}
+		return name;
+	}
+
+	/**
+	 * Points the name <code>to</code> at the physical object of <code>from</code>.
+	 */
+	synchronized void rename(final String from, final String to) {
+		final String physical = resolve(from);
+		names.remove(from);
+		if (to.equals(physical)) {
+			names.remove(to);
+		} else {
+			names.put(to, physical);
+		}
+		dirty = true;
+	}
+
+	/**
+	 * Removes a file from the mapping.
+	 *
+	 * @return the physical name of the removed file
+	 */
+	synchronized String remove(final String name) {
+		final String physical = names.remove(name);
+		if (physical == null) {
+			return name;
+		}
+		dirty = true;
+		return physical;
+	}
+
+	/**
+	 * Converts a listing of physical names to logical names. Physical objects which are shadowed by a mapping
+	 * are left out.
+	 */
+	synchronized <T> Map<String, T> toLogical(final Map<String, T> physical) {
+		final Map<String, T> logical = new LinkedHashMap<>();
+		for (Map.Entry<String, T> e : physical.entrySet()) {
+			if (!names.containsKey(e.getKey()) && !names.containsValue(e.getKey())) {
+				logical.put(e.getKey(), e.getValue());
+			}
+		}
+		for (Map.Entry<String, String> e : names.entrySet()) {
+			if (physical.containsKey(e.getValue())) {
+				logical.put(e.getKey(), physical.get(e.getValue()));
+			}
+		}
+		return logical;
+	}
+
+	/**
+	 * Writes the mapping to S3 if it has changed since it was last written or loaded,
+	 * otherwise loads the latest mapping written by another node.
+	 *
+	 * @throws IOException if the request failed
+	 */
+	synchronized void refresh() throws IOException {
+		if (dirty) {
+			persist();
+		} else {
+			load();
+		}
+	}
+
+	/**
+	 * Writes the mapping to S3 if it has changed since it was last written or loaded.
+	 *
+	 * @throws IOException if the request failed
+	 */
+	synchronized void persist() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		final Properties props = new Properties();
+		props.putAll(names);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		props.store(out, null);
+		final Response res;
+		try (S3RequestTimer timer = directory.time(S3Operation.PUT, S3Directory.MANIFEST_NAME, null)) {
+			res = directory.getS3()
+					.path(directory.getBucket(), directory.getPath() + S3Directory.MANIFEST_NAME)
+					.method(HttpMethod.PUT)
+					.requestBody(out.toByteArray())
+					.response();
+			if (res.statusCode() / 100 == 2) {
+				timer.bytes(out.size()).success();
+			}
+		} catch (Exception e) {
+			throw new S3Directory.S3StoreException("Failed to write " + S3Directory.MANIFEST_NAME, e);
+		}
+		if (res.statusCode() / 100 != 2) {
+			throw new S3Directory.S3StoreException("Failed to write " + S3Directory.MANIFEST_NAME
+					+ ", HTTP status " + res.statusCode());
+		}
+		dirty = false;
+	}
+
+	/**
+	 * Replaces the mapping with the one stored in S3. A missing manifest is an empty mapping.
+	 *
+	 * @throws IOException if the request failed
+	 */
+	synchronized void load() throws IOException {
+		final Response res;
+		try (S3RequestTimer timer = directory.time(S3Operation.GET, S3Directory.MANIFEST_NAME, null)) {
+			res = directory.getS3()
+					.path(directory.getBucket(), directory.getPath() + S3Directory.MANIFEST_NAME)
+					.method(HttpMethod.GET)
+					.response();
+			if (res.statusCode() / 100 == 2 || res.statusCode() == 404) {
+				timer.bytes(res.content().length).success();
+			}
+		} catch (Exception e) {
+			throw new S3Directory.S3StoreException("Failed to read " + S3Directory.MANIFEST_NAME, e);
+		}
+		if (res.statusCode() == 404) {
+			names.clear();
+			return;
+		}
+		if (res.statusCode() / 100 != 2) {
+			throw new S3Directory.S3StoreException("Failed to read " + S3Directory.MANIFEST_NAME
+					+ ", HTTP status " + res.statusCode());
+		}
+		final Properties props = new Properties();
+		props.load(new ByteArrayInputStream(res.content()));
+		names.clear();
+		for (String name : props.stringPropertyNames()) {
+			names.put(name, props.getProperty(name));
+		}
+		dirty = false;
+	}
+}
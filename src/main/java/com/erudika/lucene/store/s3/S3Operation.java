@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+/**
+ * The kinds of S3 requests sent by {@link S3Directory} and its lock factories.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public enum S3Operation {
+	/**
+	 * GET of a whole object.
+	 */
+	GET,
+	/**
+	 * GET of a byte range of an object.
+	 */
+	RANGED_GET,
+	/**
+	 * PUT of an object, or of one part of a multipart upload.
+	 */
+	PUT,
+	/**
+	 * HEAD of an object or a bucket.
+	 */
+	HEAD,
+	/**
+	 * One page of a bucket listing.
+	 */
+	LIST,
+	/**
+	 * DELETE of an object or a bucket, or a multi-object delete.
+	 */
+	DELETE,
+	/**
+	 * Server-side copy of an object, or of one part of a multipart copy.
+	 */
+	COPY,
+	/**
+	 * Creation, completion or abort of a multipart upload.
+	 */
+	MULTIPART,
+	/**
+	 * GET or PUT of the legal hold of an object, used for locking.
+	 */
+	LEGAL_HOLD,
+	/**
+	 * GET or conditional PUT of a lease, used for locking.
+	 */
+	LEASE
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * The part buffers of multipart uploads, shared by all outputs of a directory, or of all directories of a
+ * {@link S3DirectoryPool}. A budget bounds the bytes of the parts in flight and writers wait for it in arrival order.
+ * Buffers which are being filled don't count towards the budget, so a thread which writes several files at once
+ * can't wait for itself. Parts release their share of the budget when their upload ends, and their buffers are
+ * kept for reuse, up to the size of the budget.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class S3PartBuffers {
+
+	private final int maxBytes;
+	private final int maxKilobytes;
+	private final Semaphore budget;
+	private final Deque<byte[]> free = new ArrayDeque<>();
+	private long freeBytes;
+
+	S3PartBuffers(final int maxBytes) {
+		this.maxBytes = maxBytes;
+		this.maxKilobytes = Math.max(1, maxBytes >> 10);
+		this.budget = new Semaphore(maxKilobytes, true);
+	}
+
+	/**
+	 * Returns the maximum number of bytes of the parts in flight.
+	 */
+	int getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Returns a buffer of the given size, reusing the buffer of an ended part if there is one.
+	 */
+	byte[] take(final int size) {
+		synchronized (free) {
+			for (Iterator<byte[]> it = free.iterator(); it.hasNext();) {
+				final byte[] buffer = it.next();
+				if (buffer.length == size) {
+					it.remove();
+					freeBytes -= size;
+					return buffer;
+				}
+			}
+		}
+		return new byte[size];
+	}
+
+	/**
+	 * Blocks until the budget has room for one more part in flight.
+	 *
+	 * @param size the size of the buffer of the part
+	 */
+	void acquire(final int size) {
+		try {
+			budget.acquire(permits(size));
+		} catch (InterruptedException e) {
+			throw new ThreadInterruptedException(e);
+		}
+	}
+
+	/**
+	 * Releases the budget held by a part whose upload has ended and keeps its buffer for reuse.
+	 *
+	 * @param buffer the buffer of the part
+	 */
+	void release(final byte[] buffer) {
+		budget.release(permits(buffer.length));
+		synchronized (free) {
+			// the oldest buffers, e.g. of another part size, make room for the newest
+			while (freeBytes + buffer.length > maxBytes && !free.isEmpty()) {
+				freeBytes -= free.pollLast().length;
+			}
+			if (freeBytes + buffer.length <= maxBytes) {
+				free.push(buffer);
+				freeBytes += buffer.length;
+			}
+		}
+	}
+
+	/**
+	 * Releases the budget acquired for a buffer which isn't kept for reuse, e.g. the contents of a small file.
+	 *
+	 * @param size the size passed to {@link #acquire(int)}
+	 */
+	void release(final int size) {
+		budget.release(permits(size));
+	}
+
+	/**
+	 * Returns the budget taken by a part in kilobytes. A part larger than the whole budget waits until no other
+	 * part is in flight.
+	 */
+	private int permits(final int size) {
+		return (int) Math.min(maxKilobytes, (size + 1023L) >> 10);
+	}
+}
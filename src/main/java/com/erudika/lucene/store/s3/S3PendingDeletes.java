@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * The files of a directory which are pending deletion, by physical name. Deletions are sent in batches with
+ * {@link S3BatchDelete}, without holding the lock of this class, so that other operations on the directory don't
+ * wait for a round trip. A file which is written while the deletion of its object is in flight waits for that
+ * deletion only, and a file which is deleted again while its previous deletion is in flight is recognized by
+ * its generation and stays pending.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class S3PendingDeletes {
+
+	private final S3Directory directory;
+
+	/**
+	 * Physical names of the files pending deletion, mapped to their logical names, or to <code>null</code>
+	 * once a logical name is written again.
+	 */
+	private final Map<String, PendingDelete> pending = new LinkedHashMap<>();
+
+	/**
+	 * Physical names of the files whose delete request is in flight, mapped to the end of the request.
+	 */
+	private final Map<String, CompletableFuture<Void>> inFlight = new HashMap<>();
+
+	private long generation;
+
+	S3PendingDeletes(final S3Directory directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Marks a file for deletion.
+	 *
+	 * @param physical the physical name of the file
+	 * @param name the logical name of the file
+	 * @return the number of files pending deletion
+	 */
+	synchronized int add(final String physical, final String name) {
+		pending.put(physical, new PendingDelete(name, ++generation));
+		return pending.size();
+	}
+
+	/**
+	 * Deletes all files which are pending deletion, except those whose deletion is already in flight.
+	 * Files which could not be deleted stay pending.
+	 *
+	 * @throws IOException if a delete request failed
+	 */
+	void deleteAll() throws IOException {
+		final Map<String, Long> deleting = new LinkedHashMap<>();
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		synchronized (this) {
+			for (Map.Entry<String, PendingDelete> e : pending.entrySet()) {
+				if (!inFlight.containsKey(e.getKey())) {
+					deleting.put(e.getKey(), e.getValue().generation());
+					inFlight.put(e.getKey(), done);
+				}
+			}
+		}
+		if (deleting.isEmpty()) {
+			return;
+		}
+		Set<String> failed = null;
+		try {
+			final List<S3BatchDelete.ObjectVersion> objects = new ArrayList<>(deleting.size());
+			for (String name : deleting.keySet()) {
+				objects.add(new S3BatchDelete.ObjectVersion(directory.getPath() + name, null));
+			}
+			failed = S3BatchDelete.delete(directory, objects);
+		} finally {
+			synchronized (this) {
+				for (Map.Entry<String, Long> e : deleting.entrySet()) {
+					inFlight.remove(e.getKey(), done);
+					final PendingDelete file = pending.get(e.getKey());
+					if (failed != null && !failed.contains(directory.getPath() + e.getKey())
+							&& file != null && file.generation() == e.getValue()) {
+						pending.remove(e.getKey());
+					}
+				}
+			}
+			done.complete(null);
+		}
+	}
+
+	/**
+	 * Returns the generation of the latest deletion.
+	 */
+	synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Forgets the files whose objects were deleted by other means, e.g. when the bucket was emptied. Files deleted
+	 * after the given generation stay pending, and so do files whose deletion is in flight, which ends like
+	 * in {@link #deleteAll()}.
+	 *
+	 * @param notDeleted full object keys which could not be deleted
+	 * @param deletedGeneration the generation of the latest deletion whose object was deleted, if listed
+	 */
+	synchronized void removeDeleted(final Set<String> notDeleted, final long deletedGeneration) {
+		pending.entrySet().removeIf(e -> !inFlight.containsKey(e.getKey()) && e.getValue().generation() <= deletedGeneration
+				&& !notDeleted.contains(directory.getPath() + e.getKey()));
+	}
+
+	/**
+	 * Returns <code>true</code> if the file is pending deletion, or if the name is not in use and only refers to
+	 * a physical object which is pending deletion.
+	 */
+	synchronized boolean contains(final String name) {
+		for (PendingDelete file : pending.values()) {
+			if (name.equals(file.name())) {
+				return true;
+			}
+		}
+		return pending.containsKey(name) && directory.getKey(name).equals(directory.getPath() + name);
+	}
+
+	/**
+	 * Removes a file from the pending deletions, because it is about to be overwritten. If the file was renamed,
+	 * its physical object is still deleted, but the name is no longer reported as pending. If the deletion of
+	 * the object is in flight, this waits for it to end, so that the new object isn't deleted.
+	 *
+	 * @return <code>true</code> if the file was pending deletion
+	 */
+	boolean cancel(final String name) {
+		boolean cancelled;
+		final CompletableFuture<Void> deletion;
+		synchronized (this) {
+			cancelled = pending.remove(name) != null;
+			for (Map.Entry<String, PendingDelete> e : pending.entrySet()) {
+				if (name.equals(e.getValue().name())) {
+					e.setValue(new PendingDelete(null, e.getValue().generation()));
+					cancelled = true;
+				}
+			}
+			deletion = inFlight.get(name);
+		}
+		if (deletion != null) {
+			try {
+				deletion.get();
+			} catch (InterruptedException e) {
+				throw new ThreadInterruptedException(e);
+			} catch (@SuppressWarnings("unused") ExecutionException e) {
+				// never completed exceptionally
+			}
+		}
+		return cancelled;
+	}
+
+	/**
+	 * Returns the logical names of the files pending deletion.
+	 */
+	synchronized Set<String> names() {
+		final Set<String> names = new LinkedHashSet<>();
+		for (PendingDelete file : pending.values()) {
+			if (file.name() != null) {
+				names.add(file.name());
+			}
+		}
+		return Set.copyOf(names);
+	}
+
+	/**
+	 * A file pending deletion. The generation tells a file deleted again apart from the deletion in flight.
+	 *
+	 * @param name the logical name, or <code>null</code> once it is written again
+	 * @param generation the order of the deletion
+	 */
+	private record PendingDelete(String name, long generation) {
+	}
+}
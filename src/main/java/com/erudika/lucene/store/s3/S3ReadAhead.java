@@ -0,0 +1,234 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * A sliding read-ahead window for sequential reads of a file, e.g. during merges or checksum verification.
+ * Large chunks ahead of the reader are fetched in the background, with at most a fixed number of chunks
+ * (fetched or in flight) held at any time. Seeking past the window, or far behind it, resets it.
+ * The window is dropped once it has been read to the end.
+ * <p>
+ * A window is shared by an input and its clones, e.g. the postings enums of a merge, which read increasing
+ * positions in turns. Reads which lag a little behind the window are served by direct ranged reads.
+ * The bytes held by all windows of a directory are bounded by {@link S3Directory#getMaxReadAheadBytes()} -
+ * a window which can't get budget for a chunk reads directly as well. Chunk buffers are reused, see
+ * {@link S3ReadAheadBuffers}.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class S3ReadAhead {
+
+	private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+	private final S3Directory directory;
+	private final String name;
+	private final long end;
+	private final int chunkSize;
+	private final int maxChunks;
+	private final IOContext context;
+	private final S3ReadAheadBuffers buffers;
+	private long nextChunkStart;
+
+	/**
+	 * @param directory the directory
+	 * @param name file name
+	 * @param end the position at which reading stops (exclusive)
+	 * @param chunkSize the size of each ranged request
+	 * @param maxChunks the maximum number of chunks in the window
+	 * @param context the context in which the file was opened
+	 */
+	S3ReadAhead(final S3Directory directory, final String name, final long end, final int chunkSize, final int maxChunks,
+			final IOContext context) {
+		this.directory = directory;
+		this.name = name;
+		this.end = end;
+		this.chunkSize = chunkSize;
+		this.maxChunks = Math.max(1, maxChunks);
+		this.context = context;
+		this.buffers = directory.getReadAheadBuffers();
+	}
+
+	/**
+	 * Reads <code>bb.remaining()</code> bytes starting at the given position of the file.
+	 */
+	void read(final long position, final ByteBuffer bb) throws IOException {
+		long pos = position;
+		while (bb.hasRemaining()) {
+			final Chunk chunk = chunkFor(pos);
+			if (chunk == null) {
+				directory.readRangeOnce(name, pos, bb, context);
+				return;
+			}
+			try {
+				final byte[] data = await(chunk);
+				if (data == null) {
+					// dropped by a clone which moved the window on
+					continue;
+				}
+				final int chunkOffset = (int) (pos - chunk.start());
+				final int len = Math.min(bb.remaining(), chunk.length - chunkOffset);
+				bb.put(data, chunkOffset, len);
+				pos += len;
+			} finally {
+				// the buffer may be reused once no reader copies from it
+				chunk.unref();
+			}
+		}
+		if (pos >= end) {
+			// read to the end, e.g. a slice which is never closed
+			close();
+		}
+	}
+
+	/**
+	 * Returns the chunk which holds the given position, moving the window forward if needed.
+	 * The caller must {@link Chunk#unref()} the returned chunk once it has read from it.
+	 *
+	 * @return a chunk, or <code>null</code> if the position should be read directly
+	 */
+	private synchronized Chunk chunkFor(final long pos) {
+		while (!chunks.isEmpty() && chunks.peekFirst().end() <= pos) {
+			release(chunks.pollFirst());
+		}
+		if (!chunks.isEmpty() && chunks.peekFirst().start() > pos) {
+			if (chunks.peekFirst().start() - pos <= (long) chunkSize * maxChunks) {
+				// a clone lagging behind the others
+				return null;
+			}
+			close();
+		}
+		if (chunks.isEmpty()) {
+			nextChunkStart = pos;
+		}
+		while (chunks.size() < maxChunks && nextChunkStart < end) {
+			final long start = nextChunkStart;
+			final int len = (int) Math.min(chunkSize, end - start);
+			if (!buffers.tryAcquire(len)) {
+				break;
+			}
+			final Chunk chunk = new Chunk(start, len);
+			try {
+				directory.getExecutor().execute(chunk::fetch);
+			} catch (RejectedExecutionException e) {
+				buffers.release(len, null);
+				break;
+			}
+			chunks.addLast(chunk);
+			nextChunkStart += len;
+		}
+		final Chunk first = chunks.peekFirst();
+		if (first != null) {
+			first.ref();
+		}
+		return first;
+	}
+
+	private byte[] await(final Chunk chunk) throws IOException {
+		try {
+			return chunk.data.get();
+		} catch (@SuppressWarnings("unused") CancellationException e) {
+			return null;
+		} catch (InterruptedException e) {
+			throw new ThreadInterruptedException(e);
+		} catch (ExecutionException e) {
+			close();
+			if (e.getCause() instanceof UncheckedIOException ex) {
+				throw ex.getCause();
+			}
+			throw new S3Directory.S3StoreException("Failed to read ahead " + name + " at " + chunk.start(), e.getCause());
+		}
+	}
+
+	/**
+	 * Drops the window and cancels requests which haven't started yet.
+	 */
+	synchronized void close() {
+		for (Chunk chunk : chunks) {
+			release(chunk);
+		}
+		chunks.clear();
+	}
+
+	private void release(final Chunk chunk) {
+		chunk.data.cancel(false);
+		chunk.unref();
+	}
+
+	/**
+	 * A chunk of the window. Its bytes are given back to the budget, and its buffer is kept for reuse, once it is
+	 * dropped from the window, its request is done, or skipped because it was dropped before it started,
+	 * and no reader copies from it.
+	 */
+	private final class Chunk {
+
+		private final CompletableFuture<byte[]> data = new CompletableFuture<>();
+		private final AtomicInteger owners = new AtomicInteger(2);
+		private final long start;
+		private final int length;
+		private volatile byte[] buffer;
+
+		Chunk(final long start, final int length) {
+			this.start = start;
+			this.length = length;
+		}
+
+		long start() {
+			return start;
+		}
+
+		long end() {
+			return start + length;
+		}
+
+		void fetch() {
+			try {
+				if (!data.isDone()) {
+					buffer = buffers.take(length);
+					directory.readRangeOnce(name, start, ByteBuffer.wrap(buffer), context);
+					data.complete(buffer);
+				}
+			} catch (IOException e) {
+				data.completeExceptionally(new UncheckedIOException(e));
+			} catch (RuntimeException e) {
+				data.completeExceptionally(e);
+			} finally {
+				unref();
+			}
+		}
+
+		void ref() {
+			owners.incrementAndGet();
+		}
+
+		void unref() {
+			if (owners.decrementAndGet() == 0) {
+				buffers.release(length, buffer);
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The chunk buffers of read-ahead windows, shared by all inputs of a directory, or of all directories of a
+ * {@link S3DirectoryPool}. A budget bounds the bytes of the chunks which are fetched or in flight, and a window
+ * which can't get budget for a chunk doesn't wait for it. Chunks release their share of the budget once they
+ * are dropped, and their buffers are kept for reuse, so that a long merge doesn't allocate a buffer per chunk.
+ * Buffers kept for reuse and chunks in use together stay within the budget.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class S3ReadAheadBuffers {
+
+	private final int maxBytes;
+	private final Semaphore budget;
+	private final Deque<byte[]> free = new ArrayDeque<>();
+	private long freeBytes;
+
+	S3ReadAheadBuffers(final int maxBytes) {
+		this.maxBytes = Math.max(0, maxBytes);
+		this.budget = new Semaphore(this.maxBytes);
+	}
+
+	/**
+	 * Returns the maximum number of bytes of the chunks which are fetched or in flight.
+	 */
+	int getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Returns the number of bytes which are left in the budget.
+	 */
+	int getAvailableBytes() {
+		return budget.availablePermits();
+	}
+
+	/**
+	 * Takes budget for a chunk, if there is enough left.
+	 *
+	 * @param size the size of the chunk
+	 * @return <code>true</code> if the budget was taken
+	 */
+	boolean tryAcquire(final int size) {
+		return budget.tryAcquire(size);
+	}
+
+	/**
+	 * Returns a buffer of the given size for a chunk whose budget was taken, reusing the buffer of a dropped chunk
+	 * if there is one.
+	 */
+	byte[] take(final int size) {
+		synchronized (free) {
+			for (Iterator<byte[]> it = free.iterator(); it.hasNext();) {
+				final byte[] buffer = it.next();
+				if (buffer.length == size) {
+					it.remove();
+					freeBytes -= size;
+					return buffer;
+				}
+			}
+			// the oldest buffers, e.g. of another chunk size, make room for the new one
+			while (freeBytes > budget.availablePermits() && !free.isEmpty()) {
+				freeBytes -= free.pollLast().length;
+			}
+		}
+		return new byte[size];
+	}
+
+	/**
+	 * Releases the budget of a dropped chunk and keeps its buffer for reuse, if the budget has room for it.
+	 *
+	 * @param size the size passed to {@link #tryAcquire(int)}
+	 * @param buffer the buffer of the chunk, or <code>null</code> if it was never fetched
+	 */
+	void release(final int size, final byte[] buffer) {
+		budget.release(size);
+		if (buffer == null) {
+			return;
+		}
+		synchronized (free) {
+			while (freeBytes + buffer.length > budget.availablePermits() && !free.isEmpty()) {
+				freeBytes -= free.pollLast().length;
+			}
+			if (freeBytes + buffer.length <= budget.availablePermits()) {
+				free.push(buffer);
+				freeBytes += buffer.length;
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Lets another thread abort the S3 requests of a task, e.g. the first request of a hedged read once the second
+ * one has won. Aborting closes the response of the request in flight, so that a blocked read of its body fails
+ * with an <code>IOException</code>. With {@link S3HttpClient}, a request which still waits for its response
+ * headers is cancelled as well. Requests sent by the task after the abort fail at once.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class S3RequestAbort {
+
+	private static final ThreadLocal<S3RequestAbort> CURRENT = new ThreadLocal<>();
+
+	private Closeable action;
+	private boolean aborted;
+
+	/**
+	 * Runs a task on the current thread, whose requests are aborted by {@link #abort()}.
+	 */
+	void run(final S3Directory.IOTask task) throws IOException {
+		final S3RequestAbort outer = CURRENT.get();
+		CURRENT.set(this);
+		try {
+			task.run();
+		} finally {
+			CURRENT.set(outer);
+		}
+	}
+
+	/**
+	 * Aborts the request in flight, if any, and all later requests of the task.
+	 */
+	void abort() {
+		final Closeable current;
+		synchronized (this) {
+			aborted = true;
+			current = action;
+			action = null;
+		}
+		close(current);
+	}
+
+	/**
+	 * Sets how the request in flight on the current thread is aborted, e.g. by closing its response.
+	 * Does nothing if the current thread doesn't run an abortable task. If the task was aborted already,
+	 * the request is aborted at once.
+	 *
+	 * @param action closes or cancels the request
+	 * @return true if the current thread runs an abortable task
+	 */
+	static boolean register(final Closeable action) {
+		final S3RequestAbort abort = CURRENT.get();
+		if (abort == null) {
+			return false;
+		}
+		synchronized (abort) {
+			if (!abort.aborted) {
+				abort.action = action;
+				return true;
+			}
+		}
+		close(action);
+		return true;
+	}
+
+	/**
+	 * Returns <code>true</code> if the current thread runs an abortable task.
+	 */
+	static boolean isAbortable() {
+		return CURRENT.get() != null;
+	}
+
+	private static void close(final Closeable action) {
+		if (action == null) {
+			return;
+		}
+		try {
+			action.close();
+		} catch (@SuppressWarnings("unused") IOException e) {
+			// the aborted request fails either way
+		}
+	}
+}
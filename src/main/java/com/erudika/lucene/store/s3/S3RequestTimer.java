@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.util.List;
+import org.apache.lucene.store.IOContext;
+
+/**
+ * Times one S3 request and reports it to the listeners of a directory when closed. A request which is closed
+ * without calling {@link #success()} is reported as failed. Used in a try-with-resources block around each request.
+ * For directories of a {@link S3DirectoryPool}, the timer also holds the request permits of the tenant.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class S3RequestTimer implements AutoCloseable {
+
+	/**
+	 * A timer which reports nothing, used when a directory has no listeners.
+	 */
+	static final S3RequestTimer NOOP = new S3RequestTimer(List.of(), null, null, null, null, false);
+
+	private final List<S3DirectoryListener> listeners;
+	private final S3Operation operation;
+	private final String name;
+	private final IOContext context;
+	private final S3DirectoryPool.Tenant tenant;
+	private final boolean tenantPermit;
+	private final long start;
+	private long bytes;
+	private boolean success;
+
+	private S3RequestTimer(final List<S3DirectoryListener> listeners, final S3Operation operation, final String name,
+			final IOContext context, final S3DirectoryPool.Tenant tenant, final boolean tenantPermit) {
+		this.listeners = listeners;
+		this.operation = operation;
+		this.name = name;
+		this.context = context;
+		this.tenant = tenant;
+		this.tenantPermit = tenantPermit;
+		this.start = listeners.isEmpty() ? 0L : System.nanoTime();
+	}
+
+	/**
+	 * Starts timing a request.
+	 *
+	 * @param listeners the listeners to notify
+	 * @param operation the kind of request
+	 * @param name the index file name, or <code>null</code>
+	 * @param context the context in which the file was opened, or <code>null</code>
+	 * @param tenant the tenant whose request permit is acquired, or <code>null</code>
+	 * @return a timer
+	 */
+	static S3RequestTimer start(final List<S3DirectoryListener> listeners, final S3Operation operation,
+			final String name, final IOContext context, final S3DirectoryPool.Tenant tenant) {
+		if (listeners.isEmpty() && tenant == null) {
+			return NOOP;
+		}
+		final boolean tenantPermit = tenant != null && tenant.acquire();
+		try {
+			for (S3DirectoryListener listener : listeners) {
+				listener.requestStarted(operation, name);
+			}
+		} catch (RuntimeException e) {
+			if (tenant != null) {
+				tenant.release(tenantPermit);
+			}
+			throw e;
+		}
+		return new S3RequestTimer(listeners, operation, name, context, tenant, tenantPermit);
+	}
+
+	/**
+	 * Adds to the number of bytes transferred by the request.
+	 */
+	S3RequestTimer bytes(final long transferred) {
+		if (this != NOOP) {
+			this.bytes += transferred;
+		}
+		return this;
+	}
+
+	/**
+	 * Marks the request as successful.
+	 */
+	void success() {
+		if (this != NOOP) {
+			this.success = true;
+		}
+	}
+
+	@Override
+	public void close() {
+		if (tenant != null) {
+			tenant.release(tenantPermit);
+		}
+		if (listeners.isEmpty()) {
+			return;
+		}
+		final long nanos = System.nanoTime() - start;
+		for (S3DirectoryListener listener : listeners) {
+			listener.requestFinished(operation, name, context, bytes, nanos, success);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.lucene.store.OutputStreamIndexOutput;
+
+/**
+ * An index output which writes to a local temporary file and uploads it to S3 on close.
+ * Heap usage doesn't depend on the size of the file, which allows many concurrent writers without risking OOM.
+ * Files larger than the part size are uploaded in parts, read from memory-mapped regions of the temporary file
+ * into the part buffers of the directory, with at most <code>uploadConcurrency</code> parts in flight. Smaller files
+ * are uploaded with a single request, and their bytes count towards the part buffer budget until the request ends.
+ * Either way, the file is read by the closing thread, so the temporary file is gone once {@link #close()} returns,
+ * even if the upload finishes in the background.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class S3SpillingIndexOutput extends OutputStreamIndexOutput {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final S3Directory directory;
+	private final Path file;
+	private boolean closed;
+
+	private S3SpillingIndexOutput(final S3Directory directory, final String name, final Path file) throws IOException {
+		super(directory.getResourceDescription(name), name,
+				Files.newOutputStream(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), BUFFER_SIZE);
+		this.directory = directory;
+		this.file = file;
+	}
+
+	/**
+	 * Creates a new output backed by a temporary file in the spill directory.
+	 */
+	static S3SpillingIndexOutput create(final S3Directory directory, final String name) throws IOException {
+		final Path file = Files.createTempFile(Files.createDirectories(directory.getSpillDirectory()), "s3dir-", ".spill");
+		try {
+			return new S3SpillingIndexOutput(directory, name, file);
+		} catch (IOException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			super.close();
+		} catch (IOException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+		try {
+			final long size = Files.size(file);
+			if (size <= directory.getPartSize()) {
+				uploadSmallFile((int) size);
+				return;
+			}
+			final S3MultipartUpload upload;
+			try {
+				upload = uploadParts(size);
+			} finally {
+				Files.deleteIfExists(file);
+			}
+			directory.upload(getName(), size, upload);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the whole file into memory once the part buffer budget has room for it, and uploads it with
+	 * a single request. The budget is held until the request ends, so that the files waiting for a background
+	 * upload can't fill the heap.
+	 */
+	private void uploadSmallFile(final int size) throws IOException {
+		final S3PartBuffers partBuffers = directory.getPartBuffers();
+		partBuffers.acquire(size);
+		final AtomicBoolean released = new AtomicBoolean();
+		final Runnable release = () -> {
+			if (released.compareAndSet(false, true)) {
+				partBuffers.release(size);
+			}
+		};
+		try {
+			final byte[] bytes;
+			try {
+				bytes = Files.readAllBytes(file);
+			} finally {
+				Files.deleteIfExists(file);
+			}
+			directory.upload(getName(), size, () -> {
+				try {
+					directory.putObject(getName(), bytes);
+				} finally {
+					release.run();
+				}
+			});
+		} catch (IOException | RuntimeException e) {
+			// the upload didn't start
+			release.run();
+			throw e;
+		}
+	}
+
+	/**
+	 * Starts the upload of every part from the closing thread, which blocks while <code>uploadConcurrency</code>
+	 * parts are in flight. Only the parts run on the executor, so background uploads never wait for each other.
+	 */
+	private S3MultipartUpload uploadParts(final long size) throws IOException {
+		final int partSize = directory.getPartSize();
+		final S3MultipartUpload upload = S3MultipartUpload.start(directory, getName());
+		final Semaphore permits = new Semaphore(directory.getUploadConcurrency());
+		final S3PartBuffers partBuffers = directory.getPartBuffers();
+		int partNumber = 0;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			for (long offset = 0; offset < size; offset += partSize) {
+				final int len = (int) Math.min(partSize, size - offset);
+				upload.acquire(permits, partBuffers, partSize);
+				// the HTTP client only accepts byte arrays, so each part is copied once from the mapped file
+				final byte[] part = partBuffers.take(partSize);
+				channel.map(FileChannel.MapMode.READ_ONLY, offset, len).get(part, 0, len);
+				upload.uploadPartAsync(++partNumber, part, len, () -> {
+					partBuffers.release(part);
+					permits.release();
+				});
+			}
+		} catch (IOException e) {
+			upload.abort();
+			throw e;
+		}
+		return upload;
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.LongStream;
+import org.apache.lucene.codecs.CompoundDirectory;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * Loads the blocks which Lucene reads when it opens a commit into the block cache, all in parallel.
+ * A reader opens each segment one after another and reads the small per-segment files (<code>.si</code>,
+ * <code>.fnm</code>, terms and points metadata, etc.) in full, as well as the header and the footer of every
+ * other file. Fetching the first and the last block of every file of the commit ahead of the reader turns
+ * a number of sequential round trips, which grows with the number of segments, into one round of parallel requests.
+ * <p>
+ * The files of a compound segment are read the same way, from within the <code>.cfs</code> file. For those
+ * segments the <code>.cfe</code> file, which lists where each file starts, is fetched in full first, then the blocks
+ * which hold the first and the last byte of each file are fetched in a second round.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class S3WarmUp {
+
+	private final Set<String> warmed = ConcurrentHashMap.newKeySet();
+	private final S3Directory directory;
+
+	S3WarmUp(final S3Directory directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Checks if a file is a commit point.
+	 */
+	static boolean isCommit(final String name) {
+		return name.startsWith(IndexFileNames.SEGMENTS + "_");
+	}
+
+	/**
+	 * Starts warming up a commit, the first time it is opened. The blocks are fetched in the background
+	 * and the reader waits for the running requests instead of sending its own.
+	 * Failures are ignored, the reader reports them when it reads the files.
+	 */
+	void onOpen(final S3BlockCache cache, final String segmentsFileName) {
+		if (!warmed.add(segmentsFileName)) {
+			return;
+		}
+		try {
+			start(cache, SegmentInfos.readCommit(directory, segmentsFileName));
+		} catch (@SuppressWarnings("unused") IOException | RuntimeException e) {
+			// the reader will fail on its own, if the commit is unreadable
+		}
+	}
+
+	/**
+	 * Forgets that a commit was warmed up, when it is deleted.
+	 */
+	void onDelete(final String name) {
+		warmed.remove(name);
+	}
+
+	/**
+	 * Warms up a commit and waits until all blocks are cached.
+	 *
+	 * @throws IOException if a block could not be fetched
+	 */
+	void warmUp(final S3BlockCache cache, final SegmentInfos infos) throws IOException {
+		warmed.add(infos.getSegmentsFileName());
+		try {
+			CompletableFuture.allOf(start(cache, infos).toArray(new CompletableFuture<?>[0])).get();
+		} catch (InterruptedException e) {
+			throw new ThreadInterruptedException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException ioe) {
+				throw ioe;
+			}
+			if (e.getCause() instanceof UncheckedIOException ex) {
+				throw ex.getCause();
+			}
+			throw new S3Directory.S3StoreException("Failed to warm up " + infos.getSegmentsFileName(), e.getCause());
+		}
+	}
+
+	/**
+	 * Starts fetching the first and the last block of each file of a commit.
+	 * The commit point itself has just been read and is skipped.
+	 */
+	private List<CompletableFuture<?>> start(final S3BlockCache cache, final SegmentInfos infos) throws IOException {
+		final List<CompletableFuture<?>> futures = new ArrayList<>();
+		for (SegmentCommitInfo segment : infos) {
+			final boolean compoundFile = segment.info.getUseCompoundFile();
+			final List<CompletableFuture<?>> compound = new ArrayList<>();
+			for (String file : segment.files()) {
+				final String ext = IndexFileNames.getExtension(file);
+				final boolean entries = IndexFileNames.COMPOUND_FILE_ENTRIES_EXTENSION.equals(ext);
+				final List<CompletableFuture<?>> fileFutures = start(cache, file, compoundFile && entries);
+				futures.addAll(fileFutures);
+				if (compoundFile && (entries || IndexFileNames.COMPOUND_FILE_EXTENSION.equals(ext))) {
+					compound.addAll(fileFutures);
+				}
+			}
+			if (compoundFile) {
+				futures.add(startCompound(cache, segment, compound));
+			}
+		}
+		return futures;
+	}
+
+	/**
+	 * Starts fetching the first and the last block of a file, or all of its blocks.
+	 */
+	private List<CompletableFuture<?>> start(final S3BlockCache cache, final String file, final boolean allBlocks) {
+		final List<CompletableFuture<?>> futures = new ArrayList<>();
+		final S3FileInfo info = directory.peekFileInfo(file);
+		if (info == null) {
+			// the length is loaded along with the first block
+			final CompletableFuture<Void> first = fetch(cache, file, 0L);
+			futures.add(first.thenCompose(b -> {
+				final S3FileInfo loaded = directory.peekFileInfo(file);
+				return loaded == null ? first : fetchRest(cache, file, loaded.length(), allBlocks);
+			}));
+		} else if (info.length() > 0) {
+			directory.validateCache(file, info);
+			futures.add(fetch(cache, file, 0L));
+			futures.add(fetchRest(cache, file, info.length(), allBlocks));
+		}
+		return futures;
+	}
+
+	/**
+	 * Once the entries of a compound file and the ends of its data file are cached, opens the compound file
+	 * and fetches the first and the last block of each file it contains, which a reader reads like those
+	 * of any other segment file.
+	 */
+	private CompletableFuture<Void> startCompound(final S3BlockCache cache, final SegmentCommitInfo segment,
+			final List<CompletableFuture<?>> files) {
+		return CompletableFuture.allOf(files.toArray(new CompletableFuture<?>[0]))
+				.thenApplyAsync(v -> {
+					try {
+						return compoundBlocks(cache, segment);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}, directory.getExecutor())
+				.thenCompose(blocks -> {
+					final String cfs = IndexFileNames.segmentFileName(segment.info.name, "",
+							IndexFileNames.COMPOUND_FILE_EXTENSION);
+					return CompletableFuture.allOf(blocks.stream().map(block -> fetch(cache, cfs, block))
+							.toArray(CompletableFuture<?>[]::new));
+				});
+	}
+
+	/**
+	 * Returns the blocks of the compound data file which hold the first and the last byte of each file it contains.
+	 */
+	private Set<Long> compoundBlocks(final S3BlockCache cache, final SegmentCommitInfo segment) throws IOException {
+		final Set<Long> blocks = new TreeSet<>();
+		// runs on the executor, where reads must not be hedged
+		S3HedgingPolicy.runInBackground(() -> {
+			try (CompoundDirectory cfs = segment.info.getCodec().compoundFormat().getCompoundReader(directory, segment.info)) {
+				for (String file : cfs.listAll()) {
+					try (IndexInput in = cfs.openInput(file, IOContext.DEFAULT)) {
+						if (in instanceof S3IndexInput slice && slice.length() > 0) {
+							blocks.add(slice.getSliceOffset() / cache.getBlockSize());
+							blocks.add((slice.getSliceOffset() + slice.length() - 1) / cache.getBlockSize());
+						}
+					}
+				}
+			}
+		});
+		return blocks;
+	}
+
+	private CompletableFuture<Void> fetchRest(final S3BlockCache cache, final String file, final long length,
+			final boolean allBlocks) {
+		final long last = (length - 1) / cache.getBlockSize();
+		if (!allBlocks || last <= 1) {
+			return fetchLast(cache, file, length);
+		}
+		return CompletableFuture.allOf(LongStream.rangeClosed(1, last).mapToObj(block -> fetch(cache, file, block))
+				.toArray(CompletableFuture<?>[]::new));
+	}
+
+	private CompletableFuture<Void> fetchLast(final S3BlockCache cache, final String file, final long length) {
+		final long last = (length - 1) / cache.getBlockSize();
+		return last <= 0 ? CompletableFuture.completedFuture(null) : fetch(cache, file, last);
+	}
+
+	private CompletableFuture<Void> fetch(final S3BlockCache cache, final String file, final long block) {
+		return directory.getBlockFetcher().fetchAsync(cache, file, block, IOContext.DEFAULT);
+	}
+}
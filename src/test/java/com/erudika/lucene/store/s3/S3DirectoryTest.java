@@ -20,29 +20,65 @@ package com.erudika.lucene.store.s3;
 import com.adobe.testing.s3mock.S3MockApplication;
 import com.github.davidmoten.aws.lw.client.Client;
 import com.github.davidmoten.aws.lw.client.Credentials;
+import com.github.davidmoten.aws.lw.client.HttpClient;
+import com.github.davidmoten.aws.lw.client.HttpMethod;
+import com.github.davidmoten.aws.lw.client.ResponseInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.apache.lucene.codecs.CompoundDirectory;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexFileNames;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.index.StoredFields;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.FlushInfo;
@@ -50,10 +86,16 @@ import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockObtainFailedException;
 import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.MergeInfo;
 import org.junit.jupiter.api.AfterAll;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import org.junit.jupiter.api.BeforeAll;
@@ -316,6 +358,1414 @@ public class S3DirectoryTest { //extends BaseDirectoryTestCase {
 		}
 	}
 
+	@Test
+	public void testRangedReads() throws IOException {
+		final byte[] data = randomBytes(100_000);
+		writeFile(s3Directory, "ranged1", data);
+		try (IndexInput indexInput = s3Directory.openInput("ranged1", IOContext.DEFAULT)) {
+			assertEquals(data.length, indexInput.length());
+			final byte[] read = new byte[data.length];
+			indexInput.readBytes(read, 0, read.length);
+			assertArrayEquals(data, read);
+
+			indexInput.seek(77_777);
+			assertEquals(data[77_777], indexInput.readByte());
+			indexInput.seek(1_025);
+			assertEquals(data[1_025], indexInput.readByte());
+			indexInput.seek(data.length - 1);
+			assertEquals(data[data.length - 1], indexInput.readByte());
+		} finally {
+			s3Directory.deleteFile("ranged1");
+		}
+	}
+
+	@Test
+	public void testDiskBlockCache() throws IOException {
+		final byte[] data = randomBytes(50_000);
+		writeFile(s3Directory, "cached1", data);
+		final Path cacheDir = Files.createTempDirectory("s3dir-cache");
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "");
+		try (S3DiskBlockCache cache = new S3DiskBlockCache(cacheDir, 16 * 1024, 32 * 1024)) {
+			dir.setBlockCache(cache);
+			for (int i = 0; i < 2; i++) {
+				try (IndexInput indexInput = dir.openInput("cached1", IOContext.DEFAULT)) {
+					final byte[] read = new byte[data.length];
+					indexInput.readBytes(read, 0, read.length);
+					assertArrayEquals(data, read);
+					indexInput.seek(20_000);
+					assertEquals(data[20_000], indexInput.readByte());
+				}
+			}
+			assertTrue(cache.getUsedBytes() > 0);
+			assertTrue(cache.getUsedBytes() <= 32 * 1024);
+			dir.deleteFile("cached1");
+			assertFalse(cache.contains(dir.getCacheKey("cached1"), 1));
+		} finally {
+			dir.close();
+		}
+	}
+
+	@Test
+	public void testDiskBlockCacheDropsStaleBlocks() throws IOException {
+		final byte[] data = randomBytes(20_000);
+		final byte[] rewritten = new byte[data.length];
+		new Random(42).nextBytes(rewritten);
+		writeFile(s3Directory, "stale1", data);
+		final Path cacheDir = Files.createTempDirectory("s3dir-cache");
+		final S3Directory dir1 = new S3Directory(s3, TEST_BUCKET, "");
+		try (S3DiskBlockCache cache = new S3DiskBlockCache(cacheDir, 16 * 1024, 64 * 1024)) {
+			dir1.setBlockCache(cache);
+			assertArrayEquals(data, readFile(dir1, "stale1"));
+		} finally {
+			dir1.close();
+		}
+		// the file is rewritten with the same length while no cache is running
+		s3.path(s3Directory.getBucket(), "stale1").method(HttpMethod.PUT).requestBody(rewritten).execute();
+		final S3Directory dir2 = new S3Directory(s3, TEST_BUCKET, "");
+		try (S3DiskBlockCache cache = new S3DiskBlockCache(cacheDir, 16 * 1024, 64 * 1024)) {
+			assertTrue(cache.contains(dir2.getCacheKey("stale1"), 0));
+			dir2.setBlockCache(cache);
+			assertArrayEquals(rewritten, readFile(dir2, "stale1"));
+			// a second run with an unchanged object keeps its blocks
+			assertTrue(cache.contains(dir2.getCacheKey("stale1"), 0));
+		} finally {
+			dir2.deleteFile("stale1");
+			dir2.close();
+		}
+		try (S3DiskBlockCache cache = new S3DiskBlockCache(cacheDir, 16 * 1024, 64 * 1024)) {
+			assertFalse(cache.contains(s3Directory.getCacheKey("stale1"), 0));
+		}
+	}
+
+	@Test
+	public void testDiskBlockCacheRejectsStalePuts() throws IOException {
+		final Path cacheDir = Files.createTempDirectory("s3dir-cache");
+		try (S3DiskBlockCache cache = new S3DiskBlockCache(cacheDir, 1024, 64 * 1024)) {
+			final ByteBuffer data = ByteBuffer.wrap(randomBytes(1024));
+			cache.put("file1", 0, data);
+			cache.put("file2", 0, data);
+			// a block is requested, then the file is rewritten before the block is stored
+			final long generation = cache.generation("file1");
+			cache.invalidate("file1");
+			assertFalse(cache.contains("file1", 0));
+			assertTrue(cache.contains("file2", 0));
+			cache.put("file1", 1, data, generation);
+			assertFalse(cache.contains("file1", 1));
+			cache.put("file1", 1, data, cache.generation("file1"));
+			assertTrue(cache.contains("file1", 1));
+			assertEquals(2 * 1024, cache.getUsedBytes());
+		}
+	}
+
+	@Test
+	public void testMemoryBlockCacheRejectsStalePuts() {
+		final int blockSize = 1024;
+		try (S3MemoryBlockCache cache = new S3MemoryBlockCache(blockSize, 64L * blockSize)) {
+			final ByteBuffer data = ByteBuffer.wrap(randomBytes(blockSize));
+			cache.put("file1", 0, data);
+			cache.put("file2", 0, data);
+			// a block is requested, then the file is rewritten before the block is stored
+			final long generation = cache.generation("file1");
+			cache.invalidate("file1");
+			assertFalse(cache.contains("file1", 0));
+			assertTrue(cache.contains("file2", 0));
+			cache.put("file1", 1, data, generation);
+			assertFalse(cache.contains("file1", 1));
+			final ByteBuffer stale = cache.borrowBuffer("file1", 2);
+			stale.put(data.duplicate()).flip();
+			cache.putBorrowed("file1", 2, stale, generation);
+			assertFalse(cache.contains("file1", 2));
+			cache.put("file1", 1, data, cache.generation("file1"));
+			assertTrue(cache.contains("file1", 1));
+			final ByteBuffer loaded = cache.borrowBuffer("file1", 2);
+			loaded.put(data.duplicate()).flip();
+			cache.putBorrowed("file1", 2, loaded, cache.generation("file1"));
+			assertTrue(cache.contains("file1", 2));
+			assertEquals(3 * blockSize, cache.getUsedBytes());
+		}
+	}
+
+	@Test
+	public void testMemoryBlockCacheSegments() {
+		final int blockSize = 1024;
+		try (S3MemoryBlockCache cache = new S3MemoryBlockCache(blockSize,
+				4L * S3MemoryBlockCache.MIN_SEGMENT_BLOCKS * blockSize)) {
+			final ByteBuffer data = cache.borrowBuffer("file1", 0);
+			assertTrue(data.isDirect());
+			for (int i = 0; i < blockSize; i++) {
+				data.put((byte) i);
+			}
+			data.flip();
+			for (long block = 0; block < 50; block++) {
+				cache.put("file1", block, data);
+				cache.put("file2", block, data);
+			}
+			cache.returnBuffer("file1", 0, data);
+			assertEquals(100L * blockSize, cache.getUsedBytes());
+
+			// a block loaded into a borrowed buffer is stored in that buffer
+			final ByteBuffer loaded = cache.borrowBuffer("file3", 0);
+			loaded.put(data.duplicate()).flip();
+			cache.putBorrowed("file3", 0, loaded, cache.generation("file3"));
+			assertTrue(cache.contains("file3", 0));
+			assertEquals(101L * blockSize, cache.getUsedBytes());
+			cache.invalidate("file3");
+
+			cache.invalidate("file1");
+			assertEquals(50L * blockSize, cache.getUsedBytes());
+			final ByteBuffer dst = ByteBuffer.allocate(10);
+			for (long block = 0; block < 50; block++) {
+				assertFalse(cache.contains("file1", block));
+				assertTrue(cache.read("file2", block, 100, dst.clear()));
+				assertEquals((byte) 100, dst.get(0));
+			}
+
+			// a buffer lent out before the cache is closed is dropped when it comes back
+			final ByteBuffer lent = cache.borrowBuffer("file3", 0);
+			assertTrue(lent.isDirect());
+			cache.close();
+			cache.returnBuffer("file3", 0, lent);
+			assertFalse(cache.borrowBuffer("file3", 0).isDirect());
+			cache.put("file3", 0, ByteBuffer.allocate(blockSize));
+			assertFalse(cache.contains("file3", 0));
+			assertEquals(0, cache.getUsedBytes());
+		}
+	}
+
+	@Test
+	public void testMemoryBlockCacheSharedByClones() throws IOException {
+		final byte[] data = randomBytes(40_000);
+		writeFile(s3Directory, "cached2", data);
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "");
+		try (S3MemoryBlockCache cache = new S3MemoryBlockCache(8 * 1024, 64 * 1024)) {
+			dir.setBlockCache(cache);
+			try (IndexInput indexInput = dir.openInput("cached2", IOContext.DEFAULT)) {
+				indexInput.seek(10_000);
+				assertEquals(data[10_000], indexInput.readByte());
+				assertTrue(cache.contains(dir.getCacheKey("cached2"), 1));
+
+				final IndexInput clone = indexInput.clone();
+				clone.seek(30_000);
+				assertEquals(data[30_000], clone.readByte());
+
+				final IndexInput slice = indexInput.slice("slice", 16_000, 16_000);
+				slice.seek(1_000);
+				assertEquals(data[17_000], slice.readByte());
+				assertTrue(cache.contains(dir.getCacheKey("cached2"), 3));
+			}
+			assertTrue(cache.getUsedBytes() <= 64 * 1024);
+		} finally {
+			dir.close();
+			s3Directory.deleteFile("cached2");
+		}
+	}
+
+	@Test
+	public void testPrefetch() throws Exception {
+		final byte[] data = randomBytes(40_000);
+		writeFile(s3Directory, "prefetch1", data);
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "");
+		try (S3MemoryBlockCache cache = new S3MemoryBlockCache(8 * 1024, 64 * 1024)) {
+			dir.setBlockCache(cache);
+			try (IndexInput indexInput = dir.openInput("prefetch1", IOContext.DEFAULT)) {
+				indexInput.prefetch(20_000, 10_000);
+				final String key = dir.getCacheKey("prefetch1");
+				dir.getBlockFetcher().pending("prefetch1", 2).get(30, TimeUnit.SECONDS);
+				dir.getBlockFetcher().pending("prefetch1", 3).get(30, TimeUnit.SECONDS);
+				assertTrue(cache.contains(key, 2));
+				assertTrue(cache.contains(key, 3));
+				assertFalse(cache.contains(key, 0));
+				indexInput.seek(25_000);
+				assertEquals(data[25_000], indexInput.readByte());
+			}
+		} finally {
+			dir.close();
+			s3Directory.deleteFile("prefetch1");
+		}
+	}
+
+	@Test
+	public void testReadAhead() throws IOException {
+		final byte[] data = randomBytes(100_000);
+		writeFile(s3Directory, "readahead1", data);
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "");
+		dir.setReadAheadSize(16 * 1024);
+		dir.setReadAheadRequests(3);
+		try (IndexInput indexInput = dir.openInput("readahead1", IOContext.READONCE)) {
+			final byte[] read = new byte[data.length];
+			for (int i = 0; i < read.length; i++) {
+				read[i] = indexInput.readByte();
+			}
+			assertArrayEquals(data, read);
+			indexInput.seek(5_000);
+			assertEquals(data[5_000], indexInput.readByte());
+		} finally {
+			dir.close();
+			s3Directory.deleteFile("readahead1");
+		}
+	}
+
+	@Test
+	public void testReadAheadBudget() throws IOException {
+		final byte[] data = randomBytes(100_000);
+		writeFile(s3Directory, "readahead2", data);
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "");
+		dir.setReadAheadSize(16 * 1024);
+		dir.setReadAheadRequests(3);
+		// room for a single chunk, shared by two inputs and a clone
+		dir.setMaxReadAheadBytes(16 * 1024);
+		try (IndexInput input1 = dir.openInput("readahead2", IOContext.READONCE);
+				IndexInput input2 = dir.openInput("readahead2", IOContext.READONCE)) {
+			final IndexInput clone = input1.clone();
+			final byte[] read1 = new byte[data.length];
+			final byte[] read2 = new byte[data.length];
+			final byte[] read3 = new byte[data.length];
+			for (int i = 0; i < data.length; i += 1000) {
+				final int len = Math.min(1000, data.length - i);
+				input1.readBytes(read1, i, len);
+				input2.readBytes(read2, i, len);
+				clone.readBytes(read3, i, len);
+			}
+			assertArrayEquals(data, read1);
+			assertArrayEquals(data, read2);
+			assertArrayEquals(data, read3);
+		} finally {
+			assertEquals(16 * 1024, dir.getReadAheadBuffers().getAvailableBytes());
+			dir.close();
+			s3Directory.deleteFile("readahead2");
+		}
+	}
+
+	@Test
+	public void testReadAheadBudgetIsReleased() throws Exception {
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "readahead-merges/");
+		dir.setReadAheadSize(16 * 1024);
+		dir.setReadAheadRequests(2);
+		final Random random = new Random(7);
+		try {
+			final IndexWriterConfig config = getIndexWriterConfig();
+			config.setUseCompoundFile(true);
+			final TieredMergePolicy mergePolicy = new TieredMergePolicy();
+			mergePolicy.setNoCFSRatio(1.0);
+			config.setMergePolicy(mergePolicy);
+			try (IndexWriter iwriter = new IndexWriter(dir, config)) {
+				for (int round = 0; round < 3; round++) {
+					for (int i = 0; i < 4; i++) {
+						for (int j = 0; j < 50; j++) {
+							final Document doc = new Document();
+							final StringBuilder text = new StringBuilder();
+							for (int k = 0; k < 100; k++) {
+								text.append("word").append(random.nextInt(5000)).append(' ');
+							}
+							doc.add(new Field("text", text.toString(), TextField.TYPE_STORED));
+							iwriter.addDocument(doc);
+						}
+						iwriter.commit();
+					}
+					iwriter.forceMerge(1);
+					iwriter.commit();
+				}
+			}
+			// slices read with a merge context, to the end and part of the way, which are never closed
+			final String cfs = Arrays.stream(dir.listAll()).filter(f -> f.endsWith(".cfs")).findFirst().orElseThrow();
+			try (IndexInput input = dir.openInput(cfs, new IOContext(new MergeInfo(1, dir.fileLength(cfs), true, 1)))) {
+				final IndexInput whole = input.slice("whole", 0, input.length());
+				whole.readBytes(new byte[(int) whole.length()], 0, (int) whole.length());
+				final IndexInput half = input.slice("half", 0, input.length());
+				half.readBytes(new byte[(int) half.length() / 2], 0, (int) half.length() / 2);
+			}
+			for (String file : dir.listAll()) {
+				dir.deleteFile(file);
+			}
+		} finally {
+			final ExecutorService executor = dir.getExecutor();
+			dir.close();
+			assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+		}
+		// fetches which were still running gave their bytes back when they ended
+		assertEquals(S3Directory.DEFAULT_MAX_READ_AHEAD_BYTES, dir.getReadAheadBuffers().getAvailableBytes());
+	}
+
+	@Test
+	public void testMultipartUpload() throws IOException {
+		final byte[] data = randomBytes(12 * 1024 * 1024);
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "");
+		dir.setPartSize(S3Directory.MIN_PART_SIZE);
+		dir.setUploadConcurrency(2);
+		try {
+			final long checksum;
+			try (IndexOutput indexOutput = dir.createOutput("multipart1", IOContext.DEFAULT)) {
+				for (int i = 0; i < data.length; i += 100_000) {
+					indexOutput.writeBytes(data, i, Math.min(100_000, data.length - i));
+				}
+				checksum = indexOutput.getChecksum();
+			}
+			final CRC32 crc = new CRC32();
+			crc.update(data);
+			assertEquals(crc.getValue(), checksum);
+			assertEquals(data.length, dir.fileLength("multipart1"));
+			try (IndexInput indexInput = s3Directory.openInput("multipart1", IOContext.READONCE)) {
+				assertEquals(data.length, indexInput.length());
+				final byte[] read = new byte[data.length];
+				indexInput.readBytes(read, 0, read.length);
+				assertArrayEquals(data, read);
+			}
+		} finally {
+			dir.deleteFile("multipart1");
+			dir.close();
+		}
+	}
+
+	@Test
+	public void testMultipartUploadBackPressure() throws Exception {
+		final S3HttpClient http = new S3HttpClient();
+		final CountDownLatch twoParts = new CountDownLatch(2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger partRequests = new AtomicInteger();
+		// part uploads stall until released, then fail
+		final HttpClient stalling = (url, method, headers, body, connectTimeoutMs, readTimeoutMs) -> {
+			if ("PUT".equals(method) && url.getQuery() != null && url.getQuery().contains("partNumber=")) {
+				partRequests.incrementAndGet();
+				twoParts.countDown();
+				try {
+					release.await(30, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				throw new IOException("Part upload failed");
+			}
+			return http.request(url, method, headers, body, connectTimeoutMs, readTimeoutMs);
+		};
+		final S3Directory dir = new S3Directory(client(stalling), TEST_BUCKET, "backpressure/");
+		dir.setPartSize(S3Directory.MIN_PART_SIZE);
+		dir.setUploadConcurrency(2);
+		assertThrows(IllegalArgumentException.class, () -> dir.setUploadConcurrency(0));
+		final byte[] chunk = randomBytes(1024 * 1024);
+		final AtomicLong written = new AtomicLong();
+		final ExecutorService writer = Executors.newSingleThreadExecutor();
+		try {
+			final Future<?> writing = writer.submit(() -> {
+				try (IndexOutput indexOutput = dir.createOutput("stalled1", IOContext.DEFAULT)) {
+					for (int i = 0; i < 6 * 5; i++) {
+						indexOutput.writeBytes(chunk, chunk.length);
+						written.addAndGet(chunk.length);
+					}
+				}
+				return null;
+			});
+			assertTrue(twoParts.await(30, TimeUnit.SECONDS));
+			// two parts in flight and a third one filled, the writer waits for a part to end
+			try {
+				writing.get(500, TimeUnit.MILLISECONDS);
+				fail("The writer should be blocked");
+			} catch (TimeoutException e) {
+				assertEquals(2, partRequests.get());
+				assertTrue(written.get() <= 3L * S3Directory.MIN_PART_SIZE);
+			}
+			release.countDown();
+			try {
+				writing.get(30, TimeUnit.SECONDS);
+				fail("The failed part should fail the writer");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+			assertTrue(written.get() <= 3L * S3Directory.MIN_PART_SIZE);
+			assertFalse(dir.fileExists("stalled1"));
+		} finally {
+			release.countDown();
+			writer.shutdownNow();
+			dir.close();
+		}
+	}
+
+	@Test
+	public void testMultipartCopy() throws IOException {
+		final byte[] data = randomBytes(12 * 1024 * 1024);
+		final S3Directory source = new S3Directory(s3, TEST_BUCKET, "copy-src/");
+		final S3Directory target = new S3Directory(s3, TEST_BUCKET, "copy-dst/");
+		target.setCopyPartSize(S3Directory.MIN_PART_SIZE);
+		target.setCopyConcurrency(2);
+		try {
+			writeFile(source, "big", data);
+			target.copyFrom(source, "big", "big_copy", IOContext.DEFAULT);
+			target.rename("big_copy", "big_renamed");
+			assertFalse(target.fileExists("big_copy"));
+			assertEquals(data.length, target.fileLength("big_renamed"));
+			try (IndexInput indexInput = target.openInput("big_renamed", IOContext.READONCE)) {
+				final byte[] read = new byte[data.length];
+				indexInput.readBytes(read, 0, read.length);
+				assertArrayEquals(data, read);
+			}
+		} finally {
+			source.deleteFile("big");
+			target.deleteFile("big_renamed");
+			source.close();
+			target.close();
+		}
+	}
+
+	@Test
+	public void testCopyErrorBody() throws IOException {
+		final S3HttpClient http = new S3HttpClient();
+		// S3 may answer a copy with HTTP 200 and an error in the body
+		final HttpClient failingCopies = (url, method, headers, body, connectTimeoutMs, readTimeoutMs) -> {
+			if (!headers.keySet().stream().anyMatch("x-amz-copy-source"::equalsIgnoreCase)) {
+				return http.request(url, method, headers, body, connectTimeoutMs, readTimeoutMs);
+			}
+			final byte[] error = "<Error><Code>InternalError</Code></Error>".getBytes(StandardCharsets.UTF_8);
+			return new ResponseInputStream(() -> { }, 200, Map.of(), new ByteArrayInputStream(error));
+		};
+		final S3Directory source = new S3Directory(s3, TEST_BUCKET, "copy-src/");
+		final S3Directory target = new S3Directory(client(failingCopies), TEST_BUCKET, "copy-dst/");
+		try {
+			writeFile(source, "small", new byte[]{1, 2, 3});
+			assertThrows(IOException.class, () -> target.copyFrom(source, "small", "small_copy", IOContext.DEFAULT));
+		} finally {
+			source.deleteFile("small");
+			source.close();
+			target.close();
+		}
+	}
+
+	@Test
+	public void testSpillToDisk() throws IOException {
+		final byte[] data = randomBytes(11 * 1024 * 1024);
+		final Path spillDir = Files.createTempDirectory("s3dir-spill");
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "");
+		dir.setPartSize(S3Directory.MIN_PART_SIZE);
+		dir.setSpillDirectory(spillDir);
+		try {
+			writeFile(dir, "spill1", data);
+			writeFile(dir, "spill2", new byte[]{1, 2, 3});
+			try (Stream<Path> files = Files.list(spillDir)) {
+				assertEquals(0, files.count());
+			}
+			assertEquals(data.length, dir.fileLength("spill1"));
+			try (IndexInput indexInput = s3Directory.openInput("spill1", IOContext.READONCE)) {
+				final byte[] read = new byte[data.length];
+				indexInput.readBytes(read, 0, read.length);
+				assertArrayEquals(data, read);
+			}
+			try (IndexInput indexInput = s3Directory.openInput("spill2", IOContext.DEFAULT)) {
+				assertEquals(3, indexInput.length());
+				assertEquals((byte) 1, indexInput.readByte());
+				indexInput.seek(2);
+				assertEquals((byte) 3, indexInput.readByte());
+			}
+		} finally {
+			dir.deleteFile("spill1");
+			dir.deleteFile("spill2");
+			dir.close();
+		}
+	}
+
+	@Test
+	public void testAsyncUploads() throws IOException {
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "");
+		dir.setAsyncUploads(true, 4);
+		final Collection<String> names = new ArrayList<>();
+		try {
+			for (int i = 0; i < 10; i++) {
+				final String name = "async" + i;
+				writeFile(dir, name, randomBytes(1000 + i));
+				assertTrue(dir.fileExists(name));
+				names.add(name);
+			}
+			dir.sync(names);
+			for (String name : names) {
+				assertTrue(s3Directory.fileExists(name));
+				try (IndexInput indexInput = s3Directory.openInput(name, IOContext.DEFAULT)) {
+					final byte[] read = new byte[(int) indexInput.length()];
+					indexInput.readBytes(read, 0, read.length);
+					assertArrayEquals(randomBytes(read.length), read);
+				}
+			}
+		} finally {
+			for (String name : names) {
+				dir.deleteFile(name);
+			}
+			dir.close();
+		}
+	}
+
+	@Test
+	public void testAsyncSpillingUploadsWithFewThreads() throws IOException {
+		final Path spillDir = Files.createTempDirectory("s3dir-spill");
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "");
+		dir.setPartSize(S3Directory.MIN_PART_SIZE);
+		dir.setSpillDirectory(spillDir);
+		dir.setIoThreads(2);
+		dir.setAsyncUploads(true, 8);
+		final Collection<String> names = new ArrayList<>();
+		try {
+			// more multipart uploads in the background than there are I/O threads
+			for (int i = 0; i < 3; i++) {
+				final String name = "spilled" + i;
+				writeFile(dir, name, randomBytes(11 * 1024 * 1024 + i));
+				names.add(name);
+			}
+			assertTimeoutPreemptively(Duration.ofSeconds(60), () -> dir.sync(names));
+			for (String name : names) {
+				try (IndexInput indexInput = s3Directory.openInput(name, IOContext.READONCE)) {
+					final byte[] read = new byte[(int) indexInput.length()];
+					indexInput.readBytes(read, 0, read.length);
+					assertArrayEquals(randomBytes(read.length), read);
+				}
+			}
+			try (Stream<Path> files = Files.list(spillDir)) {
+				assertEquals(0, files.count());
+			}
+		} finally {
+			for (String name : names) {
+				dir.deleteFile(name);
+			}
+			dir.close();
+		}
+	}
+
+	@Test
+	public void testListingPopulatesFileInfo() throws IOException {
+		final S3Directory writer = new S3Directory(s3, TEST_BUCKET, "listing/");
+		final S3Directory reader = new S3Directory(s3, TEST_BUCKET, "listing/");
+		try {
+			writeFile(writer, "listed1", randomBytes(100));
+			writeFile(writer, "listed2", randomBytes(2000));
+			final List<String> names = Arrays.asList(reader.listAll());
+			assertTrue(names.contains("listed1"));
+			assertTrue(names.contains("listed2"));
+			assertEquals(100, reader.fileLength("listed1"));
+			assertEquals(2000, reader.fileLength("listed2"));
+			assertTrue(reader.fileModified("listed1") > 0);
+			assertNotNull(reader.fileETag("listed1"));
+
+			writer.deleteFile("listed2");
+			writer.deletePendingFiles();
+			assertFalse(Arrays.asList(reader.listAll()).contains("listed2"));
+			assertFalse(reader.fileExists("listed2"));
+		} finally {
+			writer.deleteFile("listed1");
+			writer.close();
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testLocalManifest() throws IOException {
+		final S3Directory writer = new S3Directory(s3, TEST_BUCKET, "manifest/");
+		final S3Directory other = new S3Directory(s3, TEST_BUCKET, "manifest/");
+		final S3Directory reader = new S3Directory(s3, TEST_BUCKET, "manifest/");
+		final AtomicLong now = new AtomicLong();
+		writer.setLocalManifest(true, 0);
+		reader.setLocalManifest(true, 1000);
+		reader.setManifestClock(now::get);
+		try {
+			writeFile(writer, "m1", randomBytes(10));
+			assertTrue(writer.fileExists("m1"));
+			writeFile(other, "m2", randomBytes(10));
+			assertFalse(writer.fileExists("m2"));
+			assertTrue(reader.fileExists("m2"));
+
+			writeFile(other, "m3", randomBytes(10));
+			now.addAndGet(999);
+			assertFalse(Arrays.asList(reader.listAll()).contains("m3"));
+			now.addAndGet(1);
+			assertTrue(Arrays.asList(reader.listAll()).contains("m3"));
+			assertFalse(Arrays.asList(writer.listAll()).contains("m3"));
+
+			writer.rename("m1", "m1r");
+			assertTrue(writer.fileExists("m1r"));
+			assertFalse(writer.fileExists("m1"));
+			writer.deleteFile("m1r");
+			writer.sync(List.of());
+			assertFalse(writer.fileExists("m1r"));
+		} finally {
+			other.deleteFile("m2");
+			other.deleteFile("m3");
+			writer.close();
+			other.close();
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testVirtualRename() throws IOException {
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "virtual/");
+		final S3Directory plain = new S3Directory(s3, TEST_BUCKET, "virtual/");
+		dir.setVirtualRename(true);
+		try {
+			final byte[] data = randomBytes(1000);
+			writeFile(dir, "pending_v1", data);
+			dir.rename("pending_v1", "v1");
+			assertTrue(dir.fileExists("v1"));
+			assertFalse(dir.fileExists("pending_v1"));
+			// the object was not copied
+			assertTrue(plain.fileExists("pending_v1"));
+			assertFalse(plain.fileExists("v1"));
+
+			final S3Directory reader = new S3Directory(s3, TEST_BUCKET, "virtual/");
+			reader.setVirtualRename(true);
+			try {
+				final List<String> names = Arrays.asList(reader.listAll());
+				assertTrue(names.contains("v1"));
+				assertFalse(names.contains("pending_v1"));
+				assertFalse(names.contains(S3Directory.MANIFEST_NAME));
+				assertEquals(1000, reader.fileLength("v1"));
+				final byte[] read = new byte[1000];
+				try (IndexInput in = reader.openInput("v1", IOContext.DEFAULT)) {
+					in.readBytes(read, 0, read.length);
+				}
+				assertArrayEquals(data, read);
+			} finally {
+				reader.close();
+			}
+
+			// the old name can be reused without overwriting the renamed file
+			writeFile(dir, "pending_v1", randomBytes(10));
+			assertEquals(10, dir.fileLength("pending_v1"));
+			assertEquals(1000, dir.fileLength("v1"));
+
+			// pending deletions are reported by their logical names
+			dir.deleteFile("v1");
+			assertEquals(Set.of("v1"), dir.getPendingDeletions());
+			assertFalse(dir.fileExists("v1"));
+			assertFalse(Arrays.asList(dir.listAll()).contains("v1"));
+			assertEquals(10, dir.fileLength("pending_v1"));
+			dir.deleteFile("pending_v1");
+			assertEquals(Set.of("v1", "pending_v1"), dir.getPendingDeletions());
+			dir.sync(List.of());
+			assertTrue(dir.getPendingDeletions().isEmpty());
+			assertFalse(Arrays.asList(plain.listAll()).contains("pending_v1"));
+		} finally {
+			dir.close();
+			plain.close();
+		}
+	}
+
+	@Test
+	public void testPooledHttpClient() throws IOException {
+		final Client pooled = client(new S3HttpClient(Duration.ofSeconds(5), Duration.ofSeconds(30), false, 4));
+		final S3Directory dir = new S3Directory(pooled, TEST_BUCKET, "pooled/");
+		final byte[] data = randomBytes(50_000);
+		try {
+			writeFile(dir, "pooled1", data);
+			assertTrue(Arrays.asList(dir.listAll()).contains("pooled1"));
+			try (IndexInput indexInput = dir.openInput("pooled1", IOContext.DEFAULT)) {
+				for (int i = 0; i < 20; i++) {
+					indexInput.seek(i * 2000L);
+					assertEquals(data[i * 2000], indexInput.readByte());
+				}
+			}
+			dir.deleteFile("pooled1");
+			dir.deletePendingFiles();
+			assertFalse(s3Directory.fileExists("pooled/pooled1"));
+		} finally {
+			dir.close();
+		}
+	}
+
+	@Test
+	public void testHttpClientReadTimeout() throws Exception {
+		// a server which sends the headers and the first bytes of a body, then stalls
+		try (ServerSocket server = new ServerSocket(0)) {
+			final Thread stalling = new Thread(() -> {
+				final List<Socket> sockets = new ArrayList<>();
+				try {
+					while (true) {
+						final Socket socket = server.accept();
+						sockets.add(socket);
+						socket.getInputStream().read(new byte[4096]);
+						socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n0123456789"
+								.getBytes(StandardCharsets.US_ASCII));
+						socket.getOutputStream().flush();
+					}
+				} catch (@SuppressWarnings("unused") IOException e) {
+					// the server was closed
+				}
+			});
+			stalling.setDaemon(true);
+			stalling.start();
+			final S3HttpClient http = new S3HttpClient(Duration.ofSeconds(5), Duration.ofSeconds(30), false, 1);
+			final URL url = new URL("http://localhost:" + server.getLocalPort() + "/");
+			assertTimeoutPreemptively(Duration.ofSeconds(20), () -> {
+				// the second request needs the permit released by the first one
+				for (int i = 0; i < 2; i++) {
+					try (InputStream body = http.request(url, "GET", Map.of(), null, 1000, 300)) {
+						final byte[] read = new byte[100];
+						assertEquals(10, body.read(read));
+						assertThrows(SocketTimeoutException.class, () -> body.read(read));
+					}
+				}
+			});
+		}
+	}
+
+	@Test
+	public void testMetrics() throws IOException {
+		final byte[] data = randomBytes(40_000);
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "metrics/");
+		final S3DirectoryMetrics metrics = new S3DirectoryMetrics();
+		dir.addListener(metrics);
+		try (S3MemoryBlockCache cache = new S3MemoryBlockCache(8 * 1024, 64 * 1024)) {
+			dir.setBlockCache(cache);
+			writeFile(dir, "metrics1.dat", data);
+			assertEquals(1, metrics.getOperation(S3Operation.PUT).getCount());
+			assertEquals(data.length, metrics.getOperation(S3Operation.PUT).getBytes());
+
+			assertTrue(Arrays.asList(dir.listAll()).contains("metrics1.dat"));
+			assertTrue(metrics.getOperation(S3Operation.LIST).getCount() >= 1);
+
+			try (IndexInput indexInput = dir.openInput("metrics1.dat", IOContext.DEFAULT)) {
+				indexInput.seek(10_000);
+				assertEquals(data[10_000], indexInput.readByte());
+				// same block, outside of the input buffer
+				indexInput.seek(15_000);
+				assertEquals(data[15_000], indexInput.readByte());
+			}
+			final S3DirectoryMetrics.Stats reads = metrics.getOperation(S3Operation.RANGED_GET);
+			assertEquals(1, reads.getCount());
+			assertEquals(8 * 1024, reads.getBytes());
+			assertEquals(1, Arrays.stream(reads.getLatency().getCounts()).sum());
+			assertTrue(reads.getLatency().getPercentileMicros(99) > 0);
+			assertEquals(1, metrics.getContext(IOContext.Context.DEFAULT).getCount());
+			assertTrue(metrics.getExtensions().get("dat").getCount() >= 2);
+			assertEquals(1, metrics.getCacheMisses());
+			assertEquals(1, metrics.getCacheHits());
+			assertEquals(0, metrics.getInFlight());
+		} finally {
+			dir.deleteFile("metrics1.dat");
+			dir.close();
+		}
+	}
+
+	@Test
+	public void testNetworkSimulator() throws IOException {
+		final S3NetworkSimulator network = new S3NetworkSimulator(new S3HttpClient(), new Random(1));
+		final Client slow = client(network);
+		final S3Directory dir = new S3Directory(slow, TEST_BUCKET, "network/");
+		final byte[] data = randomBytes(20_000);
+		try {
+			writeFile(dir, "network1", data);
+			network.setLatency(Duration.ofMillis(50));
+			network.setJitter(Duration.ofMillis(10));
+			network.setBandwidth(100_000);
+			try (IndexInput indexInput = dir.openInput("network1", IOContext.DEFAULT)) {
+				final long start = System.nanoTime();
+				final byte[] read = new byte[data.length];
+				indexInput.readBytes(read, 0, read.length);
+				assertArrayEquals(data, read);
+				// 50ms latency + 200ms transfer
+				assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(250));
+			}
+
+			network.setLatency(Duration.ZERO);
+			network.setJitter(Duration.ZERO);
+			network.setBandwidth(0);
+			network.setSlowDownRate(1);
+			try {
+				writeFile(dir, "network2", data);
+				fail("Expected 503 SlowDown");
+			} catch (Exception e) {
+				assertTrue(network.getSlowDowns() > 0);
+			}
+			assertFalse(s3Directory.fileExists("network/network2"));
+			network.setSlowDownRate(0);
+		} finally {
+			dir.deleteFile("network1");
+			dir.close();
+		}
+	}
+
+	@Test
+	public void testWarmUp() throws IOException {
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "warmup/");
+		try {
+			try (IndexWriter iwriter = new IndexWriter(dir, getIndexWriterConfig())) {
+				for (int i = 0; i < 5; i++) {
+					final Document doc = new Document();
+					doc.add(new StringField("id", "doc" + i, Field.Store.YES));
+					iwriter.addDocument(doc);
+					// one segment per commit
+					iwriter.commit();
+				}
+			}
+			try (S3MemoryBlockCache cache = new S3MemoryBlockCache(64 * 1024, 16 * 1024 * 1024)) {
+				dir.setBlockCache(cache);
+				final S3DirectoryMetrics metrics = new S3DirectoryMetrics();
+				dir.addListener(metrics);
+				dir.warmUp();
+				final long warmUpReads = metrics.getOperation(S3Operation.RANGED_GET).getCount();
+				assertTrue(warmUpReads > 0);
+				try (DirectoryReader ireader = DirectoryReader.open(dir)) {
+					assertEquals(5, ireader.numDocs());
+				}
+				// only segments_N is read again, all other files are served from the cache
+				assertTrue(metrics.getOperation(S3Operation.RANGED_GET).getCount() - warmUpReads <= 1);
+			}
+
+			try (S3MemoryBlockCache cache = new S3MemoryBlockCache(64 * 1024, 16 * 1024 * 1024)) {
+				dir.setBlockCache(cache);
+				dir.setWarmUpOnOpen(true);
+				try (DirectoryReader ireader = DirectoryReader.open(dir)) {
+					assertEquals(5, ireader.numDocs());
+					final TopDocs topDocs = new IndexSearcher(ireader).search(new TermQuery(new Term("id", "doc3")), 10);
+					assertEquals(1, topDocs.scoreDocs.length);
+				}
+			}
+		} finally {
+			dir.setBlockCache(null);
+			for (String file : dir.listAll()) {
+				dir.deleteFile(file);
+			}
+			dir.close();
+		}
+	}
+
+	@Test
+	public void testWarmUpCompoundSegments() throws IOException {
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "warmup-cfs/");
+		final Random random = new Random(5);
+		try {
+			final IndexWriterConfig config = getIndexWriterConfig();
+			config.setUseCompoundFile(true);
+			try (IndexWriter iwriter = new IndexWriter(dir, config)) {
+				for (int i = 0; i < 3; i++) {
+					for (int j = 0; j < 20; j++) {
+						final Document doc = new Document();
+						doc.add(new StringField("id", "doc" + i + "_" + j, Field.Store.YES));
+						final StringBuilder text = new StringBuilder();
+						for (int k = 0; k < 200; k++) {
+							text.append("word").append(random.nextInt(1000)).append(' ');
+						}
+						doc.add(new Field("text", text.toString(), TextField.TYPE_STORED));
+						iwriter.addDocument(doc);
+					}
+					iwriter.commit();
+				}
+			}
+			try (S3MemoryBlockCache cache = new S3MemoryBlockCache(4 * 1024, 16 * 1024 * 1024)) {
+				dir.setBlockCache(cache);
+				dir.warmUp();
+				final S3DirectoryMetrics metrics = new S3DirectoryMetrics();
+				dir.addListener(metrics);
+				int compoundSegments = 0;
+				for (SegmentCommitInfo segment : SegmentInfos.readLatestCommit(dir)) {
+					assertTrue(segment.info.getUseCompoundFile());
+					compoundSegments++;
+					final String cfs = IndexFileNames.segmentFileName(segment.info.name, "", IndexFileNames.COMPOUND_FILE_EXTENSION);
+					assertTrue(dir.fileLength(cfs) > 2 * cache.getBlockSize());
+					final String key = dir.getCacheKey(cfs);
+					try (CompoundDirectory reader = segment.info.getCodec().compoundFormat().getCompoundReader(dir, segment.info)) {
+						for (String file : reader.listAll()) {
+							try (IndexInput in = reader.openInput(file, IOContext.DEFAULT)) {
+								final long start = ((S3IndexInput) in).getSliceOffset();
+								assertTrue(dir.getBlockFetcher().isAvailable(cache, key, start / cache.getBlockSize()), file);
+								assertTrue(dir.getBlockFetcher().isAvailable(cache, key,
+										(start + in.length() - 1) / cache.getBlockSize()), file);
+							}
+						}
+					}
+				}
+				assertEquals(3, compoundSegments);
+				// reading segments_N aside, the compound files were opened from the cache
+				assertTrue(metrics.getOperation(S3Operation.RANGED_GET).getCount() <= 1);
+			}
+		} finally {
+			dir.setBlockCache(null);
+			for (String file : dir.listAll()) {
+				dir.deleteFile(file);
+			}
+			dir.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentReadsShareRequests() throws Exception {
+		final S3NetworkSimulator network = new S3NetworkSimulator(new S3HttpClient());
+		final Client slow = client(network);
+		final S3Directory dir = new S3Directory(slow, TEST_BUCKET, "coalesce/");
+		final byte[] data = randomBytes(100_000);
+		final ExecutorService readers = Executors.newFixedThreadPool(8);
+		try (S3MemoryBlockCache cache = new S3MemoryBlockCache(32 * 1024, 1024 * 1024)) {
+			writeFile(dir, "coalesce1", data);
+			dir.setBlockCache(cache);
+			final S3DirectoryMetrics metrics = new S3DirectoryMetrics();
+			dir.addListener(metrics);
+			network.setLatency(Duration.ofMillis(200));
+			try (IndexInput indexInput = dir.openInput("coalesce1", IOContext.DEFAULT)) {
+				final CountDownLatch start = new CountDownLatch(1);
+				final List<Future<Byte>> results = new ArrayList<>();
+				for (int i = 0; i < 8; i++) {
+					final IndexInput clone = indexInput.clone();
+					final int pos = 40_000 + i * 100;
+					results.add(readers.submit(() -> {
+						start.await();
+						clone.seek(pos);
+						return clone.readByte();
+					}));
+				}
+				start.countDown();
+				for (int i = 0; i < 8; i++) {
+					assertEquals(data[40_000 + i * 100], results.get(i).get().byteValue());
+				}
+			}
+			// all readers hit block 1, which is fetched once
+			assertEquals(1, metrics.getOperation(S3Operation.RANGED_GET).getCount());
+		} finally {
+			readers.shutdown();
+			network.setLatency(Duration.ZERO);
+			dir.setBlockCache(null);
+			dir.deleteFile("coalesce1");
+			dir.close();
+		}
+	}
+
+	@Test
+	public void testVirtualThreads() throws Exception {
+		final byte[] data = randomBytes(40_000);
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "virtual-threads/");
+		dir.setVirtualThreads(true);
+		assertEquals(Runtime.version().feature() >= 21, dir.isVirtualThreads());
+		try (S3MemoryBlockCache cache = new S3MemoryBlockCache(4 * 1024, 64 * 1024)) {
+			writeFile(dir, "vt1", data);
+			dir.setBlockCache(cache);
+			try (IndexInput indexInput = dir.openInput("vt1", IOContext.DEFAULT)) {
+				indexInput.prefetch(0, data.length);
+				final String key = dir.getCacheKey("vt1");
+				for (long block = 0; block < 10; block++) {
+					dir.getBlockFetcher().pending("vt1", block).get(30, TimeUnit.SECONDS);
+				}
+				assertTrue(LongStream.range(0, 10).allMatch(b -> cache.contains(key, b)));
+				indexInput.seek(37_000);
+				assertEquals(data[37_000], indexInput.readByte());
+			}
+			dir.setVirtualThreads(false);
+			dir.setIoThreads(2);
+			assertFalse(dir.isVirtualThreads());
+			try {
+				dir.setIoThreads(0);
+				fail("Expected IllegalArgumentException");
+			} catch (IllegalArgumentException e) {
+				assertEquals(2, dir.getIoThreads());
+			}
+		} finally {
+			dir.setBlockCache(null);
+			dir.deleteFile("vt1");
+			dir.close();
+		}
+	}
+
+	@Test
+	public void testHedgedReads() throws IOException {
+		final S3HttpClient http = new S3HttpClient();
+		final AtomicBoolean stall = new AtomicBoolean();
+		final CountDownLatch aborted = new CountDownLatch(1);
+		// the body of the first ranged read after stall is set blocks until the hedged request closes it
+		final HttpClient stalling = (url, method, headers, body, connectTimeoutMs, readTimeoutMs) -> {
+			final ResponseInputStream res = http.request(url, method, headers, body, connectTimeoutMs, readTimeoutMs);
+			if (!headers.keySet().stream().anyMatch("range"::equalsIgnoreCase) || !stall.compareAndSet(true, false)) {
+				return res;
+			}
+			final InputStream stalled = new InputStream() {
+				@Override
+				public int read() throws IOException {
+					try {
+						if (aborted.await(30, TimeUnit.SECONDS)) {
+							throw new IOException("Stream closed");
+						}
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+					return res.read();
+				}
+			};
+			return new ResponseInputStream(() -> {
+				aborted.countDown();
+				res.close();
+			}, res.statusCode(), res.headers(), stalled);
+		};
+		final S3Directory dir = new S3Directory(client(stalling), TEST_BUCKET, "hedging/");
+		final byte[] data = randomBytes(20_000);
+		final S3HedgingPolicy hedging = new S3HedgingPolicy();
+		hedging.setInitialDelay(Duration.ofMillis(20));
+		hedging.setBudget(1);
+		try {
+			writeFile(dir, "hedging1", data);
+			dir.setHedgingPolicy(hedging);
+			try (IndexInput indexInput = dir.openInput("hedging1", IOContext.DEFAULT)) {
+				indexInput.seek(10_000);
+				stall.set(true);
+				assertEquals(data[10_000], indexInput.readByte());
+				assertFalse(stall.get());
+				assertEquals(1, hedging.getHedges());
+				assertEquals(1, hedging.getHedgeWins());
+				// the first request was aborted, not the reader interrupted
+				assertEquals(0, aborted.getCount());
+				assertFalse(Thread.currentThread().isInterrupted());
+
+				hedging.setBudget(0);
+				for (int i = 0; i < 5; i++) {
+					indexInput.seek(i * 2000L + 1000L);
+					assertEquals(data[i * 2000 + 1000], indexInput.readByte());
+				}
+				assertEquals(1, hedging.getHedges());
+			}
+		} finally {
+			dir.setHedgingPolicy(null);
+			dir.deleteFile("hedging1");
+			dir.close();
+		}
+	}
+
+	@Test
+	public void testFetchSizePolicy() throws IOException {
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "sizing/");
+		final S3FetchSizePolicy policy = new S3FetchSizePolicy();
+		assertEquals(4 * 1024, policy.getBufferSize("tim"));
+		assertEquals(S3FetchSizePolicy.DEFAULT_BUFFER_SIZE, policy.getBufferSize("xyz"));
+		assertThrows(IllegalArgumentException.class, () -> policy.setBufferSizeBounds(512, 8 * 1024));
+		assertThrows(IllegalArgumentException.class, () -> policy.setBufferSize("tiny", 8));
+		assertThrows(IllegalArgumentException.class, () -> policy.setDefaultBufferSize(512));
+		assertThrows(IllegalArgumentException.class, () -> policy.setMergeBufferSize(512));
+		assertThrows(IllegalArgumentException.class, () -> policy.setFlushBufferSize(512));
+		assertThrows(IllegalArgumentException.class, () -> policy.setSequentialBufferSize(512));
+		policy.setBufferSizeBounds(1024, 8 * 1024);
+		policy.setBufferSize("seq", 1024);
+		policy.setBufferSize("rnd", 2 * 1024);
+		dir.setFetchSizePolicy(policy);
+		final S3DirectoryMetrics metrics = new S3DirectoryMetrics();
+		dir.addListener(metrics);
+		final byte[] data = randomBytes(300_000);
+		try {
+			writeFile(dir, "sizing1.fdt", data);
+			try (IndexInput indexInput = dir.openInput("sizing1.fdt", IOContext.DEFAULT)) {
+				assertEquals(data[0], indexInput.readByte());
+			}
+			assertEquals(16 * 1024, metrics.getOperation(S3Operation.RANGED_GET).getBytes());
+
+			// refills which continue where the previous one ended double the size
+			writeFile(dir, "sizing2.seq", data);
+			try (IndexInput indexInput = dir.openInput("sizing2.seq", IOContext.DEFAULT)) {
+				final byte[] read = new byte[100];
+				for (int i = 0; i < 2_700; i++) {
+					indexInput.readBytes(read, 0, read.length);
+				}
+				assertEquals(data[270_000], indexInput.readByte());
+			}
+			assertEquals(2 * 1024, policy.getBufferSize("seq"));
+
+			// random reads halve it, down to the lower bound
+			writeFile(dir, "sizing3.rnd", data);
+			final Random random = new Random(5);
+			try (IndexInput indexInput = dir.openInput("sizing3.rnd", IOContext.DEFAULT)) {
+				// a few seeks land in the current buffer and don't refill it
+				for (int i = 0; i < 2 * S3FetchSizePolicy.ADAPT_INTERVAL; i++) {
+					final int pos = random.nextInt(data.length);
+					indexInput.seek(pos);
+					assertEquals(data[pos], indexInput.readByte());
+				}
+			}
+			assertEquals(1024, policy.getBufferSize("rnd"));
+		} finally {
+			dir.deleteFile("sizing1.fdt");
+			dir.deleteFile("sizing2.seq");
+			dir.deleteFile("sizing3.rnd");
+			dir.close();
+		}
+	}
+
+	@Test
+	public void testLeaseLocks() throws Exception {
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "lease/");
+		dir.setLockFactory(new S3LeaseLockFactory(Duration.ofSeconds(3)));
+		final S3DirectoryMetrics metrics = new S3DirectoryMetrics();
+		dir.addListener(metrics);
+		try {
+			final Lock lock = dir.obtainLock(IndexWriter.WRITE_LOCK_NAME);
+			final long requests = metrics.getOperation(S3Operation.LEASE).getCount();
+			for (int i = 0; i < 100; i++) {
+				lock.ensureValid();
+			}
+			// validity is checked locally
+			assertEquals(requests, metrics.getOperation(S3Operation.LEASE).getCount());
+			assertFalse(Arrays.asList(dir.listAll()).contains(IndexWriter.WRITE_LOCK_NAME + S3LeaseLockFactory.LEASE_SUFFIX));
+
+			// the lease is renewed in the background, here a renewal is run directly
+			((S3LeaseLockFactory.S3LeaseLock) lock).renew();
+			lock.ensureValid();
+			assertTrue(metrics.getOperation(S3Operation.LEASE).getCount() > requests);
+
+			lock.close();
+			try {
+				lock.ensureValid();
+				fail("Lock should have been released");
+			} catch (AlreadyClosedException e) {
+				assertNotNull(e.getMessage());
+			}
+
+			// a released lease can be obtained again
+			try (Lock lock2 = dir.obtainLock(IndexWriter.WRITE_LOCK_NAME)) {
+				lock2.ensureValid();
+			}
+		} finally {
+			dir.deleteFile(IndexWriter.WRITE_LOCK_NAME + S3LeaseLockFactory.LEASE_SUFFIX);
+			dir.close();
+		}
+	}
+
+	/**
+	 * Returns a transport which stalls the reads of files under a path until released. Leases are not stalled.
+	 */
+	private static HttpClient stallingReads(String path, CountDownLatch stalled, CountDownLatch release) {
+		final S3HttpClient http = new S3HttpClient();
+		return (url, method, headers, body, connectTimeoutMs, readTimeoutMs) -> {
+			if ("GET".equals(method) && url.getPath().contains(path)
+					&& !url.getPath().endsWith(S3LeaseLockFactory.LEASE_SUFFIX)) {
+				stalled.countDown();
+				try {
+					release.await(30, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			return http.request(url, method, headers, body, connectTimeoutMs, readTimeoutMs);
+		};
+	}
+
+	@Test
+	public void testDirectoryPoolTenantQueue() throws Exception {
+		final CountDownLatch stalled = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		// reads of the first tenant stall until released
+		final HttpClient stalling = stallingReads("/queue1/", stalled, release);
+		final ExecutorService shared = Executors.newSingleThreadExecutor();
+		final ExecutorService reader = Executors.newSingleThreadExecutor();
+		try (S3DirectoryPool pool = new S3DirectoryPool(client(stalling), TEST_BUCKET, 8, 1, 0)) {
+			pool.setExecutor(shared);
+			pool.setLockFactory(new S3LeaseLockFactory(Duration.ofSeconds(3)));
+			final S3Directory dir1 = pool.open("t1", "queue1/");
+			final S3Directory dir2 = pool.open("t2", "queue2/");
+			final byte[] data = randomBytes(10_000);
+			writeFile(dir1, "queued1", data);
+			writeFile(dir2, "queued2", data);
+			// the only permit of t1 is held by a stalled read
+			final Future<byte[]> stalledRead = reader.submit(() -> readFile(dir1, "queued1"));
+			assertTrue(stalled.await(30, TimeUnit.SECONDS));
+			final Future<byte[]> queued = dir1.getExecutor().submit(() -> readFile(dir1, "queued1"));
+			// the task of t1 waits in its queue, not on the only thread of the shared executor
+			assertArrayEquals(data, dir2.getExecutor().submit(() -> readFile(dir2, "queued2")).get(30, TimeUnit.SECONDS));
+			assertFalse(queued.isDone());
+			// lock requests don't wait for a permit of the tenant
+			assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+				try (Lock lock = dir1.obtainLock(IndexWriter.WRITE_LOCK_NAME)) {
+					lock.ensureValid();
+				}
+			});
+			release.countDown();
+			assertArrayEquals(data, stalledRead.get(30, TimeUnit.SECONDS));
+			assertArrayEquals(data, queued.get(30, TimeUnit.SECONDS));
+			dir1.deleteFile("queued1");
+			dir2.deleteFile("queued2");
+			dir1.close();
+			dir2.close();
+		} finally {
+			release.countDown();
+			reader.shutdownNow();
+			shared.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testDirectoryPoolFailsQueuedTasks() throws Exception {
+		final CountDownLatch stalled = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final HttpClient stalling = stallingReads("/closed1/", stalled, release);
+		final ExecutorService shared = Executors.newSingleThreadExecutor();
+		final ExecutorService reader = Executors.newSingleThreadExecutor();
+		try (S3DirectoryPool pool = new S3DirectoryPool(client(stalling), TEST_BUCKET, 8, 1, 0)) {
+			pool.setExecutor(shared);
+			final S3Directory dir = pool.open("t1", "closed1/");
+			final byte[] data = randomBytes(10_000);
+			writeFile(dir, "closed1", data);
+			final Future<byte[]> stalledRead = reader.submit(() -> readFile(dir, "closed1"));
+			assertTrue(stalled.await(30, TimeUnit.SECONDS));
+			final Future<byte[]> queued = dir.getExecutor().submit(() -> readFile(dir, "closed1"));
+			// the task can't be handed to the executor once the stalled read ends, so it fails without a request
+			shared.shutdown();
+			release.countDown();
+			assertArrayEquals(data, stalledRead.get(30, TimeUnit.SECONDS));
+			final ExecutionException e = assertThrows(ExecutionException.class, () -> queued.get(30, TimeUnit.SECONDS));
+			assertTrue(e.getCause() instanceof AlreadyClosedException, String.valueOf(e.getCause()));
+			dir.deleteFile("closed1");
+			dir.close();
+		} finally {
+			release.countDown();
+			reader.shutdownNow();
+			shared.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testDirectoryPool() throws Exception {
+		final AtomicInteger maxActive = new AtomicInteger();
+		final AtomicInteger maxTenantActive = new AtomicInteger();
+		try (S3MemoryBlockCache cache = new S3MemoryBlockCache(8 * 1024, 256 * 1024);
+				S3DirectoryPool pool = new S3DirectoryPool(s3, TEST_BUCKET, 3, 2, 0)) {
+			pool.setBlockCache(cache);
+			pool.addListener(new S3DirectoryListener() {
+				@Override
+				public void requestStarted(S3Operation operation, String name) {
+					maxActive.accumulateAndGet(pool.getActiveRequests(), Math::max);
+					maxTenantActive.accumulateAndGet(Math.max(pool.getActiveRequests("t1"),
+							pool.getActiveRequests("t2")), Math::max);
+				}
+			});
+			final S3Directory[] dirs = {pool.open("t1", "pool1/"), pool.open("t2", "pool2/"), pool.open("t2", "pool3/")};
+			assertTrue(dirs[0].getBlockCache() == dirs[1].getBlockCache());
+			assertTrue(dirs[1].getExecutor() == dirs[2].getExecutor());
+			assertTrue(dirs[0].getReadAheadBuffers() == dirs[2].getReadAheadBuffers());
+			assertTrue(dirs[0].getPartBuffers() == dirs[2].getPartBuffers());
+			final ExecutorService threads = Executors.newFixedThreadPool(8);
+			try {
+				final List<Future<?>> futures = new ArrayList<>();
+				for (int i = 0; i < 24; i++) {
+					final S3Directory dir = dirs[i % dirs.length];
+					final byte[] data = randomBytes(20_000 + i);
+					final String name = "pooled" + i;
+					futures.add(threads.submit(() -> {
+						writeFile(dir, name, data);
+						try (IndexInput in = dir.openInput(name, IOContext.DEFAULT)) {
+							final byte[] read = new byte[data.length];
+							in.readBytes(read, 0, read.length);
+							assertArrayEquals(data, read);
+						}
+						return null;
+					}));
+				}
+				for (Future<?> future : futures) {
+					future.get(30, TimeUnit.SECONDS);
+				}
+			} finally {
+				threads.shutdown();
+			}
+			assertTrue(maxActive.get() > 0);
+			assertTrue(maxActive.get() <= 3);
+			assertTrue(maxTenantActive.get() <= 2);
+			assertEquals(0, pool.getActiveRequests());
+			for (int i = 0; i < 24; i++) {
+				dirs[i % dirs.length].deleteFile("pooled" + i);
+			}
+			for (S3Directory dir : dirs) {
+				dir.close();
+			}
+		}
+	}
+
+	@Test
+	public void testLeaseTakeover() throws Exception {
+		final S3Directory dir1 = new S3Directory(s3, TEST_BUCKET, "takeover/");
+		final S3Directory dir2 = new S3Directory(s3, TEST_BUCKET, "takeover/");
+		dir1.setLockFactory(new S3LeaseLockFactory(Duration.ofSeconds(3)));
+		dir2.setLockFactory(new S3LeaseLockFactory(Duration.ofSeconds(3)));
+		try {
+			final Lock lock1 = dir1.obtainLock(IndexWriter.WRITE_LOCK_NAME);
+			try {
+				dir2.obtainLock(IndexWriter.WRITE_LOCK_NAME);
+				fail("The lease is held by the first writer");
+			} catch (LockObtainFailedException e) {
+				assertNotNull(e.getMessage());
+			}
+
+			// the first writer stalls and its lease ends, which a lease of duration zero stands for here
+			s3.path(dir1.getBucket(), "takeover/" + IndexWriter.WRITE_LOCK_NAME + S3LeaseLockFactory.LEASE_SUFFIX)
+					.method(HttpMethod.PUT)
+					.requestBody("owner=stalled\nduration=0\n")
+					.execute();
+			try (Lock lock2 = dir2.obtainLock(IndexWriter.WRITE_LOCK_NAME)) {
+				lock2.ensureValid();
+				// the first writer finds out on its next renewal
+				((S3LeaseLockFactory.S3LeaseLock) lock1).renew();
+				try {
+					lock1.ensureValid();
+					fail("The lease was taken over");
+				} catch (AlreadyClosedException e) {
+					assertTrue(e.getMessage().contains("taken over"));
+				}
+				lock1.close();
+				lock2.ensureValid();
+			}
+		} finally {
+			dir1.deleteFile(IndexWriter.WRITE_LOCK_NAME + S3LeaseLockFactory.LEASE_SUFFIX);
+			dir1.close();
+			dir2.close();
+		}
+	}
+
+	@Test
+	public void testLeaseExpiry() {
+		final long modified = 1_700_000_000_000L;
+		// Last-Modified is truncated to the second, the lease may have been written up to 999 ms later
+		assertFalse(S3LeaseLockFactory.isExpired(3000, modified, modified + 3000));
+		assertFalse(S3LeaseLockFactory.isExpired(3000, modified, modified + 3999));
+		assertFalse(S3LeaseLockFactory.isExpired(3000, modified, modified + 3000 + S3LeaseLockFactory.EXPIRY_MARGIN_MILLIS - 1));
+		assertTrue(S3LeaseLockFactory.isExpired(3000, modified, modified + 3000 + S3LeaseLockFactory.EXPIRY_MARGIN_MILLIS));
+		// a released lease
+		assertTrue(S3LeaseLockFactory.isExpired(0, modified, modified));
+	}
+
+	@Test
+	public void testBatchedDeletes() throws IOException {
+		final S3Directory dir = new S3Directory(s3, TEST_BUCKET, "");
+		try {
+			for (int i = 0; i < 5; i++) {
+				writeFile(dir, "batch" + i, new byte[]{1, 2, 3});
+			}
+			for (int i = 0; i < 5; i++) {
+				dir.deleteFile("batch" + i);
+			}
+			assertEquals(5, dir.getPendingDeletions().size());
+			assertFalse(dir.fileExists("batch0"));
+			assertFalse(Arrays.asList(dir.listAll()).contains("batch0"));
+			assertTrue(s3Directory.fileExists("batch0"));
+
+			dir.deletePendingFiles();
+			assertTrue(dir.getPendingDeletions().isEmpty());
+			for (int i = 0; i < 5; i++) {
+				assertFalse(s3Directory.fileExists("batch" + i));
+			}
+		} finally {
+			dir.close();
+		}
+	}
+
+	private byte[] randomBytes(final int length) {
+		final byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static Client client(final HttpClient http) {
+		return Client.s3()
+				.region("us-east-1")
+				.credentials(Credentials.of("foo", "bar"))
+				.baseUrlFactory((serviceName, region) -> "http://localhost:9090/")
+				.httpClient(http)
+				.build();
+	}
+
+	private byte[] readFile(final Directory dir, final String name) throws IOException {
+		try (IndexInput indexInput = dir.openInput(name, IOContext.DEFAULT)) {
+			final byte[] read = new byte[(int) indexInput.length()];
+			indexInput.readBytes(read, 0, read.length);
+			return read;
+		}
+	}
+
+	private void writeFile(final Directory dir, final String name, final byte[] data) throws IOException {
+		try (IndexOutput indexOutput = dir.createOutput(name, IOContext.DEFAULT)) {
+			indexOutput.writeBytes(data, data.length);
+		}
+	}
+
 	private void innerTestSize(final int bufferSize) throws IOException {
 		insertData();
 		verifyData();
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2013-2025 Erudika. http://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.lucene.store.s3;
+
+import com.github.davidmoten.aws.lw.client.HttpClient;
+import com.github.davidmoten.aws.lw.client.ResponseInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An HTTP transport which makes a local S3 stand-in, such as S3Mock, behave like a remote S3 endpoint.
+ * Each request is delayed by a fixed latency plus a random jitter, request and response bodies are
+ * throttled to a per-request bandwidth, and a fraction of requests fail with <code>503 SlowDown</code>
+ * without reaching the server. Use it to measure prefetching, caching and parallel requests under
+ * realistic conditions:
+ * <pre>
+ * S3NetworkSimulator network = new S3NetworkSimulator(new S3HttpClient());
+ * network.setLatency(Duration.ofMillis(20));
+ * network.setJitter(Duration.ofMillis(10));
+ * network.setBandwidth(50L * 1024 * 1024);
+ * Client s3 = Client.s3().region("us-east-1").credentials(Credentials.of("foo", "bar"))
+ *		.baseUrlFactory((serviceName, region) -&gt; "http://localhost:9090/").httpClient(network).build();
+ * </pre>
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class S3NetworkSimulator implements HttpClient {
+
+	private static final String SLOW_DOWN = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Error><Code>SlowDown</Code>"
+			+ "<Message>Please reduce your request rate.</Message></Error>";
+
+	private final HttpClient delegate;
+	private final Random random;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong slowDowns = new AtomicLong();
+	private volatile long latencyNanos;
+	private volatile long jitterNanos;
+	private volatile long bandwidth;
+	private volatile double slowDownRate;
+
+	/**
+	 * Creates a new simulator which adds no latency and no errors until configured.
+	 *
+	 * @param delegate the transport which sends the requests
+	 */
+	public S3NetworkSimulator(HttpClient delegate) {
+		this(delegate, new Random());
+	}
+
+	/**
+	 * Creates a new simulator with a given source of randomness, for repeatable runs.
+	 *
+	 * @param delegate the transport which sends the requests
+	 * @param random source of randomness for jitter and errors
+	 */
+	public S3NetworkSimulator(HttpClient delegate, Random random) {
+		this.delegate = delegate;
+		this.random = random;
+	}
+
+	/**
+	 * Sets the fixed delay before each request is sent, i.e. the round trip time to first byte.
+	 *
+	 * @param latency delay
+	 */
+	public void setLatency(Duration latency) {
+		this.latencyNanos = latency.toNanos();
+	}
+
+	/**
+	 * Sets the maximum random delay which is added to the latency. Delays are distributed uniformly.
+	 *
+	 * @param jitter maximum extra delay
+	 */
+	public void setJitter(Duration jitter) {
+		this.jitterNanos = jitter.toNanos();
+	}
+
+	/**
+	 * Sets the bandwidth of each request, in either direction. Requests don't share bandwidth,
+	 * same as S3, where throughput scales with the number of connections.
+	 *
+	 * @param bytesPerSecond bytes per second, 0 for unlimited
+	 */
+	public void setBandwidth(long bytesPerSecond) {
+		this.bandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * Sets the fraction of requests which fail with <code>503 SlowDown</code>.
+	 *
+	 * @param rate a number between 0 and 1
+	 */
+	public void setSlowDownRate(double rate) {
+		this.slowDownRate = rate;
+	}
+
+	/**
+	 * Returns the number of requests, including the ones which failed with <code>503 SlowDown</code>.
+	 *
+	 * @return count
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns the number of requests which failed with <code>503 SlowDown</code>.
+	 *
+	 * @return count
+	 */
+	public long getSlowDowns() {
+		return slowDowns.get();
+	}
+
+	@Override
+	public ResponseInputStream request(URL endpointUrl, String httpMethod, Map<String, String> headers,
+			byte[] requestBody, int connectTimeoutMs, int readTimeoutMs) throws IOException {
+		requests.incrementAndGet();
+		final long jitter;
+		final boolean slowDown;
+		synchronized (random) {
+			jitter = jitterNanos > 0 ? (long) (random.nextDouble() * jitterNanos) : 0L;
+			slowDown = slowDownRate > 0 && random.nextDouble() < slowDownRate;
+		}
+		sleep(latencyNanos + jitter);
+		if (slowDown) {
+			slowDowns.incrementAndGet();
+			final byte[] body = SLOW_DOWN.getBytes(StandardCharsets.UTF_8);
+			return new ResponseInputStream(() -> { }, 503,
+					Map.of("Content-Type", List.of("application/xml"), "Content-Length", List.of(String.valueOf(body.length))),
+					new ByteArrayInputStream(body));
+		}
+		if (requestBody != null) {
+			sleep(transferNanos(requestBody.length));
+		}
+		final ResponseInputStream res = delegate.request(endpointUrl, httpMethod, headers, requestBody,
+				connectTimeoutMs, readTimeoutMs);
+		if (bandwidth <= 0) {
+			return res;
+		}
+		return new ResponseInputStream(res, res.statusCode(), res.headers(), new ThrottledInputStream(res));
+	}
+
+	private long transferNanos(long bytes) {
+		final long bps = bandwidth;
+		return bps <= 0 ? 0L : (long) (bytes * 1_000_000_000d / bps);
+	}
+
+	private static void sleep(long nanos) throws IOException {
+		if (nanos <= 0) {
+			return;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while simulating network delay");
+		}
+	}
+
+	/**
+	 * Delays reads so that the response body arrives no faster than the configured bandwidth.
+	 */
+	private final class ThrottledInputStream extends FilterInputStream {
+
+		private final long start = System.nanoTime();
+		private long transferred;
+
+		ThrottledInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b >= 0) {
+				throttle(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			final int n = super.read(b, off, len);
+			if (n > 0) {
+				throttle(n);
+			}
+			return n;
+		}
+
+		private void throttle(int n) throws IOException {
+			transferred += n;
+			sleep(start + transferNanos(transferred) - System.nanoTime());
+		}
+	}
+}